@@ -37,23 +37,19 @@ import android.os.StatFs;
 import android.text.TextUtils;
 import android.util.Log;
 import android.os.Bundle;
-import android.webkit.MimeTypeMap;
 
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.util.Date;
-import java.text.SimpleDateFormat;
 import java.util.List;
-import java.lang.StringBuffer;
 
 import javax.obex.ServerRequestHandler;
 import javax.obex.ResponseCodes;
@@ -76,19 +72,6 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
 
     private static final int UUID_LENGTH = 16;
 
-    /* To help parsing file attributes */
-    private static final int INDEX_YEAR = 0;
-
-    private static final int INDEX_MONTH = 1;
-
-    private static final int INDEX_DATE = 2;
-
-    private static final int INDEX_TIME = 3;
-
-    private static final int INDEX_TIME_HOUR = 0;
-
-    private static final int INDEX_TIME_MINUTE = 1;
-
     // type for list folder contents
     private static final String TYPE_LISTING = "x-obex/folder-listing";
 
@@ -103,7 +86,11 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
 
     private PowerManager.WakeLock mWakeLock = null;
 
-    public static boolean sIsAborted = false;
+    /* Encoded listings of recently browsed folders */
+    private final FtpFolderListing mFolderListing = new FtpFolderListing();
+
+    /* Set by onAbort() while a GET or PUT is in progress on the OBEX thread */
+    private volatile boolean mIsAborted = false;
 
     public static final String ROOT_FOLDER_PATH = "/sdcard";
 
@@ -118,10 +105,6 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
 
     private static final String FOLDER_NAME_DOTDOT = "..";
 
-    List<String> filenames;
-
-    List<String> types;
-
     // 128 bit UUID for FTP
     private static final byte[] FTP_TARGET = new byte[] {
             (byte)0xF9, (byte)0xEC, (byte)0x7B, (byte)0xC4, (byte)0x95,
@@ -139,8 +122,6 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
         mContext = context;
         // set initial value when ObexServer created
         if (D) Log.d(TAG, "Initialize FtpObexServer");
-        filenames = new ArrayList<String>();
-        types = new ArrayList<String>();
     }
     /**
     * onConnect
@@ -252,6 +233,7 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
         if (D) Log.d(TAG, "onDisconnect() +");
 
         acquireFtpWakeLock();
+        mFolderListing.clear();
         resp.responseCode = ResponseCodes.OBEX_HTTP_OK;
         /* Send a message to the FTP service to close the Server session */
         if (mCallback != null) {
@@ -271,7 +253,8 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
     public int onAbort(HeaderSet request, HeaderSet reply) {
         if (D) Log.d(TAG, "onAbort() +");
         acquireFtpWakeLock();
-        sIsAborted = true;
+        mIsAborted = true;
+        FileUtils.interruptFileCopy = true;
         if (D) Log.d(TAG, "onAbort() -");
         releaseFtpWakeLock();
         return ResponseCodes.OBEX_HTTP_OK;
@@ -346,6 +329,7 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
                    FileUtils.sendMessage(mCallback,BluetoothFtpService.MSG_FILE_DELETED,
                                              deleteFile.getAbsolutePath());
                 }
+               mFolderListing.invalidate(deleteFile.getParentFile());
            }
            else{
                if (D) Log.d(TAG,"File doesnot exist");
@@ -386,6 +370,7 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
 
     private int onPutInternal(final Operation op) {
         if (D) Log.d(TAG, "onPutInternal() +");
+        mIsAborted = false;
         HeaderSet request = null;
         long length;
         String name = "";
@@ -430,7 +415,6 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
                 if (D) Log.d(TAG,"No Space Available");
                 return ResponseCodes.OBEX_HTTP_ENTITY_TOO_LARGE;
             }
-            BufferedOutputStream buff_op_stream = null;
             InputStream in_stream = null;
 
             try {
@@ -441,7 +425,7 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
                 return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
             }
 
-            int positioninfile = 0;
+            long positioninfile = 0;
             File fileinfo = new File(mCurrentPath+ "/" + name);
             File parentFile = fileinfo.getParentFile();
             if (parentFile != null) {
@@ -466,32 +450,35 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
                 }
             }
 
-            FileOutputStream fileOutputStream = new FileOutputStream(fileinfo);
-            buff_op_stream = new BufferedOutputStream(fileOutputStream, 0x4000);
-            int outputBufferSize = op.getMaxPacketSize();
-            byte[] buff = new byte[outputBufferSize];
+            /* Packets are written to the file on the writer thread while the
+             * next one is read from the socket
+             */
+            FtpFileWriter writer = new FtpFileWriter(fileinfo, op.getMaxPacketSize(), length);
+            boolean aborted = false;
             int readLength = 0;
             long timestamp = 0;
             long starttimestamp = System.currentTimeMillis();
             try {
                 while ((positioninfile != length)) {
-                    if (sIsAborted) {
+                    if (mIsAborted) {
                         ((ServerOperation)op).isAborted = true;
-                        sIsAborted = false;
+                        aborted = true;
                         break;
                     }
                     timestamp = System.currentTimeMillis();
+                    byte[] buff = writer.obtainBuffer();
                     if (V) Log.v(TAG,"Read Socket >");
                     readLength = in_stream.read(buff);
                     if (V) Log.v(TAG,"Read Socket <");
 
                     if (readLength == -1) {
+                        writer.write(0);
                         if (D) Log.d(TAG,"File reached end at position"
                                                              + positioninfile);
                         break;
                     }
 
-                    buff_op_stream.write(buff, 0, readLength);
+                    writer.write(readLength);
                     positioninfile += readLength;
 
                     if (V) {
@@ -505,32 +492,33 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
                 Log.e(TAG, "onPutInternal File receive"+ e1.toString());
                 if (D) Log.d(TAG, "Error when receiving file");
                 ((ServerOperation)op).isAborted = true;
-                sIsAborted = true;
+                aborted = true;
             }
 
-            long finishtimestamp = System.currentTimeMillis();
-            Log.i(TAG,"Put Request TP analysis : Received  "+ positioninfile +
-                      " bytes in " + (finishtimestamp - starttimestamp)+"ms");
-            if (buff_op_stream != null) {
-                try {
-                    buff_op_stream.close();
-                 } catch (IOException e) {
-                     Log.e(TAG,"onPutInternal close stream "+ e.toString());
-                     if (D) Log.d(TAG, "Error when closing stream after send");
-                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                }
-            }
-            if(D) Log.d(TAG,"close Stream >");
-            if(sIsAborted == true){
-                sIsAborted = false;
-                /* If the transfer completed due to a
-                 * abort from Ftp client, clean up the
-                 * file in the Server
+            if (aborted) {
+                /* If the transfer ended due to an abort from the Ftp
+                 * client or an error, clean up the file in the Server
                  */
+                mIsAborted = false;
+                writer.abort();
                 fileinfo.delete();
                 Log.e(TAG, " SET isAborted on excepton");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.e(TAG,"onPutInternal close file "+ e.toString());
+                if (D) Log.d(TAG, "Error when writing received file");
+                fileinfo.delete();
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
+            mFolderListing.invalidate(parentFile);
+
+            long finishtimestamp = System.currentTimeMillis();
+            Log.i(TAG,"Put Request TP analysis : Received  "+ positioninfile +
+                      " bytes in " + (finishtimestamp - starttimestamp)+"ms");
+            if(D) Log.d(TAG,"close Stream >");
             if (!closeStream(in_stream, op)) {
                 if (D) Log.d(TAG,"Failed to close Input stream");
                 return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
@@ -665,6 +653,7 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
                         Log.e(TAG, "Could not create " + tmp_path);
                         return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                     }
+                    mFolderListing.invalidate(filecreate.getParentFile());
                 } else {
                     Log.e(TAG, "path: " +  current_path_tmp + " not found");
                     return ResponseCodes.OBEX_HTTP_NOT_FOUND;
@@ -740,7 +729,7 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
     private int onGetInternal(Operation op) {
         if (D) Log.d(TAG, "onGetInternal() +");
 
-        sIsAborted = false;
+        mIsAborted = false;
         HeaderSet request = null;
         String type = "";
         String name = "";
@@ -795,15 +784,7 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
                         return folderListingXML(op, storagePartitions);
                     }
                     File rootfolder = new File(mCurrentPath);
-                    File [] files = rootfolder.listFiles();
-                    if (files != null) {
-                        for(int i = 0; i < files.length; i++)
-                            if (D) Log.d(TAG,"Folder listing =" + files[i] );
-                        return sendFolderListingXml(0,op,files);
-                    } else {
-                        Log.e(TAG,"error in listing files");
-                        return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                    }
+                    return sendFolderListingXml(op, rootfolder);
                 } else {
                     if (D) Log.d(TAG,"Non Root Folder");
                     if(type.equals(TYPE_LISTING) && mCurrentPath != null) {
@@ -817,13 +798,7 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
                             }
                             File subFolder = new File(mCurrentPath +"/"+ name);
                             if(subFolder.exists()) {
-                                File [] files = subFolder.listFiles();
-                                if (files != null) {
-                                    return sendFolderListingXml(0,op,files);
-                                } else {
-                                    Log.e(TAG,"error in listing files");
-                                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                                }
+                                return sendFolderListingXml(op, subFolder);
                             } else {
                                 Log.e(TAG,
                                     "ResponseCodes.OBEX_HTTP_NO_CONTENT");
@@ -831,15 +806,7 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
                             }
                         }
 
-                        File [] files = currentfolder.listFiles();
-                        if (files != null) {
-                            for(int i = 0; i < files.length; i++)
-                               if (D) Log.d(TAG,"Non Root Folder listing =" + files[i] );
-                            return sendFolderListingXml(0,op,files);
-                        } else {
-                            Log.e(TAG,"error in listing files");
-                            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                        }
+                        return sendFolderListingXml(op, currentfolder);
                     }
                 }
             }
@@ -867,21 +834,21 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
     private final int sendFileContents(Operation op,File fileinfo){
 
         if (D) Log.d(TAG,"sendFile + = " + fileinfo.getName() );
-        int position = 0;
+        long position = 0;
         int readLength = 0;
-        boolean isitokToProceed = false;
         int outputBufferSize = op.getMaxPacketSize();
         long timestamp = 0;
-        int responseCode = -1;
         FileInputStream fileInputStream = null;
         OutputStream outputStream = null;
-        BufferedInputStream bis;
+        FileChannel channel;
         long finishtimestamp;
         long starttimestamp;
         long readbytesleft = 0;
         long filelength = fileinfo.length();
-
-        byte[] buffer = new byte[outputBufferSize];
+        /* Throughput counters for the TP analysis log */
+        int packets = 0;
+        long readTime = 0;
+        long writeTime = 0;
 
         if(fileinfo.exists() != true) {
           return ResponseCodes.OBEX_HTTP_NOT_FOUND;
@@ -907,7 +874,14 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
                 return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
             }
         }
-        bis = new BufferedInputStream(fileInputStream, 0x4000);
+        /*
+         * The OBEX output stream only takes byte arrays, so every packet is
+         * read from the file channel straight into the array that is written
+         * out, without an intermediate buffered stream.
+         */
+        channel = fileInputStream.getChannel();
+        byte[] buffer = new byte[outputBufferSize];
+        ByteBuffer packet = ByteBuffer.wrap(buffer);
         starttimestamp = System.currentTimeMillis();
         /*
          * Some Devices expect Length, send Legth Header also
@@ -919,22 +893,35 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
                 op.sendHeaders (reply);
             }
             while ((position != filelength)) {
-                if (sIsAborted) {
+                if (mIsAborted) {
                     ((ServerOperation)op).isAborted = true;
-                    sIsAborted = false;
+                    mIsAborted = false;
                     break;
                 }
                 timestamp = System.currentTimeMillis();
 
                 readbytesleft = filelength - position;
+                packet.clear();
                 if(readbytesleft < outputBufferSize) {
-                    outputBufferSize = (int) readbytesleft;
+                    packet.limit((int) readbytesleft);
+                }
+                while (packet.hasRemaining()) {
+                    if (channel.read(packet) == -1) {
+                        break;
+                    }
                 }
-                readLength = bis.read(buffer, 0, outputBufferSize);
-                if (D) Log.d(TAG,"Read File");
+                readLength = packet.position();
+                if (readLength == 0) {
+                    Log.e(TAG, "File reached end at position " + position);
+                    break;
+                }
+                final long readDone = System.currentTimeMillis();
+                readTime += readDone - timestamp;
 
                 outputStream.write(buffer, 0, readLength);
+                writeTime += System.currentTimeMillis() - readDone;
                 position += readLength;
+                packets++;
                 if (V) {
                     Log.v(TAG, "Sending file position = " + position
                        + " readLength " + readLength + " bytes took "
@@ -945,17 +932,20 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
             Log.e(TAG,"Write aborted " + e.toString());
             if (D) Log.d(TAG,"Write Abort Received");
             ((ServerOperation)op).isAborted = true;
+            try {
+                fileInputStream.close();
+            } catch (IOException ei) {
+                Log.e(TAG, "Error while closing stream"+ ei.toString());
+            }
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
         finishtimestamp = System.currentTimeMillis();
-        if (bis != null) {
-            try {
-                bis.close();
-            } catch (IOException e) {
-                Log.e(TAG,"input stream close" + e.toString());
-                if (D) Log.d(TAG, "Error when closing stream after send");
-                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-            }
+        try {
+            fileInputStream.close();
+        } catch (IOException e) {
+            Log.e(TAG,"input stream close" + e.toString());
+            if (D) Log.d(TAG, "Error when closing stream after send");
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
 
         if (!closeStream(outputStream, op)) {
@@ -963,89 +953,18 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
         }
 
         if((position == filelength) || (((ServerOperation)op).isAborted == true)) {
+            final long elapsed = finishtimestamp - starttimestamp;
             Log.i(TAG,"Get Request TP analysis : Transmitted "+ position +
-                  " bytes in" + (finishtimestamp - starttimestamp)  + "ms");
+                  " bytes in" + elapsed  + "ms" +
+                  " packets=" + packets + " packetSize=" + outputBufferSize +
+                  " readMs=" + readTime + " writeMs=" + writeTime +
+                  " kbps=" + ((elapsed > 0) ? (position * 8 / elapsed) : 0));
             return ResponseCodes.OBEX_HTTP_OK;
         }else {
             return ResponseCodes.OBEX_HTTP_CONTINUE;
         }
     }
 
-    /**
-    * scanDirectory
-    *
-    * Scans a directory recursively for files and their mimetypes
-    * and adds them into a global list of filenames and their
-    * corresponding mime type list.
-    *
-    * @param dir File handle to file/folder
-    * @return none
-    */
-
-    private final void scanDirectory(File dir) {
-        Log.d(TAG,"scanDirectory Dest "+dir);
-        if(dir.isFile()) {
-            String mimeType = null;
-            /* first we look for Mimetype in Android map */
-            String extension = null, type = null;
-            String name = dir.getAbsolutePath();
-            int dotIndex = name.lastIndexOf(".");
-            if (dotIndex < 0) {
-                if (D) Log.d(TAG, "There is no file extension");
-            } else {
-                 extension = name.substring(dotIndex + 1).toLowerCase();
-                 MimeTypeMap map = MimeTypeMap.getSingleton();
-                 type = map.getMimeTypeFromExtension(extension);
-                 if (V) Log.v(TAG, "Mimetype guessed from extension " + extension + " is " + type);
-                 if (type != null) {
-                     mimeType = type;
-                 }
-                 if (mimeType != null) {
-                     mimeType = mimeType.toLowerCase();
-                     if (D) Log.d(TAG, "Adding file path "+ dir.getAbsolutePath());
-                     filenames.add( dir.getAbsolutePath());
-                     if (D) Log.d(TAG, "Adding type" +mimeType);
-                     types.add(mimeType);
-                 }
-            }
-            return;
-        }
-
-        File [] files = dir.listFiles();
-        if (files == null) return;
-        for(int i = 0; i < files.length; i++) {
-            if (D) Log.d(TAG,"Files =" + files[i]);
-            if(files[i].isDirectory()) {
-                scanDirectory(files[i]);
-            } else if (files[i].isFile()) {
-                String mimeType = null;
-                /* first we look for Mimetype in Android map */
-                String extension = null, type = null;
-                String name = files[i].getAbsolutePath();
-                int dotIndex = name.lastIndexOf(".");
-                if (dotIndex < 0) {
-                    if (D) Log.d(TAG, "There is no file extension");
-                } else {
-                    extension = name.substring(dotIndex + 1).toLowerCase();
-                    MimeTypeMap map = MimeTypeMap.getSingleton();
-                    type = map.getMimeTypeFromExtension(extension);
-                    if (V) Log.v(TAG, "Mimetype guessed from extension " + extension + " is "
-                                                                                           + type);
-                    if (type != null) {
-                        mimeType = type;
-                    }
-                    if (mimeType != null) {
-                        mimeType = mimeType.toLowerCase();
-                        if (D) Log.d(TAG, "Adding file path "+ files[i].getAbsolutePath());
-                        filenames.add(files[i].getAbsolutePath());
-                        if (D) Log.d(TAG, "Adding type" +mimeType);
-                        types.add(mimeType);
-                    }
-                }
-            }
-        }
-    }
-
     /* Extract the length from header */
     private final long extractLength(HeaderSet request) {
         long len = 0;
@@ -1063,16 +982,8 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
     }
 
     /** Function to send folder listing data to client */
-    private final int pushBytes(Operation op, final String folderlistString) {
-        if (D) Log.d(TAG,"pushBytes +");
-        if (folderlistString == null) {
-            if (D) Log.d(TAG, "folderlistString is null!");
-            return ResponseCodes.OBEX_HTTP_OK;
-        }
-
-        byte [] folderListing = folderlistString.getBytes();
-        int folderlistStringLen = folderListing.length;
-        if (D) Log.d(TAG, "Send Data: len=" + folderlistStringLen);
+    private final int pushListing(Operation op, final InputStream listing) {
+        if (D) Log.d(TAG,"pushListing +");
 
         OutputStream outputStream = null;
         int pushResult = ResponseCodes.OBEX_HTTP_OK;
@@ -1083,24 +994,26 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
 
-        int position = 0;
+        long position = 0;
         long timestamp = 0;
         int outputBufferSize = op.getMaxPacketSize();
         if (V) Log.v(TAG, "outputBufferSize = " + outputBufferSize);
-        while (position != folderlistStringLen) {
-            if (sIsAborted) {
+        /* Each packet is filled straight from the listing generator */
+        byte[] packet = new byte[outputBufferSize];
+        while (true) {
+            if (mIsAborted) {
                  ((ServerOperation)op).isAborted = true;
-                 sIsAborted = false;
+                 mIsAborted = false;
                  break;
             }
             if (V) timestamp = System.currentTimeMillis();
-            int readLength = outputBufferSize;
-            if (folderlistStringLen - position < outputBufferSize) {
-                readLength = folderlistStringLen - position;
-            }
-
+            int readLength;
             try {
-                outputStream.write(folderListing, position, readLength);
+                readLength = listing.read(packet, 0, outputBufferSize);
+                if (readLength == -1) {
+                    break;
+                }
+                outputStream.write(packet, 0, readLength);
             } catch (IOException e) {
                 Log.e(TAG, "write outputstrem failed" + e.toString());
                 pushResult = ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
@@ -1114,12 +1027,12 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
             position += readLength;
         }
 
-        if (V) Log.v(TAG, "Send Data complete!");
+        if (D) Log.d(TAG, "Send Data complete! len=" + position);
 
         if (!closeStream(outputStream, op)) {
             pushResult = ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        if (V) Log.v(TAG, "pushBytes - result = " + pushResult);
+        if (V) Log.v(TAG, "pushListing - result = " + pushResult);
         return pushResult;
     }
 
@@ -1136,76 +1049,27 @@ public class BluetoothFtpObexServer extends ServerRequestHandler {
 
         str += "</folder-listing>";
         if (V) Log.v(TAG, "FolderListingXml -");
-        return pushBytes(op, str);
+        return pushListing(op, new ByteArrayInputStream(str.getBytes()));
     }
 
 
-    /** Form and Send an XML format String to client for Folder listing */
-    private final int sendFolderListingXml(final int type,Operation op,final File[] files) {
-        if (V) Log.v(TAG, "sendFolderListingXml =" + files.length);
-
-        StringBuilder result = new StringBuilder();
-        result.append("<?xml version=\"1.0\"?>");
-        result.append('\r');
-        result.append('\n');
-        result.append("<!DOCTYPE folder-listing SYSTEM \"obex-folder-listing.dtd\">");
-        result.append('\r');
-        result.append('\n');
-        result.append("<folder-listing version=\"1.0\">");
-        result.append('\r');
-        result.append('\n');
-
-        /* For the purpose of parsing file attributes and to maintain the standard,
-         * enforce the format to be used
-         */
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy MM dd HH:mm");
-
-        String name = "";
-        String permission  = "";
-        for(int i =0; i < files.length; i++) {
-
-            if (files[i].isDirectory()) {
-               name = "folder name";
-            } else {
-               name = "file name";
-            }
+    /** Form and Send an XML format listing of a folder to client */
+    private final int sendFolderListingXml(Operation op, final File folder) {
+        if (V) Log.v(TAG, "sendFolderListingXml " + folder);
 
-            if (files[i].canRead() && files[i].canWrite()) {
-               permission = "RW";
-            } else if(files[i].canRead()) {
-               permission = "R";
-            } else if(files[i].canWrite()) {
-               permission = "W";
+        InputStream listing = mFolderListing.openCached(folder);
+        if (listing == null) {
+            File [] files = folder.listFiles();
+            if (files == null) {
+                Log.e(TAG,"error in listing files");
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
             }
-
-            Date date = new Date(files[i].lastModified());
-            String[] dateset = sdf.format(date).split(" ");
-
-            StringBuffer xmldateformat = new StringBuffer(dateset[INDEX_YEAR]);
-            xmldateformat.append(dateset[INDEX_MONTH]);
-            xmldateformat.append(dateset[INDEX_DATE]);
-
-            String[] timeset = dateset[INDEX_TIME].split(":");
-            xmldateformat.append("T");
-            xmldateformat.append(timeset[INDEX_TIME_HOUR]);
-            xmldateformat.append(timeset[INDEX_TIME_MINUTE]);
-            xmldateformat.append("00Z");
-
-            if (D) Log.d(TAG, name +"=" + files[i].getName()+ " size="
-                            + files[i].length() + " modified=" + date.toString()
-                            + " dateformat to send=" + xmldateformat.toString());
-
-            result.append("<" + name + "=\"" + files[i].getName()+ "\"" + " size=\"" +
-                files[i].length() + "\"" + " user-perm=\"" + permission + "\"" +
-                " modified=\"" + xmldateformat.toString()  + "\"" + "/>");
-            result.append('\r');
-            result.append('\n');
+            if (D) Log.d(TAG, "Folder listing of " + files.length + " entries");
+            listing = mFolderListing.open(folder, files);
         }
-        result.append("</folder-listing>");
-        result.append('\r');
-        result.append('\n');
+        int result = pushListing(op, listing);
         if (D) Log.d(TAG, "sendFolderListingXml -");
-        return pushBytes(op, result.toString());
+        return result;
     }
     /* Close the output stream */
     public static boolean closeStream(final OutputStream out, final Operation op) {
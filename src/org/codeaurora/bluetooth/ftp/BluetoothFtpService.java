@@ -36,6 +36,8 @@ import android.bluetooth.BluetoothAdapter;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Message;
@@ -182,6 +184,16 @@ public class BluetoothFtpService extends Service {
 
     private static final int MSG_INTERNAL_OBEX_L2CAP_SESSION_UP = 11;
 
+    private static final int MSG_INTERNAL_MEDIA_SCAN = 12;
+
+    private static final int MSG_INTERNAL_MEDIA_DELETE = 13;
+
+    /* Media index updates are collected for this long before being sent */
+    private static final int MEDIA_UPDATE_WINDOW_MS = 500;
+
+    /* A batch is sent at once when it reaches this many entries */
+    private static final int MAX_MEDIA_BATCH = 128;
+
     //Port number for FTP RFComm Socket
     private static final int PORT_NUM = 20;
 
@@ -211,6 +223,17 @@ public class BluetoothFtpService extends Service {
 
     public static boolean isL2capSocket = false;
 
+    /* Pending media scanner work, only touched on the mSessionStatusHandler thread */
+    private final ArrayList<String> mScanAddPaths = new ArrayList<String>();
+
+    private final ArrayList<String> mScanAddTypes = new ArrayList<String>();
+
+    private final ArrayList<String> mScanDeletePaths = new ArrayList<String>();
+
+    private final ArrayList<String> mScanDeleteTypes = new ArrayList<String>();
+
+    private final ArrayList<Uri> mDeletedUris = new ArrayList<Uri>();
+
     private BluetoothAdapter mAdapter;
 
     private RfcommSocketAcceptThread mRfcommAcceptThread = null;
@@ -417,6 +440,8 @@ public class BluetoothFtpService extends Service {
     public void onDestroy() {
         Log.v(TAG, "Ftp Service onDestroy");
 
+        flushMediaScan();
+        flushMediaDeletes();
         super.onDestroy();
         closeService();
     }
@@ -626,31 +651,98 @@ public class BluetoothFtpService extends Service {
         String[] mTypes = obj.getStringArray("mimetypes");
         String[] fPaths = obj.getStringArray("filepaths");
         if((op == FTP_MEDIA_ADD) || (op == FTP_MEDIA_DELETE)) {
-            new FtpMediaScannerNotifier(this,obj.getString("filepath"),
-                  obj.getString("mimetype"),mSessionStatusHandler,op);
+            queueMediaScan(obj.getString("filepath"), obj.getString("mimetype"),
+                  op == FTP_MEDIA_DELETE);
         } else if (mTypes != null && fPaths != null) {
-            new FtpMediaScannerNotifier(this,fPaths,
-                  mTypes,mSessionStatusHandler,op);
+            for (int i = 0; i < fPaths.length && i < mTypes.length; i++) {
+                queueMediaScan(fPaths[i], mTypes[i], op == FTP_MEDIA_FILES_DELETE);
+            }
         } else {
              Log.e(TAG, "Unexpected error! mTypes or fPaths is null");
             return;
         }
     }
 
+    /* Adds a file to the next media scanner batch, scanned together
+     * with the other files received or deleted in the same window
+     */
+    private void queueMediaScan(String path, String type, boolean deleted) {
+        if (path == null || type == null) {
+            return;
+        }
+        ArrayList<String> paths = deleted ? mScanDeletePaths : mScanAddPaths;
+        ArrayList<String> types = deleted ? mScanDeleteTypes : mScanAddTypes;
+        paths.add(path);
+        types.add(type);
+        if (paths.size() >= MAX_MEDIA_BATCH) {
+            flushMediaScan();
+        } else if (!mSessionStatusHandler.hasMessages(MSG_INTERNAL_MEDIA_SCAN)) {
+            mSessionStatusHandler.sendEmptyMessageDelayed(MSG_INTERNAL_MEDIA_SCAN,
+                  MEDIA_UPDATE_WINDOW_MS);
+        }
+    }
+
+    /* Starts one media scanner connection per pending batch */
+    private void flushMediaScan() {
+        mSessionStatusHandler.removeMessages(MSG_INTERNAL_MEDIA_SCAN);
+        Context context = getApplicationContext();
+        if (!mScanAddPaths.isEmpty()) {
+            new FtpMediaScannerNotifier(context,
+                  mScanAddPaths.toArray(new String[mScanAddPaths.size()]),
+                  mScanAddTypes.toArray(new String[mScanAddTypes.size()]),
+                  mSessionStatusHandler,FTP_MEDIA_FILES_ADD);
+            mScanAddPaths.clear();
+            mScanAddTypes.clear();
+        }
+        if (!mScanDeletePaths.isEmpty()) {
+            new FtpMediaScannerNotifier(context,
+                  mScanDeletePaths.toArray(new String[mScanDeletePaths.size()]),
+                  mScanDeleteTypes.toArray(new String[mScanDeleteTypes.size()]),
+                  mSessionStatusHandler,FTP_MEDIA_FILES_DELETE);
+            mScanDeletePaths.clear();
+            mScanDeleteTypes.clear();
+        }
+    }
+
     private void notifyContentResolver(Uri uri) {
-        Log.v(TAG,"FTP_MEDIA_SCANNED deleting uri "+uri);
+        Log.v(TAG,"FTP_MEDIA_SCANNED queue delete of uri "+uri);
+        mDeletedUris.add(uri);
+        if (mDeletedUris.size() >= MAX_MEDIA_BATCH) {
+            flushMediaDeletes();
+        } else if (!mSessionStatusHandler.hasMessages(MSG_INTERNAL_MEDIA_DELETE)) {
+            mSessionStatusHandler.sendEmptyMessageDelayed(MSG_INTERNAL_MEDIA_DELETE,
+                  MEDIA_UPDATE_WINDOW_MS);
+        }
+    }
+
+    /* Removes the media entries of deleted files in one provider batch */
+    private void flushMediaDeletes() {
+        mSessionStatusHandler.removeMessages(MSG_INTERNAL_MEDIA_DELETE);
+        if (mDeletedUris.isEmpty()) {
+            return;
+        }
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(mDeletedUris.size());
+        for (Uri uri : mDeletedUris) {
+            ops.add(ContentProviderOperation.newDelete(uri).build());
+        }
+        mDeletedUris.clear();
         ContentProviderClient client = getContentResolver()
                   .acquireContentProviderClient(MediaStore.AUTHORITY);
         if (client == null) {
-            Log.e(TAG, "Unexpected error! mTypes is null");
+            Log.e(TAG, "Unexpected error! media provider client is null");
             return;
         }
         try {
-            client.delete(uri, null, null);
+            client.applyBatch(ops);
+            Log.v(TAG,"FTP_MEDIA_SCANNED deleted " + ops.size() + " uris");
         } catch(RemoteException e){
             Log.e(TAG,e.toString());
+        } catch(OperationApplicationException e){
+            Log.e(TAG,e.toString());
+        } finally {
+            client.release();
         }
-        Log.v(TAG,"FTP_MEDIA_SCANNED deleted uri "+uri);
     }
 
     /**
@@ -812,6 +904,12 @@ public class BluetoothFtpService extends Service {
                      *re-registration for every FTP connection request
                      */
                     break;
+                case MSG_INTERNAL_MEDIA_SCAN:
+                    flushMediaScan();
+                    break;
+                case MSG_INTERNAL_MEDIA_DELETE:
+                    flushMediaDeletes();
+                    break;
                 case MSG_OBEX_AUTH_CHALL:
                     createFtpNotification(AUTH_CHALL_ACTION);
                     mSessionStatusHandler.sendMessageDelayed(mSessionStatusHandler
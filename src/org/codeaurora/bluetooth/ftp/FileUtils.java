@@ -43,10 +43,12 @@ import java.io.InputStream;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.nio.channels.FileChannel;
 
 import javax.obex.ResponseCodes;
 import javax.obex.Operation;
@@ -59,35 +61,63 @@ public class FileUtils {
 
     private static final boolean V = BluetoothFtpService.VERBOSE;
 
-    public static boolean interruptFileCopy = false;
+    /* Set by the service on shutdown and by the server on an OBEX abort */
+    public static volatile boolean interruptFileCopy = false;
+
+    /* Maximum number of files copied or deleted at the same time */
+    private static final int MAX_PARALLEL_OPS = 4;
+
+    /* Bytes moved per transferTo() call, the interrupt flag is checked between calls */
+    private static final long TRANSFER_CHUNK_SIZE = 0x100000;
+
+    /* Operation applied to the i-th file of a tree walk */
+    private interface FileOp {
+        boolean run(int index);
+    }
 
     /**
     * deleteDirectory
     *
     * Called when a PUT request is received to delete a non empty folder
     *
+    * The tree is walked first, then the files are deleted by up to
+    * MAX_PARALLEL_OPS threads and the folders removed deepest first.
+    *
     * @param mCallback handler for sending message
     * @param dir provides the handle to the directory to be deleted
     * @return a TRUE if operation was succesful or false otherwise
     */
-    public static final boolean deleteDirectory(Handler mCallback,File dir) {
+    public static final boolean deleteDirectory(final Handler mCallback,File dir) {
         if (D) Log.d(TAG, "deleteDirectory() +");
+        interruptFileCopy = false;
         if(dir.exists()) {
             File [] files = dir.listFiles();
             if (files == null) {
                 Log.e(TAG, "error in listing directory ");
                 return false;
             }
-            for(int i = 0; i < files.length;i++) {
-                if(files[i].isDirectory()) {
-                    deleteDirectory(mCallback,files[i]);
-                    if (D) Log.d(TAG,"Dir Delete =" + files[i].getName());
-                } else {
-                    if (D) Log.d(TAG,"File Delete =" + files[i].getName());
-                    files[i].delete();
-                    sendMessage(mCallback,BluetoothFtpService.MSG_FILE_DELETED,files[i].getAbsolutePath());
+            final List<File> allFiles = new ArrayList<File>();
+            List<File> dirs = new ArrayList<File>();
+            collectTree(files, allFiles, dirs);
+            long timestamp = System.currentTimeMillis();
+
+            runParallel(allFiles.size(), new FileOp() {
+                public boolean run(int index) {
+                    File file = allFiles.get(index);
+                    if (D) Log.d(TAG,"File Delete =" + file.getName());
+                    file.delete();
+                    sendMessage(mCallback,BluetoothFtpService.MSG_FILE_DELETED,
+                            file.getAbsolutePath());
+                    return true;
                 }
+            });
+            /* Sub folders were collected parents first */
+            for (int i = dirs.size() - 1; i >= 0 && !interruptFileCopy; i--) {
+                if (D) Log.d(TAG,"Dir Delete =" + dirs.get(i).getName());
+                dirs.get(i).delete();
             }
+            Log.i(TAG, "deleteDirectory " + allFiles.size() + " files in "
+                    + (System.currentTimeMillis() - timestamp) + "ms");
         }
 
         if (D) Log.d(TAG, "deleteDirectory() -");
@@ -100,6 +130,9 @@ public class FileUtils {
     * Called when a Copy action is to be performed from a source
     * folder to destination folder
     *
+    * The destination folders are created while walking the source tree,
+    * then the files are copied by up to MAX_PARALLEL_OPS threads.
+    *
     * @param mCallback handler for sending message
     * @param src File handle to source directory
     * @param dest File handle to destination directory
@@ -107,29 +140,27 @@ public class FileUtils {
     *         or ResponseCodes.OBEX_HTTP_INTERNAL_ERROR otherwise
     */
 
-    public static final int copyFolders(Handler mCallback,File src, File dest) {
-         Log.d(TAG,"copyFolders src "+src+"dest "+dest);
-         int ret = 0;
-         dest.mkdir();
-         File [] files = src.listFiles();
-         if (files == null) {
-             Log.e(TAG, "error in listing directory");
-             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-         }
-         for(int i = 0; i < files.length; i++) {
-             if (D) Log.d(TAG,"Files =" + files[i]);
-             if(files[i].isDirectory()) {
-                 File recdest = new File(dest.getAbsolutePath() + "/" + files[i].getName());
-                 ret = copyFolders(mCallback,files[i],recdest);
-                 if(ret != ResponseCodes.OBEX_HTTP_OK)
-                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-             } else if(files[i].isFile()) {
-                 File recdest = new File(dest.getAbsolutePath() + "/" + files[i].getName());
-                 ret = copyFile(mCallback,files[i],recdest);
-                 if(ret != ResponseCodes.OBEX_HTTP_OK)
-                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-             }
+    public static final int copyFolders(final Handler mCallback,File src, File dest) {
+        Log.d(TAG,"copyFolders src "+src+"dest "+dest);
+        interruptFileCopy = false;
+        final List<File> srcFiles = new ArrayList<File>();
+        final List<File> destFiles = new ArrayList<File>();
+        if (!collectCopyTree(src, dest, srcFiles, destFiles)) {
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
+        long timestamp = System.currentTimeMillis();
+
+        boolean success = runParallel(srcFiles.size(), new FileOp() {
+            public boolean run(int index) {
+                return copyFileContents(mCallback, srcFiles.get(index), destFiles.get(index))
+                        == ResponseCodes.OBEX_HTTP_OK;
+            }
+        });
+        if (!success) {
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
+        Log.i(TAG, "copyFolders " + srcFiles.size() + " files in "
+                + (System.currentTimeMillis() - timestamp) + "ms");
         return ResponseCodes.OBEX_HTTP_OK;
     }
     /**
@@ -146,71 +177,60 @@ public class FileUtils {
     */
 
     public static final int copyFile(Handler mCallback,File src, File dest) {
+        interruptFileCopy = false;
+        return copyFileContents(mCallback, src, dest);
+    }
+
+    /* Copies one file with FileChannel.transferTo, leaving no partial copy behind */
+    private static int copyFileContents(Handler mCallback, File src, File dest) {
         if (D) Log.d(TAG,"copyFile src "+ src +"dest "+dest);
         if (dest == null)
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         FileInputStream reader = null;
         FileOutputStream writer = null;
-        interruptFileCopy = false;
-
-        try {
-            reader = new FileInputStream(src);
-            writer = new FileOutputStream(dest);
-        } catch(FileNotFoundException e) {
-            Log.e(TAG,"copyFile file not found "+ e.toString());
-            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-        } finally {
-            if (null != reader && null == writer) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "copyFile close stream failed"+ e.toString());
-                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                }
-            }
-        }
-
-        BufferedInputStream ins = new BufferedInputStream(reader, 0x40000);
-        BufferedOutputStream os = new BufferedOutputStream(writer, 0x40000);
-        byte[] buff = new byte[0x40000];
         long position = 0;
-        int readLength = 0;
+        long length = 0;
         long timestamp = System.currentTimeMillis();
         try {
-            if(V) Log.v(TAG,"position = "+position + "src.filelength = "+src.length());
-            while ((position != src.length()) && !interruptFileCopy) {
-                if (BluetoothFtpObexServer.sIsAborted) {
-                    BluetoothFtpObexServer.sIsAborted = false;
+            reader = new FileInputStream(src);
+            writer = new FileOutputStream(dest);
+            FileChannel in = reader.getChannel();
+            FileChannel out = writer.getChannel();
+            length = in.size();
+            if(V) Log.v(TAG,"position = "+position + "src.filelength = "+length);
+            while ((position != length) && !interruptFileCopy) {
+                long count = in.transferTo(position,
+                        Math.min(TRANSFER_CHUNK_SIZE, length - position), out);
+                if (count <= 0) {
+                    /* Source was truncated while copying */
                     break;
                 }
-
-                readLength = ins.read(buff, 0, 0x40000);
-                if (D) Log.d(TAG,"Read File");
-                os.write(buff, 0, readLength);
-                position += readLength;
+                position += count;
                 if (V) {
                     Log.v(TAG, "Copying file position = " + position
-                       + " readLength " + readLength);
+                       + " readLength " + count);
                 }
             }
+        } catch(FileNotFoundException e) {
+            Log.e(TAG,"copyFile file not found "+ e.toString());
+            closeQuietly(reader, writer);
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         } catch (IOException e) {
             Log.e(TAG,"copyFile "+ e.toString());
             if (D) Log.d(TAG, "File Copy failed");
+            closeQuietly(reader, writer);
+            dest.delete();
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        if (ins != null) {
-            try {
-                ins.close();
-                os.close();
-            } catch (IOException e) {
-                Log.e(TAG,"input/output stream close" + e.toString());
-                if (D) Log.d(TAG, "Error when closing stream after send");
-                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-            }
+        if (!closeQuietly(reader, writer)) {
+            if (D) Log.d(TAG, "Error when closing stream after send");
+            dest.delete();
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
 
-        if (position != src.length()) {
+        if (position != length) {
             Log.i(TAG, "Copy is aborted ");
+            dest.delete();
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         } else {
             Log.i(TAG,"copyFile completed in "+
@@ -221,6 +241,109 @@ public class FileUtils {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    private static boolean closeQuietly(FileInputStream reader, FileOutputStream writer) {
+        boolean closed = true;
+        try {
+            if (reader != null) reader.close();
+        } catch (IOException e) {
+            Log.e(TAG,"input stream close" + e.toString());
+        }
+        try {
+            if (writer != null) writer.close();
+        } catch (IOException e) {
+            Log.e(TAG,"output stream close" + e.toString());
+            closed = false;
+        }
+        return closed;
+    }
+
+    /* Collects the files and, parents first, the sub folders of a tree */
+    private static void collectTree(File[] entries, List<File> files, List<File> dirs) {
+        for (int i = 0; i < entries.length && !interruptFileCopy; i++) {
+            if (entries[i].isDirectory()) {
+                dirs.add(entries[i]);
+                File[] children = entries[i].listFiles();
+                if (children != null) {
+                    collectTree(children, files, dirs);
+                } else {
+                    Log.e(TAG, "error in listing directory " + entries[i]);
+                }
+            } else {
+                files.add(entries[i]);
+            }
+        }
+    }
+
+    /* Creates the destination folders and pairs up the files to copy */
+    private static boolean collectCopyTree(File src, File dest, List<File> srcFiles,
+            List<File> destFiles) {
+        dest.mkdir();
+        File [] files = src.listFiles();
+        if (files == null) {
+            Log.e(TAG, "error in listing directory");
+            return false;
+        }
+        for(int i = 0; i < files.length; i++) {
+            if (interruptFileCopy) {
+                return false;
+            }
+            if (D) Log.d(TAG,"Files =" + files[i]);
+            File recdest = new File(dest.getAbsolutePath() + "/" + files[i].getName());
+            if(files[i].isDirectory()) {
+                if (!collectCopyTree(files[i], recdest, srcFiles, destFiles)) {
+                    return false;
+                }
+            } else if(files[i].isFile()) {
+                srcFiles.add(files[i]);
+                destFiles.add(recdest);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs op for indexes 0 to count - 1 on up to MAX_PARALLEL_OPS threads,
+     * including the calling one. Stops handing out work after the first
+     * failure or once interruptFileCopy is set.
+     *
+     * @return true if op succeeded for every index
+     */
+    private static boolean runParallel(final int count, final FileOp op) {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        Runnable worker = new Runnable() {
+            public void run() {
+                int index;
+                while (!failed.get() && !interruptFileCopy
+                        && (index = next.getAndIncrement()) < count) {
+                    if (!op.run(index)) {
+                        failed.set(true);
+                    }
+                }
+            }
+        };
+        int threads = Math.min(Math.min(MAX_PARALLEL_OPS, count),
+                Runtime.getRuntime().availableProcessors());
+        Thread[] helpers = new Thread[Math.max(threads - 1, 0)];
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i] = new Thread(worker, "FtpFileWorker-" + i);
+            helpers[i].start();
+        }
+        worker.run();
+        for (int i = 0; i < helpers.length; i++) {
+            boolean joined = false;
+            while (!joined) {
+                try {
+                    helpers[i].join();
+                    joined = true;
+                } catch (InterruptedException e) {
+                    interruptFileCopy = true;
+                }
+            }
+        }
+        return !failed.get() && !interruptFileCopy;
+    }
+
     /** check whether path is legal */
     public static final boolean doesPathExist(final String str) {
         if (D) Log.d(TAG,"doesPathExist + = " + str );
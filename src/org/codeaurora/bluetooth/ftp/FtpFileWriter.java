@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.ftp;
+
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+/**
+ * Writes a file received in a PUT request on a separate thread, so that a
+ * slow flash write does not hold up reading the next packet from the OBEX
+ * link. Packets are read into buffers taken from a small fixed ring with
+ * {@link #obtainBuffer()} and handed over with {@link #write(int)}; the
+ * receiving thread only blocks once every buffer is waiting to be written.
+ */
+public class FtpFileWriter {
+
+    private static final String TAG = "FtpFileWriter";
+
+    private static final boolean D = BluetoothFtpService.DEBUG;
+
+    private static final boolean V = BluetoothFtpService.VERBOSE;
+
+    /** Number of packet buffers shared by the reader and the writer thread */
+    private static final int RING_SIZE = 4;
+
+    /** Do not sync, the data reaches flash when the kernel flushes it */
+    public static final int SYNC_NONE = 0;
+
+    /** Sync the file data once the whole file has been written */
+    public static final int SYNC_ON_CLOSE = 1;
+
+    /**
+     * Selects when received files are synced to storage, one of SYNC_NONE
+     * or SYNC_ON_CLOSE. "setprop persist.bt.ftp.fsync 1" syncs each file.
+     */
+    private static final String PROPERTY_SYNC_POLICY = "persist.bt.ftp.fsync";
+
+    private static final class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final File mFile;
+
+    private final RandomAccessFile mRaf;
+
+    private final FileChannel mChannel;
+
+    private final int mSyncPolicy;
+
+    private final LinkedList<Chunk> mFree = new LinkedList<Chunk>();
+
+    private final LinkedList<Chunk> mPending = new LinkedList<Chunk>();
+
+    private final Thread mThread;
+
+    /* Buffer handed out by obtainBuffer() and not yet passed to write() */
+    private Chunk mCurrent;
+
+    private IOException mError;
+
+    private boolean mClosed;
+
+    private boolean mAborted;
+
+    private boolean mDone;
+
+    private long mWritten;
+
+    private long mWriteTime;
+
+    /**
+     * Creates the file and starts the writer thread.
+     *
+     * @param file the file to create, it must not exist
+     * @param bufferSize size of each packet buffer, normally the OBEX
+     *        maximum packet size
+     * @param length the length announced by the client, or 0 if unknown;
+     *        used to reserve the file size up front
+     */
+    public FtpFileWriter(File file, int bufferSize, long length) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "rw");
+        mChannel = mRaf.getChannel();
+        mSyncPolicy = SystemProperties.getInt(PROPERTY_SYNC_POLICY, SYNC_NONE);
+        if (length > 0) {
+            try {
+                mRaf.setLength(length);
+            } catch (IOException e) {
+                /* Not fatal, the file simply grows as it is written */
+                Log.w(TAG, "Unable to reserve " + length + " bytes " + e.toString());
+            }
+        }
+        for (int i = 0; i < RING_SIZE; i++) {
+            mFree.add(new Chunk(bufferSize));
+        }
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "FtpFileWriter");
+        mThread.start();
+    }
+
+    /**
+     * Returns an empty buffer to read the next packet into, waiting for the
+     * writer thread to release one if needed. Every call must be followed
+     * by a call to {@link #write(int)}.
+     *
+     * @throws IOException if an earlier write to the file failed
+     */
+    public synchronized byte[] obtainBuffer() throws IOException {
+        while (mFree.isEmpty() && mError == null && !mAborted) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for buffer");
+            }
+        }
+        checkError();
+        mCurrent = mFree.removeFirst();
+        return mCurrent.data;
+    }
+
+    /**
+     * Queues the first length bytes of the buffer returned by the last
+     * {@link #obtainBuffer()} call for writing. A length of 0 just gives
+     * the buffer back.
+     */
+    public synchronized void write(int length) throws IOException {
+        Chunk chunk = mCurrent;
+        mCurrent = null;
+        if (chunk == null) {
+            throw new IllegalStateException("write() without obtainBuffer()");
+        }
+        if (length <= 0 || mAborted) {
+            mFree.addLast(chunk);
+        } else {
+            chunk.length = length;
+            mPending.addLast(chunk);
+        }
+        notifyAll();
+        checkError();
+    }
+
+    /**
+     * Waits for the queued packets to be written, trims the file to the
+     * bytes actually received, syncs it if configured to and closes it.
+     *
+     * @return number of bytes written to the file
+     * @throws IOException if writing, syncing or closing the file failed
+     */
+    public long close() throws IOException {
+        IOException error;
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+            waitDone();
+            error = mError;
+        }
+        try {
+            if (error == null) {
+                mChannel.truncate(mWritten);
+                if (mSyncPolicy == SYNC_ON_CLOSE) {
+                    long start = System.currentTimeMillis();
+                    mChannel.force(false);
+                    if (D) Log.d(TAG, "Sync took " + (System.currentTimeMillis() - start) + "ms");
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (D) Log.d(TAG, "Wrote " + mWritten + " bytes to " + mFile.getName()
+                + ", write time " + mWriteTime + "ms");
+        return mWritten;
+    }
+
+    /**
+     * Drops any queued packets, stops the writer thread and closes the
+     * file. The partially written file is left for the caller to delete.
+     */
+    public void abort() {
+        synchronized (this) {
+            mAborted = true;
+            mClosed = true;
+            mPending.clear();
+            notifyAll();
+            waitDone();
+        }
+        try {
+            mRaf.close();
+        } catch (IOException e) {
+            Log.e(TAG, "abort close " + e.toString());
+        }
+        if (D) Log.d(TAG, "Aborted " + mFile.getName() + " after " + mWritten + " bytes");
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Chunk chunk;
+            synchronized (this) {
+                while (mPending.isEmpty() && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        mError = new InterruptedIOException("Writer interrupted");
+                        break;
+                    }
+                }
+                if (mPending.isEmpty() || mError != null) {
+                    break;
+                }
+                chunk = mPending.removeFirst();
+            }
+            long start = System.currentTimeMillis();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk.data, 0, chunk.length);
+                while (buffer.hasRemaining()) {
+                    mChannel.write(buffer);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "File write failed " + e.toString());
+                synchronized (this) {
+                    mError = e;
+                    mPending.clear();
+                    mFree.addLast(chunk);
+                    notifyAll();
+                }
+                break;
+            }
+            synchronized (this) {
+                mWritten += chunk.length;
+                mWriteTime += System.currentTimeMillis() - start;
+                mFree.addLast(chunk);
+                notifyAll();
+            }
+            if (V) Log.v(TAG, "Wrote " + chunk.length + " bytes, total " + mWritten);
+        }
+        synchronized (this) {
+            mDone = true;
+            notifyAll();
+        }
+    }
+
+    /* Called with the lock held */
+    private void waitDone() {
+        boolean interrupted = false;
+        while (!mDone) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Called with the lock held */
+    private void checkError() throws IOException {
+        if (mError != null) {
+            throw mError;
+        }
+        if (mAborted) {
+            throw new IOException("Write aborted");
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.ftp;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generates the x-obex/folder-listing XML object for a folder.
+ *
+ * The listing is produced one entry at a time as the caller reads it into
+ * OBEX packets, so the whole document is never built as a String. Each
+ * entry costs one stat() plus an access() check for the user permissions.
+ * Encoded listings are kept for the most recently listed folders and
+ * reused while the folder modification time is unchanged.
+ */
+public class FtpFolderListing {
+
+    private static final String TAG = "FtpFolderListing";
+
+    private static final boolean V = BluetoothFtpService.VERBOSE;
+
+    private static final int MAX_CACHED_FOLDERS = 8;
+
+    /* Larger listings are streamed but not kept */
+    private static final int MAX_CACHED_BYTES = 256 * 1024;
+
+    /* A cached listing is rebuilt after this time even if the folder mtime
+     * did not change, as in-place edits to files do not touch the folder
+     */
+    private static final long CACHE_MAX_AGE_MS = 60 * 1000;
+
+    /* Folders changed more recently than this are not cached, the mtime
+     * granularity of the sdcard filesystem could hide a second change
+     */
+    private static final long MTIME_GRANULARITY_MS = 2 * 1000;
+
+    private static final String LISTING_HEADER = "<?xml version=\"1.0\"?>\r\n"
+            + "<!DOCTYPE folder-listing SYSTEM \"obex-folder-listing.dtd\">\r\n"
+            + "<folder-listing version=\"1.0\">\r\n";
+
+    private static final String LISTING_FOOTER = "</folder-listing>\r\n";
+
+    private static final class CachedListing {
+        final long folderModified;
+        final long created;
+        final byte[] data;
+
+        CachedListing(long folderModified, long created, byte[] data) {
+            this.folderModified = folderModified;
+            this.created = created;
+            this.data = data;
+        }
+    }
+
+    private final LinkedHashMap<String, CachedListing> mCache =
+            new LinkedHashMap<String, CachedListing>(MAX_CACHED_FOLDERS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedListing> eldest) {
+            return size() > MAX_CACHED_FOLDERS;
+        }
+    };
+
+    /**
+     * Returns the cached listing of a folder if it is still valid.
+     *
+     * @return a stream over the encoded listing, or null if the folder has
+     *         to be listed again
+     */
+    public synchronized InputStream openCached(File folder) {
+        String key = folder.getAbsolutePath();
+        CachedListing cached = mCache.get(key);
+        if (cached == null) {
+            return null;
+        }
+        long modified = folder.lastModified();
+        if (modified != cached.folderModified
+                || System.currentTimeMillis() - cached.created > CACHE_MAX_AGE_MS) {
+            mCache.remove(key);
+            return null;
+        }
+        if (V) Log.v(TAG, "Using cached listing for " + key);
+        return new ByteArrayInputStream(cached.data);
+    }
+
+    /**
+     * Returns a stream that encodes the listing of files as it is read.
+     * Once read to the end the listing is cached for the folder.
+     *
+     * @param folder the folder the files were listed from
+     * @param files the folder contents
+     */
+    public InputStream open(File folder, File[] files) {
+        return new ListingStream(folder, files);
+    }
+
+    /** Drops the cached listing of a folder after it was changed */
+    public synchronized void invalidate(File folder) {
+        if (folder != null) {
+            mCache.remove(folder.getAbsolutePath());
+        }
+    }
+
+    public synchronized void clear() {
+        mCache.clear();
+    }
+
+    private synchronized void store(String key, long folderModified, long created,
+            byte[] data) {
+        mCache.put(key, new CachedListing(folderModified, created, data));
+    }
+
+    private class ListingStream extends InputStream {
+        private final String mKey;
+        private final long mFolderModified;
+        private final long mCreated;
+        private final File[] mFiles;
+        private final Calendar mCalendar = Calendar.getInstance();
+        private final StringBuilder mLine = new StringBuilder(256);
+        /* Kept for the cache until the listing grows past MAX_CACHED_BYTES */
+        private ByteArrayOutputStream mEncoded = new ByteArrayOutputStream();
+        private byte[] mBuffer = new byte[512];
+        private int mPos;
+        private int mCount;
+        /* -1 for the header, then one per file, then the footer */
+        private int mIndex = -1;
+        private boolean mEnd;
+        private long mLastMinute = -1;
+        private String mLastModified;
+
+        ListingStream(File folder, File[] files) {
+            mKey = folder.getAbsolutePath();
+            mCreated = System.currentTimeMillis();
+            long modified = folder.lastModified();
+            mFolderModified = modified;
+            mFiles = files;
+            if (modified == 0 || mCreated - modified < MTIME_GRANULARITY_MS) {
+                mEncoded = null;
+            }
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int total = 0;
+            while (total < len) {
+                if (mPos == mCount && !fill()) {
+                    break;
+                }
+                int n = Math.min(len - total, mCount - mPos);
+                System.arraycopy(mBuffer, mPos, b, off + total, n);
+                mPos += n;
+                total += n;
+            }
+            return total == 0 && len > 0 ? -1 : total;
+        }
+
+        /* Encodes the next part of the listing, false at the end */
+        private boolean fill() {
+            if (mEnd) {
+                return false;
+            }
+            mLine.setLength(0);
+            if (mIndex < 0) {
+                mLine.append(LISTING_HEADER);
+            } else if (mIndex < mFiles.length) {
+                appendEntry(mFiles[mIndex]);
+            } else if (mIndex == mFiles.length) {
+                mLine.append(LISTING_FOOTER);
+            } else {
+                mEnd = true;
+                if (mEncoded != null) {
+                    store(mKey, mFolderModified, mCreated, mEncoded.toByteArray());
+                    mEncoded = null;
+                }
+                return false;
+            }
+            mIndex++;
+            encode(mLine);
+            if (mEncoded != null) {
+                if (mEncoded.size() + mCount > MAX_CACHED_BYTES) {
+                    mEncoded = null;
+                } else {
+                    mEncoded.write(mBuffer, 0, mCount);
+                }
+            }
+            return true;
+        }
+
+        private void appendEntry(File file) {
+            String path = file.getPath();
+            StructStat st;
+            try {
+                st = Os.stat(path);
+            } catch (ErrnoException e) {
+                /* Removed since the folder was listed */
+                if (V) Log.v(TAG, "stat failed for " + path + " " + e.toString());
+                return;
+            }
+            String permission = "";
+            try {
+                if (Os.access(path, OsConstants.R_OK | OsConstants.W_OK)) {
+                    permission = "RW";
+                }
+            } catch (ErrnoException e) {
+                if (file.canRead()) {
+                    permission = "R";
+                } else if (file.canWrite()) {
+                    permission = "W";
+                }
+            }
+            mLine.append(OsConstants.S_ISDIR(st.st_mode) ? "<folder name=\"" : "<file name=\"");
+            mLine.append(file.getName());
+            mLine.append("\" size=\"").append(st.st_size);
+            mLine.append("\" user-perm=\"").append(permission);
+            mLine.append("\" modified=\"").append(formatModified(st.st_mtime * 1000L));
+            mLine.append("\"/>\r\n");
+            if (V) Log.v(TAG, "Listing entry " + mLine);
+        }
+
+        /* yyyyMMddTHHmm00Z in local time, as the listing has always used */
+        private String formatModified(long millis) {
+            long minute = millis / 60000;
+            if (minute == mLastMinute) {
+                return mLastModified;
+            }
+            mCalendar.setTimeInMillis(millis);
+            StringBuilder sb = new StringBuilder(16);
+            sb.append(mCalendar.get(Calendar.YEAR));
+            appendTwoDigits(sb, mCalendar.get(Calendar.MONTH) + 1);
+            appendTwoDigits(sb, mCalendar.get(Calendar.DAY_OF_MONTH));
+            sb.append('T');
+            appendTwoDigits(sb, mCalendar.get(Calendar.HOUR_OF_DAY));
+            appendTwoDigits(sb, mCalendar.get(Calendar.MINUTE));
+            sb.append("00Z");
+            mLastMinute = minute;
+            mLastModified = sb.toString();
+            return mLastModified;
+        }
+
+        /* UTF-8 encodes the text into mBuffer without an intermediate String */
+        private void encode(CharSequence text) {
+            int length = text.length();
+            if (mBuffer.length < length * 3) {
+                mBuffer = new byte[length * 3];
+            }
+            int n = 0;
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    mBuffer[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    mBuffer[n++] = (byte) (0xc0 | (c >> 6));
+                    mBuffer[n++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, text.charAt(++i));
+                    mBuffer[n++] = (byte) (0xf0 | (cp >> 18));
+                    mBuffer[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    mBuffer[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    mBuffer[n++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    mBuffer[n++] = (byte) '?';
+                } else {
+                    mBuffer[n++] = (byte) (0xe0 | (c >> 12));
+                    mBuffer[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    mBuffer[n++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            mPos = 0;
+            mCount = n;
+        }
+    }
+
+    private static void appendTwoDigits(StringBuilder sb, int value) {
+        if (value < 10) {
+            sb.append('0');
+        }
+        sb.append(value);
+    }
+}
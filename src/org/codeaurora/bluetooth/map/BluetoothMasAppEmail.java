@@ -37,10 +37,12 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemProperties;
 import android.text.format.Time;
 import android.util.Log;
 
 import org.codeaurora.bluetooth.map.MapUtils.BmessageConsts;
+import org.codeaurora.bluetooth.map.MapUtils.BmessageParser;
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils;
 import org.codeaurora.bluetooth.map.MapUtils.EmailUtils;
 import org.codeaurora.bluetooth.map.MapUtils.MapUtils;
@@ -52,10 +54,6 @@ import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMasPushMsgRsp;
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMsgListRsp;
 import org.codeaurora.bluetooth.map.MapUtils.MapUtils.BadRequestException;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -81,12 +79,16 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
     public final boolean V = BluetoothMasService.VERBOSE;
 
     private ContentObserver mObserver;
+    private ContentObserver mMailboxObserver;
     private static final int[] SPECIAL_MAILBOX_TYPES
             = {TYPE_INBOX, TYPE_DRAFT, TYPE_OUTBOX, TYPE_SENT, TYPE_DELETED};
     private static final String[] SPECIAL_MAILBOX_MAP_NAME
             = {INBOX, DRAFT, OUTBOX, SENT, DELETED};
     private HashMap<Integer, String> mSpecialMailboxName = new HashMap<Integer, String>();
 
+    // Set to false to always build the complete folder listing before paging
+    private static final String PROPERTY_PAGED_LISTING = "persist.bt.map.pagedlisting";
+
     public BluetoothMasAppEmail(Context context, Handler handler, BluetoothMns mnsClient,
             int masId, String remoteDeviceName) {
         super(context, handler, MESSAGE_TYPE_EMAIL, mnsClient, masId, remoteDeviceName);
@@ -104,6 +106,15 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
             }
         };
 
+        // Folders were added, renamed or removed
+        mMailboxObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidateFolderCache();
+                super.onChange(selfChange);
+            }
+        };
+
         loadSpecialMailboxName();
         if (V) Log.v(TAG, "BluetoothMasAppEmail Constructor called");
     }
@@ -209,11 +220,15 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
         if (V) Log.v(TAG, "onConnect() registering email account content observer");
         mContext.getContentResolver().registerContentObserver(
                 EmailUtils.EMAIL_ACCOUNT_URI, true, mObserver);
+        invalidateFolderCache();
+        mContext.getContentResolver().registerContentObserver(
+                EmailUtils.EMAIL_BOX_URI, true, mMailboxObserver);
     }
 
     public void onDisconnect() {
         if (V) Log.v(TAG, "onDisconnect() unregistering email account content observer");
         mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mContext.getContentResolver().unregisterContentObserver(mMailboxObserver);
     }
 
     private void disconnect() {
@@ -229,7 +244,7 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
             BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams) {
         BluetoothMsgListRsp bmlr = new BluetoothMsgListRsp();
         String fullPath = (name == null || name.length() == 0) ? mCurrentPath :
-                CommonUtils.getFullPath(name, mContext, getCompleteFolderList(), mCurrentPath);
+                CommonUtils.getFullPath(name, mContext, getFolderList(), mCurrentPath);
         if (fullPath == null) {
             // Child folder not present
             rsp.rsp = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
@@ -274,6 +289,10 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
                         if (SPECIAL_MAILBOX_MAP_NAME[index].equalsIgnoreCase(folderName)) {
                             List<String> folders = EmailUtils.getFoldersForType(mContext,
                                     accountId, SPECIAL_MAILBOX_TYPES[index]);
+                            if (folders.size() == 1 && isPagedListingAllowed()) {
+                                return getPagedListEmailFromFolder(folders.get(0), rsp,
+                                        appParams);
+                            }
                             List<MsgListingConsts> list = null;
                             for (String folder : folders) {
                                 list = getListEmailFromFolder(folder, rsp, appParams);
@@ -286,6 +305,9 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
                     }
                     //Add NON SPECIAL FOLDERS
                     if (index >= SPECIAL_MAILBOX_MAP_NAME.length) {
+                        if (isPagedListingAllowed()) {
+                            return getPagedListEmailFromFolder(folderName, rsp, appParams);
+                        }
                         msgList = getListEmailFromFolder(folderName, rsp, appParams);
                     }
                     rsp.rsp = ResponseCodes.OBEX_HTTP_OK;
@@ -329,27 +351,7 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
         String str = EmailUtils.bldEmailBmsg(emailMsgID, rsp, mContext, mRemoteDeviceName);
         if (V) Log.v(TAG, "\n" + str + "\n");
         if (str != null && (str.length() > 0)) {
-            final String FILENAME = "message" + getMasId();
-            FileOutputStream bos = null;
-            File file = new File(mContext.getFilesDir() + "/" + FILENAME);
-            file.delete();
-
-            try {
-                bos = mContext.openFileOutput(FILENAME, Context.MODE_PRIVATE);
-                bos.write(str.getBytes());
-                bos.flush();
-                bos.close();
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "Unable to write " + FILENAME, e);
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to write " + FILENAME, e);
-            }
-
-            File fileR = new File(mContext.getFilesDir() + "/" + FILENAME);
-            if (fileR.exists() == true) {
-                rsp.file = fileR;
-                rsp.fractionDeliver = 1;
-            } else {
+            if (!setMessageBody(rsp, str)) {
                 rsp.rsp = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
         }
@@ -361,7 +363,7 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
      *
      * @return Response to push command
      */
-    public BluetoothMasPushMsgRsp pushMsg(String name, File file,
+    public BluetoothMasPushMsgRsp pushMsg(String name, PushMsgBody body,
             BluetoothMasAppParams bluetoothMasAppParams) throws BadRequestException {
         BluetoothMasPushMsgRsp rsp = new BluetoothMasPushMsgRsp();
         rsp.response = ResponseCodes.OBEX_HTTP_UNAVAILABLE;
@@ -377,48 +379,32 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
             rsp.response = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             return rsp;
         }
-        byte[] readBytes = null;
-        FileInputStream fis = null;
-        try {
-            fis = new FileInputStream(file);
-            if(file.length() > EMAIL_MAX_PUSHMSG_SIZE){
-                rsp.response = ResponseCodes.OBEX_HTTP_ENTITY_TOO_LARGE;
-                rsp.msgHandle = null;
-                Log.d(TAG,"Message body is larger than the max length allowed");
-                return rsp;
-            } else {
-                readBytes = new byte[(int) file.length()];
-                fis.read(readBytes);
-            }
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, e.getMessage());
+        if (body.length() > EMAIL_MAX_PUSHMSG_SIZE) {
+            rsp.response = ResponseCodes.OBEX_HTTP_ENTITY_TOO_LARGE;
+            rsp.msgHandle = null;
+            Log.d(TAG,"Message body is larger than the max length allowed");
             return rsp;
+        }
+
+        String readStr = "";
+        try {
+            readStr = body.getString();
         } catch (IOException e) {
             Log.e(TAG, e.getMessage());
             return rsp;
-        } catch (SecurityException e) {
-            Log.e(TAG, e.getMessage());
-            return rsp;
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException ei) {
-                    Log.e(TAG, "Error while closing stream"+ ei.toString());
-                }
-            }
         }
-
-        String readStr = "";
+        // The bMessage is parsed once, the type and the fields come from the parser
+        BmessageParser parser;
         String type = "";
         try {
-            readStr = new String(readBytes);
-            type = MapUtils.fetchType(readStr);
+            parser = BmessageParser.parse(readStr);
+            type = parser.getType();
         } catch (Exception e) {
             throw new BadRequestException(e.getMessage());
         }
         if (type != null && type.equalsIgnoreCase("EMAIL")) {
-            rsp = pushMessageEmail(rsp, readStr, name);
+            if (V) Log.v(TAG, " Before fromBmessageemail method:: "+readStr);
+            rsp = pushMessageEmail(rsp, parser, name);
             return rsp;
         }
         rsp.response = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
@@ -590,20 +576,65 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
         return Long.toString(virtualMsgId);
     }
 
+    private boolean isPagedListingAllowed() {
+        // All email filters are part of the provider selection
+        return SystemProperties.getBoolean(PROPERTY_PAGED_LISTING, true);
+    }
+
+    /**
+     * Paged variant of getListEmailFromFolder. ListStartOffset and
+     * MaxListCount are pushed down into the provider query as LIMIT/OFFSET
+     * and the listing size is obtained with a COUNT query.
+     */
+    private BluetoothMsgListRsp getPagedListEmailFromFolder(String folderName,
+            BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams) {
+        BluetoothMsgListRsp bmlr = new BluetoothMsgListRsp();
+        String whereClauseEmail  = EmailUtils.getConditionString(folderName, mContext, appParams,
+                mMasId);
+        final int listingSize = SqlHelper.count(mContext, EmailUtils.EMAIL_MESSAGE_URI,
+                whereClauseEmail, null);
+        final boolean unread = SqlHelper.count(mContext, EmailUtils.EMAIL_MESSAGE_URI,
+                "(" + whereClauseEmail + ") AND flagRead = 0", null) > 0;
+
+        // MaxListCount of 0 only asks for the listing size
+        if (appParams.MaxListCount > 0 && appParams.ListStartOffset < listingSize) {
+            bmlr.msgList = getListEmailFromFolder(folderName, whereClauseEmail,
+                    CommonUtils.getPagedSortOrder("timeStamp desc", appParams.MaxListCount,
+                    appParams.ListStartOffset), rsp, appParams);
+        }
+        if (D) Log.d(TAG, "getPagedListEmailFromFolder: " + bmlr.msgList.size() + " of "
+                + listingSize + " msgs");
+
+        rsp.msgListingSize = listingSize;
+        rsp.newMessage = (byte) (unread ? 1 : 0);
+        rsp.rsp = ResponseCodes.OBEX_HTTP_OK;
+        bmlr.messageListingSize = listingSize;
+        bmlr.rsp = rsp;
+        bmlr.paged = true;
+        return bmlr;
+    }
+
     private List<MsgListingConsts> getListEmailFromFolder(String folderName,
             BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams) {
+        String whereClauseEmail  = EmailUtils.getConditionString(folderName, mContext, appParams,
+                mMasId);
+        return getListEmailFromFolder(folderName, whereClauseEmail, "timeStamp desc", rsp,
+                appParams);
+    }
+
+    private List<MsgListingConsts> getListEmailFromFolder(String folderName,
+            String whereClauseEmail, String sortOrder, BluetoothMasMessageListingRsp rsp,
+            BluetoothMasAppParams appParams) {
         List<MsgListingConsts> msgList = new ArrayList<MsgListingConsts>();
         String urlEmail = "content://com.android.email.provider/message";
         Uri uriEmail = Uri.parse(urlEmail);
         ContentResolver crEmail = mContext.getContentResolver();
 
-        String whereClauseEmail  = EmailUtils.getConditionString(folderName, mContext, appParams,
-                mMasId);
-
         if (V){
                 Log.v(TAG, "## whereClauseEmail ##:" + whereClauseEmail);
         }
-        Cursor cursor = crEmail.query(uriEmail, null, whereClauseEmail, null, "timeStamp desc");
+        Cursor cursor = crEmail.query(uriEmail, getListingProjection(appParams),
+                whereClauseEmail, null, sortOrder);
 
         if (cursor != null && V){
                 Log.v(TAG, "move to First" + cursor.moveToFirst());
@@ -612,6 +643,7 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
                 Log.v(TAG, "move to Liststartoffset"
                     + cursor.moveToPosition(appParams.ListStartOffset));
         }
+        long[] ids = null;
         if (cursor != null && cursor.moveToFirst()) {
             int idInd = cursor.getColumnIndex("_id");
             int displayNameIndex = cursor.getColumnIndex("displayName");
@@ -621,6 +653,7 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
             int readInd = cursor.getColumnIndex("flagRead");
             int subjectInd = cursor.getColumnIndex("subject");
             int replyToInd = cursor.getColumnIndex("replyToList");
+            ids = new long[cursor.getCount()];
 
             do {
                 /*
@@ -630,15 +663,16 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
                 if (V) Log.v(TAG, " msgListSize " + rsp.msgListingSize);
                 rsp.msgListingSize++;
 
-                String subject = cursor.getString(subjectInd);
+                // Columns that are not needed for the ParameterMask are not queried
+                String subject = getString(cursor, subjectInd);
                 String timestamp = cursor.getString(dateInd);
-                String senderName = cursor.getString(displayNameIndex);
-                String senderAddressing = cursor.getString(fromIndex);
-                String recipientName = cursor.getString(toIndex);
-                String recipientAddressing = cursor.getString(toIndex);
+                String senderName = getString(cursor, displayNameIndex);
+                String senderAddressing = getString(cursor, fromIndex);
+                String recipientName = getString(cursor, toIndex);
+                String recipientAddressing = recipientName;
                 String msgId = cursor.getString(idInd);
                 String readStatus = cursor.getString(readInd);
-                String replyToStr = cursor.getString(replyToInd);
+                String replyToStr = getString(cursor, replyToInd);
 
                 /*
                  * Don't want the listing; just send the listing size after
@@ -650,8 +684,7 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
                  * more than MaxListCount record(s).
                  */
 
-                MsgListingConsts emailMsg = new MsgListingConsts();
-                emailMsg = EmailUtils.bldEmailMsgLstItem(mContext, folderName, appParams,
+                MsgListingConsts emailMsg = EmailUtils.bldEmailMsgLstItem(folderName, appParams,
                         subject, timestamp, senderName, senderAddressing,
                         recipientName, recipientAddressing,
                         msgId, readStatus, replyToStr, OFFSET_START);
@@ -660,15 +693,54 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
                 if ((rsp.newMessage == 0) && (cursor.getInt(readInd) == 0)) {
                     rsp.newMessage = 1;
                 }
+                ids[msgList.size()] = cursor.getLong(idInd);
                 msgList.add(emailMsg);
             } while (cursor.moveToNext());
         }
         if (cursor != null) {
             cursor.close();
         }
+        if (ids != null) {
+            EmailUtils.setListingSizesEmail(mContext, appParams, msgList, ids);
+        }
         return msgList;
     }
 
+    /**
+     * Returns the message columns needed to build the listing entries for
+     * the ParameterMask of the request.
+     */
+    private static String[] getListingProjection(BluetoothMasAppParams appParams) {
+        final long mask = appParams.ParameterMask;
+        ArrayList<String> projection = new ArrayList<String>();
+        projection.add("_id");
+        projection.add("timeStamp");
+        projection.add("flagRead");
+        if ((mask & EmailUtils.BIT_SUBJECT) != 0) {
+            projection.add("subject");
+        }
+        if ((mask & EmailUtils.BIT_SENDER_NAME) != 0) {
+            projection.add("displayName");
+        }
+        // The sender address is the fallback for the reply-to address
+        if ((mask & (EmailUtils.BIT_SENDER_ADDRESSING
+                | EmailUtils.BIT_REPLYTO_ADDRESSING)) != 0) {
+            projection.add("fromList");
+        }
+        if ((mask & (EmailUtils.BIT_RECIPIENT_NAME
+                | EmailUtils.BIT_RECIPIENT_ADDRESSING)) != 0) {
+            projection.add("toList");
+        }
+        if ((mask & EmailUtils.BIT_REPLYTO_ADDRESSING) != 0) {
+            projection.add("replyToList");
+        }
+        return projection.toArray(new String[projection.size()]);
+    }
+
+    private static String getString(Cursor cursor, int index) {
+        return index == -1 ? null : cursor.getString(index);
+    }
+
     private boolean isAllowedEmailFolderForPush(String folderName) {
         if (DRAFT.equalsIgnoreCase(folderName) || OUTBOX.equalsIgnoreCase(folderName)) {
             return true;
@@ -683,9 +755,7 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
     }
 
     private BluetoothMasPushMsgRsp pushMessageEmail(BluetoothMasPushMsgRsp rsp,
-                String readStr, String name) throws BadRequestException {
-        if (V) Log.v(TAG, " Before fromBmessageemail method:: "+readStr);
-
+                BmessageParser parser, String name) throws BadRequestException {
         String fullPath = (name == null || name.length() == 0)
                 ? mCurrentPath : mCurrentPath + "/" + name;
         String splitStrings[] = fullPath.split("/");
@@ -702,7 +772,7 @@ public class BluetoothMasAppEmail extends BluetoothMasAppIf {
             folderName = splitStrings[tmp - 1];
         }
 
-        BmessageConsts bMsg = MapUtils.fromBmessageEmail(mContext, readStr, mMasId, folderName);
+        BmessageConsts bMsg = MapUtils.fromBmessageEmail(mContext, parser, mMasId, folderName);
         String address = bMsg.getRecipientVcard_email();
         String text = bMsg.getBody_msg();
         String subject = bMsg.getSubject();
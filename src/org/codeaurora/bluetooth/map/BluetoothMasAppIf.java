@@ -34,6 +34,7 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemProperties;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.provider.ContactsContract.CommonDataKinds.Email;
@@ -41,8 +42,10 @@ import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.codeaurora.bluetooth.map.MapUtils.ContactCache;
 import org.codeaurora.bluetooth.map.MapUtils.MapUtils;
 import org.codeaurora.bluetooth.map.MapUtils.MsgListingConsts;
+import org.codeaurora.bluetooth.map.MapUtils.MsgListingFilter;
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageListingRsp;
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageRsp;
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMsgListRsp;
@@ -54,6 +57,8 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 import javax.obex.ResponseCodes;
@@ -78,6 +83,11 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
 
     protected static final String INTERNAL_ERROR = "ERROR";
 
+    // Set to true to write message listings to a file instead of streaming them
+    private static final String PROPERTY_LISTING_TO_FILE = "persist.bt.map.listingtofile";
+    // Set to true to write bMessages to a file instead of keeping them in memory
+    private static final String PROPERTY_MSG_TO_FILE = "persist.bt.map.msgtofile";
+
     // IOP work around for BMW carkit
     // The connection is dropped by the carkit When GetMessagesListing results empty list
     // So, we ignore improper filtering request by messageType.
@@ -95,6 +105,13 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
     protected final long OFFSET_START;
     protected final long OFFSET_END;
 
+    // Complete folder list and encoded folder listing entries per path, valid
+    // until invalidateFolderCache is called
+    private final HashMap<String, List<String>> mFolderListCache =
+            new HashMap<String, List<String>>();
+    private final HashMap<String, byte[][]> mFolderListingCache =
+            new HashMap<String, byte[][]>();
+
     public BluetoothMasAppIf(Context context, Handler handler, int supportedMessageTypes,
             BluetoothMns mnsClient, int masId, String remoteDeviceName) {
         mContext = context;
@@ -116,6 +133,36 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
      */
     protected abstract List<String> getCompleteFolderList();
 
+    /**
+     * Returns the folder list at mCurrentPath, built by getCompleteFolderList
+     * on first use and cached until invalidateFolderCache is called. The
+     * returned list must not be modified.
+     */
+    protected List<String> getFolderList() {
+        final String path = mCurrentPath;
+        synchronized (mFolderListCache) {
+            List<String> list = mFolderListCache.get(path);
+            if (list == null) {
+                list = Collections.unmodifiableList(getCompleteFolderList());
+                mFolderListCache.put(path, list);
+                if (V) Log.v(TAG, "getFolderList cached " + list.size() + " for " + path);
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Drops the cached folder lists and listings, e.g. when a folder was
+     * added, renamed or removed.
+     */
+    protected void invalidateFolderCache() {
+        if (V) Log.v(TAG, "invalidateFolderCache");
+        synchronized (mFolderListCache) {
+            mFolderListCache.clear();
+            mFolderListingCache.clear();
+        }
+    }
+
     /**
      * Check the path to a given folder. If setPathFlag is set,
      * set the path to the new value. Else, just check if the path
@@ -184,7 +231,7 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
             break;
         //Handle folders and subfolders
         default:
-            List<String> completeFolderList = getCompleteFolderList();
+            List<String> completeFolderList = getFolderList();
             for (String FolderName : completeFolderList) {
                 //added second condition for gmail sent folder
                 if (FolderName.equalsIgnoreCase(name)) {
@@ -225,53 +272,55 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
             return 1;
         }
         //Add folders and subfolders
-        List<String> completeFolderList = getCompleteFolderList();
+        List<String> completeFolderList = getFolderList();
         return completeFolderList.size();
 
     }
 
     /**
-     * Get the XML listing of the folders at CurrenthPath
+     * Get the XML listing of the folders at CurrenthPath. The UTF-8 encoded
+     * folder entries are kept per path and the requested window is cut
+     * from them, so repeated requests while browsing are served from memory.
      *
      * @return XML listing of the folders
      */
-    public String folderListing(BluetoothMasAppParams appParam) {
+    public byte[] folderListing(BluetoothMasAppParams appParam) {
         if (V) Log.v(TAG, "folderListing called, current path " + mCurrentPath);
 
+        byte[][] entries;
+        synchronized (mFolderListCache) {
+            entries = mFolderListingCache.get(mCurrentPath);
+            if (entries == null) {
+                entries = MapUtils.folderListingEntries(getListedFolders());
+                mFolderListingCache.put(mCurrentPath, entries);
+            } else if (V) {
+                Log.v(TAG, "folderListing served from cache");
+            }
+        }
+        return MapUtils.folderListingXML(entries, appParam.ListStartOffset,
+                appParam.MaxListCount);
+    }
+
+    /* All folders listed at mCurrentPath, before the offset and count window */
+    private List<String> getListedFolders() {
         List<String> list = new ArrayList<String>();
 
         if (mCurrentPath == null) {
             // at root, only telecom folder should be present
-            if (appParam.ListStartOffset == 0) {
-                list.add(TELECOM);
-            }
+            list.add(TELECOM);
         }else  if (mCurrentPath.equals(TELECOM)) {
             // at root -> telecom, only msg folder should be present
-            if (appParam.ListStartOffset == 0) {
-                list.add(MSG);
-            }
+            list.add(MSG);
         } else  if (!(mCurrentPath.equals(TELECOM + "/" + MSG + "/" + INBOX) ||
                 mCurrentPath.equals(TELECOM + "/" + MSG + "/" + OUTBOX) ||
                 mCurrentPath.equals(TELECOM + "/" + MSG + "/" + DRAFT) ||
                 mCurrentPath.equals(TELECOM + "/" + MSG + "/" + DELETED) ||
                 mCurrentPath.equals(TELECOM + "/" + MSG + "/" + SENT))) {
             //Add folders and subfolders NOT for SPECIAL FOLDERS
-            int offset = 0;
-            int added = 0;
-            List<String> completeFolderList = getCompleteFolderList();
-            for (String Folder : completeFolderList) {
-                offset++;
-                if ((offset > appParam.ListStartOffset)
-                        && (added < appParam.MaxListCount)) {
-                    list.add(Folder);
-                    if (V) Log.v(TAG, "folderListing AddFolder " + Folder);
-                    added++;
-                }
-            }
+            list.addAll(getFolderList());
+            if (V) Log.v(TAG, "folderListing folders " + list);
         }
-
-        return MapUtils.folderListingXML(list);
-
+        return list;
     }
 
     static final int PHONELOOKUP_ID_COLUMN_INDEX = 0;
@@ -280,7 +329,7 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
 
     static final int EMAIL_DATA_COLUMN_INDEX = 0;
 
-    private List<VcardContent> mVcardList = new ArrayList<VcardContent>();;
+    private final ContactCache mContactCache = new ContactCache();
     protected VcardListContentObserver mVcardListObserver = new VcardListContentObserver();
     protected VcardContent getVcardContent(String phoneAddress) {
         VcardContent vCard = new VcardContent();
@@ -303,6 +352,7 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
                     .getString(PHONELOOKUP_LOOKUP_KEY_COLUMN_INDEX);
             vCard.name = cursorContacts
                     .getString(PHONELOOKUP_DISPLAY_NAME_COLUMN_INDEX);
+            vCard.contactId = contactId;
 
             Uri lookUpUri = Contacts.getLookupUri(contactId, lookupKey);
             String Id = lookUpUri.getLastPathSegment();
@@ -332,79 +382,66 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
 
         @Override
         public void onChange(boolean selfChange) {
-            Log.v(TAG, "Clear VcardList");
-            if(!mVcardList.isEmpty())
-              mVcardList.clear();
+            if (V) Log.v(TAG, "Contacts changed, updating contact cache");
+            mContactCache.onContactsChanged(mContext.getContentResolver());
         }
    }
 
-
     /**
-     * Check if the entry is not to be filtered out (allowed)
+     * Get the contact details for the given phone number, looking them up in
+     * the contacts provider only if they are not cached yet
      */
-    protected boolean allowEntry(String phoneAddress, String filterString) {
-        boolean found = false;
-        VcardContent foundEntry = null;
-        for (VcardContent elem : mVcardList) {
-            if (elem.tel.contains(phoneAddress)) {
-                found = true;
-                foundEntry = elem;
+    protected VcardContent getCachedVcardContent(String phoneAddress) {
+        VcardContent vCard = mContactCache.get(phoneAddress);
+        if (vCard == null) {
+            vCard = getVcardContent(phoneAddress);
+            mContactCache.put(phoneAddress, vCard);
+            if (V) {
+                Log.v(TAG, " NEW VCARD ADDED " + vCard.tel + vCard.name
+                        + vCard.email);
             }
         }
-        if (found == false) {
-            VcardContent vCard = getVcardContent(phoneAddress);
-            if (vCard != null) {
-                mVcardList.add(vCard);
-                found = true;
-                foundEntry = vCard;
-                if (V) {
-                    Log.v(TAG, " NEW VCARD ADDED " + vCard.tel + vCard.name
-                            + vCard.email);
-                }
-            } else {
-                if (V) Log.v(TAG, "VCARD NOT FOUND ERROR");
-            }
+        return vCard;
+    }
+
+
+    /**
+     * Check if the entry is not to be filtered out (allowed)
+     * @param phoneAddress address of the remote party
+     * @param filter compiled filter of the listing
+     * @param outgoing true if the owner is the originator of the message
+     */
+    protected boolean allowEntry(String phoneAddress, MsgListingFilter filter,
+            boolean outgoing) {
+        if (phoneAddress == null) {
+            return false;
         }
+        VcardContent foundEntry = getCachedVcardContent(phoneAddress);
 
-        if (found == true) {
-            String regExp = filterString.replace("*", ".*[0-9A-Za-z].*");
-            if ((foundEntry.tel.matches(".*"+regExp+".*"))
-                    || (foundEntry.name.matches(".*"+regExp+".*"))
-                    || (foundEntry.email.matches(".*"+regExp+".*"))) {
-                return true;
-            }
+        if (foundEntry != null) {
+            return filter.matchesRemoteContact(outgoing, foundEntry.tel,
+                    foundEntry.name, foundEntry.email);
         }
         return false;
     }
 
+    /**
+     * Compile the originator and recipient filters of a listing request
+     */
+    protected MsgListingFilter getListingFilter(BluetoothMasAppParams appParams) {
+        return new MsgListingFilter(appParams, getOwnerName(), getOwnerNumber());
+    }
+
     /**
      * Get the contact name for the given phone number
      */
     protected String getContactName(String phoneNumber) {
-        boolean found = false;
-        VcardContent foundEntry = null;
         if(phoneNumber == null){
             return null;
         }
         if(V) Log.v(TAG, "getContactName " + phoneNumber);
-        for (VcardContent elem : mVcardList) {
-            if (elem.tel == null){
-                continue;
-            }
-            if (elem.tel.contains(phoneNumber)) {
-                found = true;
-                foundEntry = elem;
-                break;
-            }
-        }
-        if (found == false) {
-            foundEntry = getVcardContent(phoneNumber);
-            if (foundEntry != null) {
-                mVcardList.add(foundEntry);
-                found = true;
-            }
-        }
-        if (found == true) {
+        VcardContent foundEntry = getCachedVcardContent(phoneNumber);
+        if (foundEntry != null) {
             return foundEntry.name;
         }
 
@@ -492,25 +529,36 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
             return rsp;
         }
         msgList = specificRsp.msgList;
-        // Process the list based on MaxListCount and list offset
-        String str = null;
-        int numOfItems = msgList.size();
-        int msgDelta = numOfItems - appParams.ListStartOffset;
-        int startIdx = appParams.ListStartOffset;
-        int stopIdx = 0;
-        if (msgDelta <= 0) {
-            List<MsgListingConsts> msgSubList = new ArrayList<MsgListingConsts>();;
-            str = MapUtils.messageListingXML(msgSubList);
+        List<MsgListingConsts> msgSubList;
+        if (specificRsp.paged) {
+            // The provider queries already applied ListStartOffset and MaxListCount
+            msgSubList = msgList;
         } else {
-            if (msgDelta <= appParams.MaxListCount) {
-                stopIdx = startIdx + msgDelta;
+            // Process the list based on MaxListCount and list offset
+            int numOfItems = msgList.size();
+            int msgDelta = numOfItems - appParams.ListStartOffset;
+            int startIdx = appParams.ListStartOffset;
+            int stopIdx = 0;
+            if (msgDelta <= 0) {
+                msgSubList = new ArrayList<MsgListingConsts>();
             } else {
-                stopIdx = startIdx + appParams.MaxListCount;
+                if (msgDelta <= appParams.MaxListCount) {
+                    stopIdx = startIdx + msgDelta;
+                } else {
+                    stopIdx = startIdx + appParams.MaxListCount;
+                }
+                msgSubList = msgList.subList(startIdx, stopIdx);
             }
-            List<MsgListingConsts> msgSubList = msgList.subList(startIdx,
-                    stopIdx);
-            str = MapUtils.messageListingXML(msgSubList);
         }
+
+        if (!SystemProperties.getBoolean(PROPERTY_LISTING_TO_FILE, false)) {
+            // BluetoothMasObexServer encodes the listing straight into the OBEX stream
+            rsp.msgList = msgSubList;
+            rsp.rsp = ResponseCodes.OBEX_HTTP_OK;
+            return rsp;
+        }
+
+        String str = MapUtils.messageListingXML(msgSubList);
         if (str == null) {
             rsp.rsp = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             return rsp;
@@ -559,6 +607,44 @@ public abstract class BluetoothMasAppIf implements IBluetoothMasApp {
     protected abstract BluetoothMasMessageRsp getMessageSpecific(long msgHandle,
             BluetoothMasMessageRsp rsp, BluetoothMasAppParams bluetoothMasAppParams);
 
+    /**
+     * Attach a bMessage to the GetMessage response. The bMessage is kept in
+     * memory and written straight to the OBEX stream unless the file path is
+     * selected for debugging.
+     * @return true if the bMessage is attached to rsp
+     */
+    protected boolean setMessageBody(BluetoothMasMessageRsp rsp, String bmsg) {
+        if (!SystemProperties.getBoolean(PROPERTY_MSG_TO_FILE, false)) {
+            rsp.body = bmsg.getBytes();
+            rsp.fractionDeliver = 1;
+            return true;
+        }
+
+        final String FILENAME = "message" + getMasId();
+        FileOutputStream bos = null;
+        File file = new File(mContext.getFilesDir() + "/" + FILENAME);
+        file.delete();
+
+        try {
+            bos = mContext.openFileOutput(FILENAME, Context.MODE_PRIVATE);
+            bos.write(bmsg.getBytes());
+            bos.flush();
+            bos.close();
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Unable to write " + FILENAME, e);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + FILENAME, e);
+        }
+
+        File fileR = new File(mContext.getFilesDir() + "/" + FILENAME);
+        if (fileR.exists() == true) {
+            rsp.file = fileR;
+            rsp.fractionDeliver = 1;
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Get the message for the given message handle
      *
@@ -29,13 +29,18 @@ package org.codeaurora.bluetooth.map;
 
 import android.app.ActivityManager;
 import android.bluetooth.BluetoothDevice;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.telephony.SmsManager;
 import android.telephony.SmsMessage;
 import android.telephony.TelephonyManager;
@@ -45,10 +50,16 @@ import android.util.Log;
 import android.util.TimeFormatException;
 
 import org.codeaurora.bluetooth.map.MapUtils.BmessageConsts;
+import org.codeaurora.bluetooth.map.MapUtils.BmessageParser;
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils;
 import org.codeaurora.bluetooth.map.MapUtils.MapUtils;
+import org.codeaurora.bluetooth.map.MapUtils.MmsListingQuery;
+import org.codeaurora.bluetooth.map.MapUtils.MmsListingQuery.MmsRow;
 import org.codeaurora.bluetooth.map.MapUtils.MsgListingConsts;
+import org.codeaurora.bluetooth.map.MapUtils.MsgHandleIndex;
+import org.codeaurora.bluetooth.map.MapUtils.MsgListingFilter;
 import org.codeaurora.bluetooth.map.MapUtils.SmsMmsUtils;
+import org.codeaurora.bluetooth.map.MapUtils.SqlHelper;
 import org.codeaurora.bluetooth.map.MapUtils.SortMsgListByDate;
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageListingRsp;
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageRsp;
@@ -58,10 +69,6 @@ import org.codeaurora.bluetooth.map.MapUtils.MapUtils.BadRequestException;
 import org.codeaurora.bluetooth.map.MapUtils.SmsMmsUtils.VcardContent;
 import android.provider.ContactsContract.PhoneLookup;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -94,6 +101,18 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
     private static final String INTERESTED_MESSAGE_TYPE_CLAUSE =
                 "(m_type = 128 OR m_type = 132 OR m_type = 130)";
 
+    // Set to false to fall back to the per message MMS listing queries
+    private static final String PROPERTY_MMS_BATCH_LISTING = "persist.bt.map.mmsbatchlisting";
+    // Set to false to always build the complete folder listing before paging
+    private static final String PROPERTY_PAGED_LISTING = "persist.bt.map.pagedlisting";
+
+    // Type and thread of the listed and fetched messages, keyed by handle
+    private final MsgHandleIndex mHandleIndex = new MsgHandleIndex();
+
+    // Read status changes are written in batches, flushed before any read back
+    private final MsgStatusBatch mStatusBatch =
+            new MsgStatusBatch(mContext.getContentResolver());
+
     public BluetoothMasAppSmsMms(Context context, Handler handler, BluetoothMns mnsClient,
             int masId, String remoteDeviceName) {
         super(context, handler, MESSAGE_TYPE_SMS_MMS, mnsClient, masId, remoteDeviceName);
@@ -152,16 +171,22 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
     }
 
     public void onDisconnect() {
+        mStatusBatch.flush();
+        mHandleIndex.clear();
         cleanUp();
     }
 
     @Override
     protected BluetoothMsgListRsp msgListingSpecific(List<MsgListingConsts> msgList, String name,
             BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams) {
+        mStatusBatch.flush();
         BluetoothMsgListRsp bmlr = new BluetoothMsgListRsp();
         boolean validFilter = false;
+        // SMS entries are listed first; only a legacy MMS listing is unordered
+        int smsCount = 0;
+        boolean mmsSorted = true;
         String fullPath = (name == null || name.length() == 0) ? mCurrentPath :
-                CommonUtils.getFullPath(name, mContext, getCompleteFolderList(), mCurrentPath);
+                CommonUtils.getFullPath(name, mContext, getFolderList(), mCurrentPath);
         if (fullPath == null) {
             // Child folder not present
             rsp.rsp = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
@@ -200,21 +225,27 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
 
             if (appParams.FilterPriority == 0 || appParams.FilterPriority == 0x02) {
                 final int phoneType = TelephonyManager.getDefault().getPhoneType();
-                if ((appParams.FilterMessageType & 0x03) == 0 ||
+                final boolean listSms = (appParams.FilterMessageType & 0x03) == 0 ||
                         ((appParams.FilterMessageType & 0x01) == 0 &&
                                 phoneType == TelephonyManager.PHONE_TYPE_GSM) ||
                         ((appParams.FilterMessageType & 0x02) == 0 &&
-                                phoneType == TelephonyManager.PHONE_TYPE_CDMA)) {
+                                phoneType == TelephonyManager.PHONE_TYPE_CDMA);
+                final boolean listMms = (appParams.FilterMessageType & 0x08) == 0;
+                if ((listSms || listMms) && isPagedListingAllowed(appParams)) {
+                    return msgListingPaged(msgList, folderName, rsp, appParams, listSms, listMms);
+                }
+                if (listSms) {
                     validFilter = true;
                     BluetoothMsgListRsp bmlrSms = msgListSms(msgList, folderName,
                             rsp, appParams);
                     bmlr.msgList = bmlrSms.msgList;
                     bmlr.rsp = bmlrSms.rsp;
                 }
+                smsCount = msgList.size();
                 // Now that all of the SMS messages have been listed. Look for
                 // any
                 // MMS messages and provide them
-                if((appParams.FilterMessageType & 0x08) == 0) {
+                if (listMms) {
                     Log.v(TAG, "About to retrieve msgListMms ");
                     // MMS draft folder is called //mms/drafts not //mms/draft like
                     // SMS
@@ -222,7 +253,13 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                     if (DRAFT.equalsIgnoreCase(folderName)) {
                         folderName = DRAFTS;
                     }
-                    BluetoothMsgListRsp bmlrMms = msgListMms(msgList, folderName, rsp, appParams);
+                    BluetoothMsgListRsp bmlrMms;
+                    if (SystemProperties.getBoolean(PROPERTY_MMS_BATCH_LISTING, true)) {
+                        bmlrMms = msgListMmsBatched(msgList, folderName, rsp, appParams);
+                    } else {
+                        bmlrMms = msgListMms(msgList, folderName, rsp, appParams);
+                        mmsSorted = false;
+                    }
                     bmlr.msgList = bmlrMms.msgList;
                     bmlr.rsp = bmlrMms.rsp;
                 }
@@ -241,10 +278,91 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
             }
         }
 
-        // Now that the message list exists, we can sort the list by date
-        Collections.sort(bmlr.msgList, new SortMsgListByDate());
+        // Now that the message list exists, we can order the list by date.
+        // Both runs come from "date desc" queries and only need a merge.
+        if (mmsSorted) {
+            bmlr.msgList = SortMsgListByDate.mergeByDate(bmlr.msgList, smsCount,
+                    0, bmlr.msgList.size());
+        } else {
+            Collections.sort(bmlr.msgList, new SortMsgListByDate());
+        }
+        rsp.rsp = ResponseCodes.OBEX_HTTP_OK;
+        bmlr.rsp = rsp;
+        return bmlr;
+    }
+
+    /**
+     * The paged listing can only be used when every filter is part of the
+     * provider selection. Originator and recipient filters are matched
+     * against contact data per message and need the complete folder.
+     */
+    private boolean isPagedListingAllowed(BluetoothMasAppParams appParams) {
+        if (!SystemProperties.getBoolean(PROPERTY_PAGED_LISTING, true)
+                || !SystemProperties.getBoolean(PROPERTY_MMS_BATCH_LISTING, true)) {
+            return false;
+        }
+        return (appParams.FilterOriginator == null || appParams.FilterOriginator.length() == 0)
+                && (appParams.FilterRecipient == null || appParams.FilterRecipient.length() == 0);
+    }
+
+    /**
+     * Paged variant of the SMS/MMS message listing. ListStartOffset and
+     * MaxListCount are pushed down into the provider queries as LIMIT/OFFSET
+     * and the listing size is obtained with COUNT queries, so the work done
+     * is proportional to the requested window and not to the folder size.
+     */
+    private BluetoothMsgListRsp msgListingPaged(List<MsgListingConsts> msgList, String folderName,
+            BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams,
+            boolean listSms, boolean listMms) {
+        BluetoothMsgListRsp bmlr = new BluetoothMsgListRsp();
+        // MMS draft folder is called //mms/drafts not //mms/draft like SMS
+        final String mmsFolderName = DRAFT.equalsIgnoreCase(folderName) ? DRAFTS : folderName;
+        int listingSize = 0;
+        boolean unread = false;
+
+        if (listSms) {
+            String whereClause = SmsMmsUtils.getConditionStringSms(folderName, appParams);
+            listingSize += SqlHelper.count(mContext, SmsMmsUtils.SMS_URI, whereClause, null);
+            unread |= SqlHelper.count(mContext, SmsMmsUtils.SMS_URI,
+                    "(" + whereClause + ") AND read=0", null) > 0;
+        }
+        if (listMms) {
+            String whereClause = bldMmsWhereClause(appParams,
+                    SmsMmsUtils.getFolderTypeMms(mmsFolderName));
+            listingSize += SqlHelper.count(mContext, SmsMmsUtils.MMS_URI, whereClause, null);
+            unread |= SqlHelper.count(mContext, SmsMmsUtils.MMS_URI,
+                    "(" + whereClause + ") AND read=0", null) > 0;
+        }
+
+        // MaxListCount of 0 only asks for the listing size
+        if (appParams.MaxListCount > 0 && appParams.ListStartOffset < listingSize) {
+            // When both SMS and MMS are listed the window can only be cut after merging
+            final boolean merge = listSms && listMms;
+            final int limit = merge ? appParams.ListStartOffset + appParams.MaxListCount
+                    : appParams.MaxListCount;
+            final int offset = merge ? 0 : appParams.ListStartOffset;
+            final String sortOrder = CommonUtils.getPagedSortOrder("date desc", limit, offset);
+            if (listSms) {
+                msgListSms(msgList, folderName, rsp, appParams, sortOrder);
+            }
+            final int smsCount = msgList.size();
+            if (listMms) {
+                msgListMmsBatched(msgList, mmsFolderName, rsp, appParams, sortOrder);
+            }
+            if (merge) {
+                msgList = SortMsgListByDate.mergeByDate(msgList, smsCount,
+                        appParams.ListStartOffset, appParams.MaxListCount);
+            }
+        }
+        if (D) Log.d(TAG, "msgListingPaged: " + msgList.size() + " of " + listingSize + " msgs");
+
+        rsp.msgListingSize = listingSize;
+        rsp.newMessage = (byte) (unread ? 1 : 0);
         rsp.rsp = ResponseCodes.OBEX_HTTP_OK;
+        bmlr.messageListingSize = listingSize;
         bmlr.rsp = rsp;
+        bmlr.msgList = msgList;
+        bmlr.paged = true;
         return bmlr;
     }
 
@@ -252,6 +370,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
     protected BluetoothMasMessageRsp getMessageSpecific(long msgHandle, BluetoothMasMessageRsp rsp,
             BluetoothMasAppParams bluetoothMasAppParams) {
         final long handle = Long.valueOf(msgHandle);
+        mStatusBatch.flush();
 
         if (handle >= MMS_OFFSET_START) { // MMS
             /*
@@ -273,7 +392,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
      *
      * @return Response to push command
      */
-    public BluetoothMasPushMsgRsp pushMsg(String name, File file,
+    public BluetoothMasPushMsgRsp pushMsg(String name, PushMsgBody body,
             BluetoothMasAppParams bluetoothMasAppParams) throws BadRequestException {
         BluetoothMasPushMsgRsp rsp = new BluetoothMasPushMsgRsp();
         rsp.response = ResponseCodes.OBEX_HTTP_UNAVAILABLE;
@@ -292,43 +411,26 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         am.getMemoryInfo(outInfo);
         final long allowedMem = outInfo.availMem - outInfo.threshold;
 
-        byte[] readBytes = null;
-        FileInputStream fis = null;
-        try {
-            fis = new FileInputStream(file);
-            if(file.length() > allowedMem){
-                rsp.response = ResponseCodes.OBEX_HTTP_ENTITY_TOO_LARGE;
-                rsp.msgHandle = null;
-                Log.d(TAG,"Message body is larger than the max length allowed");
-                return rsp;
-            } else {
-                readBytes = new byte[(int) file.length()];
-                fis.read(readBytes);
-            }
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, e.getMessage());
+        if (body.length() > allowedMem) {
+            rsp.response = ResponseCodes.OBEX_HTTP_ENTITY_TOO_LARGE;
+            rsp.msgHandle = null;
+            Log.d(TAG,"Message body is larger than the max length allowed");
             return rsp;
+        }
+
+        String readStr = "";
+        try {
+            readStr = body.getString();
         } catch (IOException e) {
             Log.e(TAG, e.getMessage());
             return rsp;
-        } catch (SecurityException e) {
-            Log.e(TAG, e.getMessage());
-            return rsp;
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error while closing stream"+ e.toString());
-                }
-            }
         }
-
-        String readStr = "";
+        // The bMessage is parsed once, the type and the fields come from the parser
+        BmessageParser parser;
         String type = "";
         try {
-            readStr = new String(readBytes);
-            type = MapUtils.fetchType(readStr);
+            parser = BmessageParser.parse(readStr);
+            type = parser.getType();
         } catch (Exception e) {
             throw new BadRequestException(e.getMessage());
         }
@@ -337,7 +439,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
             return rsp;
         }
         if (SMS_GSM.equalsIgnoreCase(type) || SMS_CDMA.equalsIgnoreCase(type)) {
-            return pushMessageSms(rsp, readStr, name, bluetoothMasAppParams);
+            return pushMessageSms(rsp, parser, name, bluetoothMasAppParams);
         } else if (MMS.equals(type) && ((int)bluetoothMasAppParams.Charset != 0)) {
             // If the message to be pushed is an MMS message, extract any text,
             // discard
@@ -352,7 +454,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                  * then send the message out to the network the next time it is
                  * scheduled to run
                  */
-                rsp = pushMessageMms(rsp, readStr, name);
+                rsp = pushMessageMms(rsp, parser, name);
                 return rsp;
             }
         }
@@ -439,25 +541,6 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         return folder;
     }
 
-    /**
-     * Get the folder name (MAP representation) based on the message Handle
-     */
-    private String getContainingFolder(long msgHandle) {
-        String folder = null;
-        Cursor cr = mContext.getContentResolver().query(
-                Uri.parse("content://sms/" + msgHandle),
-                new String[] { "_id", "type", "thread_id"}, null, null, null);
-        if (cr != null) {
-            if (cr.getCount() > 0) {
-                cr.moveToFirst();
-                folder = getMAPFolder(cr.getString(cr.getColumnIndex("type")),
-                        cr.getString(cr.getColumnIndex("thread_id")));
-            }
-            cr.close();
-        }
-        return folder;
-    }
-
     /**
      * Get the SMS Deliver PDU for the given SMS
      */
@@ -627,35 +710,78 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         return splitStr[3];
     }
 
-    private void updateMMSThreadId(long handle, int threadId) {
+    private int updateMMSThreadId(long handle, int threadId) {
         ContentValues values = new ContentValues();
         values.put("thread_id", threadId);
-        mContext.getContentResolver().update(Uri.parse("content://mms/" + handle),
+        int rows = mContext.getContentResolver().update(Uri.parse("content://mms/" + handle),
                 values, null, null);
+        onThreadUpdated(handle + MMS_OFFSET_START, rows, threadId);
+        return rows;
     }
 
-    private void deleteMMS(long handle) {
-        Cursor cr = mContext.getContentResolver().query(Uri.parse("content://mms/" + handle),
-                null, null, null, null);
-        if (cr != null && cr.moveToFirst()){
-            int threadId = cr.getInt(cr.getColumnIndex(("thread_id")));
-            if (threadId != DELETED_THREAD_ID){
-                // Move to deleted folder
-                updateMMSThreadId(handle, Integer.valueOf(DELETED_THREAD_ID));
-            } else {
-                // Delete the message permanently
-                long msgId = handle + MMS_OFFSET_START;
-                mMnsClient.addMceInitiatedOperation(Long.toString(msgId));
-                mContext.getContentResolver().delete(Uri.parse("content://mms/" + handle),
-                        null, null);
-            }
-        }
+    /**
+     * Thread id of a message, from the handle index when the handle was
+     * listed or fetched, else from the provider, adding the handle to the
+     * index.
+     *
+     * @return the thread id, MsgHandleIndex.MISSING if the message is not found
+     */
+    private long lookupThreadId(Uri uri, long msgHandle, String typeColumn) {
+        final long packed = mHandleIndex.get(msgHandle);
+        if (packed != MsgHandleIndex.MISSING) {
+            return MsgHandleIndex.threadIdOf(packed);
+        }
+        long threadId = MsgHandleIndex.MISSING;
+        Cursor cr = mContext.getContentResolver().query(uri,
+                new String[] { "thread_id", typeColumn }, null, null, null);
         if (cr != null) {
+            if (cr.moveToFirst()) {
+                threadId = cr.getLong(0);
+                mHandleIndex.put(msgHandle, cr.getInt(1), threadId);
+            }
             cr.close();
         }
+        return threadId;
+    }
+
+    /* Keeps the indexed thread of a handle in step with a thread_id update */
+    private void onThreadUpdated(long msgHandle, int rows, long threadId) {
+        final long packed = mHandleIndex.get(msgHandle);
+        if (rows > 0 && packed != MsgHandleIndex.MISSING) {
+            mHandleIndex.put(msgHandle, MsgHandleIndex.typeOf(packed), threadId);
+        } else {
+            mHandleIndex.remove(msgHandle);
+        }
+    }
+
+    private void deleteMMS(long handle) {
+        final long msgId = handle + MMS_OFFSET_START;
+        final Uri uri = Uri.parse("content://mms/" + handle);
+        final long threadId = lookupThreadId(uri, msgId, "msg_box");
+        if (threadId == MsgHandleIndex.MISSING) {
+            if (V) Log.v(TAG, "msgHandle not found");
+        } else if (threadId != DELETED_THREAD_ID) {
+            // Move to deleted folder, no row updated means the message is gone
+            if (updateMMSThreadId(handle, DELETED_THREAD_ID) == 0) {
+                if (V) Log.v(TAG, "msgHandle not found");
+            }
+        } else {
+            // Delete the message permanently
+            mMnsClient.addMceInitiatedOperation(Long.toString(msgId));
+            mContext.getContentResolver().delete(uri, null, null);
+            mHandleIndex.remove(msgId);
+        }
     }
 
     private void unDeleteMMS(long msgHandle) {
+        final long packed = mHandleIndex.get(msgHandle + MMS_OFFSET_START);
+        if (packed != MsgHandleIndex.MISSING
+                && MsgHandleIndex.threadIdOf(packed) != DELETED_THREAD_ID) {
+            if (V){
+                Log.v(TAG, " Not in delete folder");
+            }
+            return;
+        }
         Cursor cr = mContext.getContentResolver().query(Uri.parse("content://mms/" + msgHandle),
                 null, null, null, null );
         if (cr == null) {
@@ -724,35 +850,43 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         cr.close();
     }
 
-    private void updateSMSThreadId(long msgHandle, int threadId) {
+    private int updateSMSThreadId(long msgHandle, int threadId) {
         ContentValues values = new ContentValues();
         values.put("thread_id", threadId);
-        mContext.getContentResolver().update(Uri.parse("content://sms/" + msgHandle),
+        int rows = mContext.getContentResolver().update(Uri.parse("content://sms/" + msgHandle),
                 values, null, null);
+        onThreadUpdated(msgHandle + SMS_OFFSET_START, rows, threadId);
+        return rows;
     }
 
     private void deleteSMS(long handle) {
-        Cursor cr = mContext.getContentResolver().query(Uri.parse("content://sms/" + handle),
-                null, null, null, null);
-        if (cr != null && cr.moveToFirst()){
-            int threadId = cr.getInt(cr.getColumnIndex(("thread_id")));
-            if (threadId != DELETED_THREAD_ID){
-                // Move to deleted folder
-                updateSMSThreadId(handle, Integer.valueOf(DELETED_THREAD_ID));
-            } else {
-                // Delete the message permanently
-                long msgHandle = handle + SMS_OFFSET_START;
-                mMnsClient.addMceInitiatedOperation(Long.toString(msgHandle));
-                mContext.getContentResolver().delete(Uri.parse("content://sms/" + handle),
-                        null, null);
+        final long msgHandle = handle + SMS_OFFSET_START;
+        final Uri uri = Uri.parse("content://sms/" + handle);
+        final long threadId = lookupThreadId(uri, msgHandle, "type");
+        if (threadId == MsgHandleIndex.MISSING) {
+            if (V) Log.v(TAG, "msgHandle not found");
+        } else if (threadId != DELETED_THREAD_ID) {
+            // Move to deleted folder, no row updated means the message is gone
+            if (updateSMSThreadId(handle, DELETED_THREAD_ID) == 0) {
+                if (V) Log.v(TAG, "msgHandle not found");
             }
-        }
-        if (cr != null) {
-            cr.close();
+        } else {
+            // Delete the message permanently
+            mMnsClient.addMceInitiatedOperation(Long.toString(msgHandle));
+            mContext.getContentResolver().delete(uri, null, null);
+            mHandleIndex.remove(msgHandle);
         }
     }
 
     private void unDeleteSMS(long msgHandle){
+        final long packed = mHandleIndex.get(msgHandle + SMS_OFFSET_START);
+        if (packed != MsgHandleIndex.MISSING
+                && MsgHandleIndex.threadIdOf(packed) != DELETED_THREAD_ID) {
+            if (V){
+                Log.v(TAG, " Not in delete folder");
+            }
+            return;
+        }
         Cursor cr = mContext.getContentResolver().query(Uri.parse("content://sms/" + msgHandle),
                 null, null, null, null );
         if (cr == null) {
@@ -1199,32 +1333,6 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         return text;
     }
 
-    /**
-     * Get the folder name (MAP representation) based on the message Handle
-     */
-    private int getMmsContainingFolder(long msgID) {
-        int folderNum = 0;
-        String whereClause = " _id= " + msgID;
-        Uri uri = Uri.parse("content://mms/");
-        ContentResolver cr = mContext.getContentResolver();
-        Cursor cursor = cr.query(uri, null, whereClause, null, null);
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                cursor.moveToFirst();
-                int msgboxInd = cursor.getColumnIndex("msg_box");
-                String thread_id = cursor.getString(cursor.getColumnIndex("thread_id"));
-                if ( Integer.valueOf(thread_id) == DELETED_THREAD_ID) {
-                    // Deleted folder
-                    folderNum = 0;
-                } else {
-                    folderNum = cursor.getInt(msgboxInd);
-                }
-            }
-            cursor.close();
-        }
-        return folderNum;
-    }
-
     /**
      * Get MMS folder name based on value Inbox = 1 Sent = 2 Drafts = 3 Outbox =
      * 4 Queued = 6
@@ -1332,7 +1440,11 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         }
         if (cr.getCount() > 0) {
             cr.moveToFirst();
-            String containingFolder = getMmsMapVirtualFolderName((getMmsContainingFolder(msgID)));
+            final int msgBox = cr.getInt(cr.getColumnIndex("msg_box"));
+            final long threadId = cr.getLong(cr.getColumnIndex("thread_id"));
+            mHandleIndex.put(msgID + MMS_OFFSET_START, msgBox, threadId);
+            String containingFolder = getMmsMapVirtualFolderName(
+                    (threadId == DELETED_THREAD_ID) ? 0 : msgBox);
             BmessageConsts bmsg = new BmessageConsts();
 
             // Create a bMessage
@@ -1408,27 +1520,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
             String str = MapUtils.toBmessageMMS(bmsg);
             if (V) Log.v(TAG, str);
             if (str != null && (str.length() > 0)) {
-                final String FILENAME = "message" + getMasId();
-                FileOutputStream bos = null;
-                File file = new File(mContext.getFilesDir() + "/" + FILENAME);
-                file.delete();
-
-                try {
-                    bos = mContext.openFileOutput(FILENAME, Context.MODE_PRIVATE);
-                    bos.write(str.getBytes());
-                    bos.flush();
-                    bos.close();
-                } catch (FileNotFoundException e) {
-                    Log.e(TAG, "Unable to write " + FILENAME, e);
-                } catch (IOException e) {
-                    Log.e(TAG, "Unable to write " + FILENAME, e);
-                }
-
-                File fileR = new File(mContext.getFilesDir() + "/" + FILENAME);
-                if (fileR.exists() == true) {
-                    rsp.file = fileR;
-                    rsp.fractionDeliver = 1;
-                }
+                setMessageBody(rsp, str);
             }
         }
         cr.close();
@@ -1594,6 +1686,120 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         return ml;
     }
 
+    /**
+     * Same as bldMmsMsgLstItem(long, ...) but builds the listing entry from an
+     * already fetched MmsRow without querying the provider again
+     */
+    private MsgListingConsts bldMmsMsgLstItem(MmsRow row, BluetoothMasAppParams appParams,
+            String datetimeStr) {
+
+        MsgListingConsts ml = new MsgListingConsts();
+        final String address = row.address;
+        final boolean outgoing = row.isOutgoing();
+        String addressTokens[] = null;
+        if ((address != null) && address.contains(";")) {
+            addressTokens = address.split(";");
+        }
+
+        // Set the message handle
+        ml.setMsg_handle(row.id + MMS_OFFSET_START);
+
+        // Set the message subject
+        if ((appParams.ParameterMask & BIT_SUBJECT) != 0) {
+            ml.setSubject(row.subject);
+            ml.sendSubject = true;
+        }
+
+        // Construct datetime value
+        if ((appParams.ParameterMask & BIT_DATETIME) != 0) {
+            ml.setDatetime(datetimeStr);
+        }
+
+        // Construct msg body
+        if ((appParams.ParameterMask & BIT_TEXT) != 0) {
+            ml.setContains_text(row.text != null ? "yes" : "no");
+        }
+
+        // Set text size
+        if ((appParams.ParameterMask & BIT_SIZE) != 0) {
+            ml.setSize(row.text == null ? 0 : row.text.length());
+        }
+
+        // Set message type
+        if ((appParams.ParameterMask & BIT_TYPE) != 0) {
+            ml.setType("MMS");
+        }
+
+        if ((appParams.ParameterMask & BIT_RECIPIENT_NAME) != 0) {
+            String recipientName = "";
+            if (outgoing == false) {
+                recipientName = getOwnerName();
+            } else if (addressTokens == null) {
+                recipientName = getContactName(address);
+            } else {
+                for (int i=0; i < addressTokens.length; i++) {
+                    recipientName = recipientName.concat(getContactName(addressTokens[i]) + ";");
+                }
+            }
+            ml.setRecepient_name(recipientName);
+        }
+
+        if ((appParams.ParameterMask & BIT_RECIPIENT_ADDRESSING) != 0) {
+            ml.setRecepient_addressing(outgoing ? address : getOwnerNumber());
+            ml.setSendRecipient_addressing(true);
+        }
+
+        if ((appParams.ParameterMask & BIT_SENDER_NAME) != 0) {
+            String senderName = "";
+            if (outgoing == true) {
+                senderName = getOwnerName();
+            } else if (addressTokens == null) {
+                senderName = getContactName(address);
+            } else {
+                for (int i=0; i < addressTokens.length; i++) {
+                    senderName = senderName.concat(getContactName(addressTokens[i]) + ";");
+                }
+            }
+            ml.setSender_name(senderName);
+        }
+
+        if ((appParams.ParameterMask & BIT_SENDER_ADDRESSING) != 0) {
+            ml.setSender_addressing(outgoing ? getOwnerNumber() : address);
+        }
+
+        // Set read status
+        if ((appParams.ParameterMask & BIT_READ) != 0) {
+            ml.setRead(row.read ? "yes" : "no");
+        }
+
+        // Set priority, only PRIORITY_HIGH (0x82) is reported as high
+        if ((appParams.ParameterMask & BIT_PRIORITY) != 0) {
+            ml.setPriority(row.priority == 0x82 ? "yes" : "no");
+        }
+
+        // Set Protected
+        if ((appParams.ParameterMask & BIT_PROTECTED) != 0) {
+            ml.setMsg_protected(row.locked ? "yes" : "no");
+        }
+
+        // Set sent
+        if ((appParams.ParameterMask & BIT_SENT) != 0) {
+            ml.setSent(row.msgBox == 2 ? "yes" : "no");
+        }
+
+        // Set reception status
+        if ((appParams.ParameterMask & BIT_RECEPTION_STATUS) != 0) {
+            ml.setReception_status("complete");
+        }
+
+        // Set attachment size
+        if ((appParams.ParameterMask & BIT_ATTACHMENT_SIZE) != 0) {
+            ml.setAttachment_size(row.attachmentSize);
+        }
+
+        return ml;
+    }
+
     /**
      * This method is used to take an MMS in the drafts folder and move it to
      * the outbox This action is required to add the MMS to the pending_msgs
@@ -1637,7 +1843,8 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
      * This method is used to take a Bmessage that was pushed and move it to the
      * folder
      */
-    private String addToMmsFolder(String folderName, String mmsMsg) throws BadRequestException {
+    private String addToMmsFolder(String folderName, BmessageParser mmsMsg)
+            throws BadRequestException {
         if (folderName == null) {
             return null;
         }
@@ -1700,9 +1907,13 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         }
         long virtualMsgId = (msgID + MMS_OFFSET_START);
 
-        // Build the \mms\part portion
-        values.clear();
+        // The part and addr rows of the new pdu are inserted in one batch
+        final Uri partUri = Uri.parse("content://mms/" + msgID + "/part");
+        final Uri addrUri = Uri.parse("content://mms/" + msgID + "/addr");
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(4);
 
+        // Build the \mms\part portion
+        values = new ContentValues();
         values.put("seq", -1);
         values.put("ct", "application/smil");
         values.put("cid", "<smil>");
@@ -1711,14 +1922,9 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                 "<region id=\"Text\" left=\"0\" top=\"320\" width=\"320px\" height=\"160px\"" +
                 " fit=\"meet\"/></layout></head><body><par dur=\"5000ms\">" +
                 "<text src=\"text_0.txt\" region=\"Text\"/></par></body></smil>");
+        ops.add(ContentProviderOperation.newInsert(partUri).withValues(values).build());
 
-        uri = Uri.parse("content://mms/" + msgID + "/part");
-        uri = cr.insert(uri, values);
-        if (uri != null && V){
-            Log.v(TAG, " NEW URI " + uri.toString());
-        }
-
-        values.clear();
+        values = new ContentValues();
         values.put("seq", 0);
         values.put("ct", "text/plain");
         values.put("name", "null");
@@ -1730,35 +1936,33 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         values.put("ctt_s", "null");
         values.put("ctt_t", "null");
         values.put("text", mmsText);
+        ops.add(ContentProviderOperation.newInsert(partUri).withValues(values).build());
 
-        uri = Uri.parse("content://mms/" + msgID + "/part");
-        uri = cr.insert(uri, values);
-        if (uri != null && V){
-            Log.v(TAG, " NEW URI " + uri.toString());
-        }
-
-        values.clear();
+        values = new ContentValues();
         values.put("contact_id", "null");
         values.put("address", "insert-address-token");
         values.put("type", 137);
         values.put("charset", 106);
+        ops.add(ContentProviderOperation.newInsert(addrUri).withValues(values).build());
 
-        uri = Uri.parse("content://mms/" + msgID + "/addr");
-        uri = cr.insert(uri, values);
-        if (uri != null && V){
-            Log.v(TAG, " NEW URI " + uri.toString());
-        }
-
-        values.clear();
+        values = new ContentValues();
         values.put("contact_id", "null");
         values.put("address", address);
         values.put("type", 151);
         values.put("charset", 106);
+        ops.add(ContentProviderOperation.newInsert(addrUri).withValues(values).build());
 
-        uri = Uri.parse("content://mms/" + msgID + "/addr");
-        uri = cr.insert(uri, values);
-        if (uri != null && V){
-            Log.v(TAG, " NEW URI " + uri.toString());
+        try {
+            ContentProviderResult[] results = cr.applyBatch(partUri.getAuthority(), ops);
+            if (V) {
+                for (ContentProviderResult result : results) {
+                    Log.v(TAG, " NEW URI " + result.uri);
+                }
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to insert MMS parts", e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Unable to insert MMS parts", e);
         }
 
         String virtualMsgIdStr = String.valueOf(virtualMsgId);
@@ -1855,7 +2059,11 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         int body_length = 0;
         if (cr.getCount() > 0) {
             cr.moveToFirst();
-            String containingFolder = getContainingFolder(msgHandle);
+            final int msgType = cr.getInt(cr.getColumnIndex("type"));
+            final long threadId = cr.getLong(cr.getColumnIndex("thread_id"));
+            mHandleIndex.put(msgHandle + SMS_OFFSET_START, msgType, threadId);
+            String containingFolder = getMAPFolder(String.valueOf(msgType),
+                    String.valueOf(threadId));
             BmessageConsts bmsg = new BmessageConsts();
 
             // Create a bMessage
@@ -1879,8 +2087,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
             VcardContent vcard = getVcardContent(cr.getString(cr
                     .getColumnIndex("address")));
 
-            String type = cr.getString(cr.getColumnIndex("type"));
-            if (type.equalsIgnoreCase("1")) {
+            if (msgType == 1) {
                 // The address in database is of originator
                 bmsg.setOriginatorVcard_name(vcard.name);
                 bmsg.setOriginatorVcard_phone_number(vcard.tel);
@@ -1948,12 +2155,14 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         MsgListingConsts ml = new MsgListingConsts();
         ml.setMsg_handle(Integer.valueOf(msgId));
 
+        final long date = Long.valueOf(timestamp);
         Time time = new Time();
-        time.set(Long.valueOf(timestamp));
+        time.set(date);
 
         String datetimeStr = time.toString().substring(0, 15);
 
         ml.msgInfo.setDateTime(datetimeStr);
+        ml.msgInfo.setTimestamp(date);
 
         if ((appParams.ParameterMask & BIT_SUBJECT) != 0) {
             /* SMS doesn't have subject. Append Body
@@ -2087,14 +2296,19 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
     }
     private BluetoothMsgListRsp msgListSms(List<MsgListingConsts> msgList, String folder,
             BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams) {
+        return msgListSms(msgList, folder, rsp, appParams, "date desc");
+    }
+
+    private BluetoothMsgListRsp msgListSms(List<MsgListingConsts> msgList, String folder,
+            BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams,
+            String sortOrder) {
         BluetoothMsgListRsp bmlr = new BluetoothMsgListRsp();
         String url = "content://sms/";
         Uri uri = Uri.parse(url);
         ContentResolver cr = mContext.getContentResolver();
         String whereClause  = SmsMmsUtils.getConditionStringSms(folder, appParams);
 
-        Cursor cursor = cr.query(uri, null, whereClause, null,
-                "date desc");
+        Cursor cursor = cr.query(uri, null, whereClause, null, sortOrder);
 
         if (cursor != null && V) {
                 Log.v(TAG, "move to First" + cursor.moveToFirst());
@@ -2103,6 +2317,8 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                 Log.v(TAG, "move to Liststartoffset"
                     + cursor.moveToPosition(appParams.ListStartOffset));
         }
+        // Owner details and filter patterns are resolved once for the listing
+        MsgListingFilter filter = getListingFilter(appParams);
         if (cursor != null && cursor.moveToFirst()) {
             int idInd = cursor.getColumnIndex("_id");
             int addressInd = cursor.getColumnIndex("address");
@@ -2125,64 +2341,16 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                  * contact For outgoing message, originator is the
                  * owner.
                  */
-                String filterString = null;
-                String oname = getOwnerName();
-                if (oname == null) {
-                    oname = "";
-                }
-                String onumber = getOwnerNumber();
-                if (onumber == null) {
-                    onumber = "";
-                }
-
                 int msgType = cursor.getInt(typeInd);
-                String regExpOrig = null;
-                String regExpRecipient = null;
-                if (appParams.FilterOriginator != null) {
-                    regExpOrig = appParams.FilterOriginator.replace("*", ".*[0-9A-Za-z].*");
-                }
-                if (appParams.FilterRecipient != null) {
-                    regExpRecipient = appParams.FilterRecipient.replace("*", ".*[0-9A-Za-z].*");
-                }
-                if (isOutgoingSMSMessage(msgType) == true) {
-                    if ((appParams.FilterOriginator != null)
-                            && (appParams.FilterOriginator.length() != 0)
-                            && !(oname.matches(".*"+regExpOrig+".*"))
-                            && !(onumber.matches(".*"+regExpOrig+".*"))) {
-                        continue;
-                    }
-                    if ((appParams.FilterRecipient != null)
-                            && (appParams.FilterRecipient.length() != 0)) {
-                        filterString = appParams.FilterRecipient.trim();
-                        if (V){
-                                Log.v(TAG, "appParams.FilterRecipient"
-                                    + appParams.FilterRecipient);
-                        }
-                    }
-                }
-                if (isOutgoingSMSMessage(msgType) == false) {
-                    if ((appParams.FilterRecipient != null)
-                            && (appParams.FilterRecipient.length() != 0)
-                            && !(oname.matches(".*"+regExpRecipient+".*"))
-                            && !(onumber.matches(".*"+regExpRecipient+".*"))) {
-                        continue;
-                    }
-                    if ((appParams.FilterOriginator != null)
-                            && (appParams.FilterOriginator.length() != 0)) {
-                        filterString = appParams.FilterOriginator.trim();
-                        if (V){
-                                Log.v(TAG, "appParams.FilterOriginator"
-                                    + appParams.FilterOriginator);
-                        }
-                    }
+                boolean outgoing = isOutgoingSMSMessage(msgType);
+                if (!filter.allowOwner(outgoing)) {
+                    continue;
                 }
-
-                if (filterString != null) {
+                if (filter.hasRemoteFilter(outgoing)) {
                     if (V){
-                        Log.v(TAG, "filterString = " + filterString);
+                        Log.v(TAG, "filterString = " + filter.getRemoteFilter(outgoing));
                     }
-                    if (allowEntry(cursor.getString(addressInd),
-                            filterString) == true) {
+                    if (allowEntry(cursor.getString(addressInd), filter, outgoing)) {
                         if (V){
                                 Log.v(TAG,
                                     " ALLOWED : "
@@ -2223,6 +2391,8 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                 MsgListingConsts ml = bldSmsMsgLstItem(appParams, subjectSms,
                                 timestampSms, addressSms, msgIdSms,
                                 readStatusSms, msgType);
+                mHandleIndex.put(cursor.getLong(idInd) + SMS_OFFSET_START, msgType,
+                        cursor.getLong(threadIdInd));
 
                 // New Message?
                 if ((rsp.newMessage == 0)
@@ -2246,32 +2416,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
     private BluetoothMsgListRsp msgListMms(List<MsgListingConsts> msgList, String name,
             BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams) {
         BluetoothMsgListRsp bmlr = new BluetoothMsgListRsp();
-        String filterString = null;
-
-        String oname = getOwnerName();
-        if (oname == null) {
-            oname = "";
-        }
-
-        String onumber = getOwnerNumber();
-        if (onumber == null) {
-            onumber = "";
-        }
-
-        Log.v(TAG, "oname = " + oname + "onumber = " + onumber);
-
-        String regExpOrig = null;
-        String regExpRecipient = null;
-
-        if (appParams.FilterOriginator != null) {
-            regExpOrig = appParams.FilterOriginator.replace("*", ".*[0-9A-Za-z].*");
-        }
-
-        if (appParams.FilterRecipient != null) {
-            regExpRecipient = appParams.FilterRecipient.replace("*", ".*[0-9A-Za-z].*");
-        }
-
-        Log.v(TAG, " regExpOrig = " + regExpOrig + " regExpRecipient = " + regExpRecipient);
+        MsgListingFilter filter = getListingFilter(appParams);
 
         if (getNumMmsMsgs(name) != 0) {
             List<Integer> list = getMmsMsgMIDs(bldMmsWhereClause(
@@ -2285,52 +2430,18 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                         Log.v(TAG, "\n MMS message subject ==> "
                             + getMmsMsgSubject(msgId));
                 }
-                if (isOutgoingMMSMessage(msgId) == false) {
-                    if ((appParams.FilterRecipient != null)
-                        && (appParams.FilterRecipient.length() != 0)
-                        && !(oname.matches(".*"+regExpRecipient+".*"))
-                        && !(onumber.matches(".*"+regExpRecipient+".*"))) {
-                            continue;
-                        }
-                    if ((appParams.FilterOriginator != null)
-                        && (appParams.FilterOriginator.length() != 0)) {
-                        filterString = appParams.FilterOriginator.trim();
-                        if (V){
-                            Log.v(TAG, " appParams.FilterOriginator"
-                                + appParams.FilterOriginator);
-                        }
-                    }
-                }
-
-                if (isOutgoingMMSMessage(msgId) == true) {
-                    if ((appParams.FilterOriginator != null)
-                        && (appParams.FilterOriginator.length() != 0)
-                        && !(oname.matches(".*"+regExpOrig+".*"))
-                        && !(onumber.matches(".*"+regExpOrig+".*"))) {
-                        continue;
-                    }
-
-                    if ((appParams.FilterRecipient != null)
-                        && (appParams.FilterRecipient.length() != 0)) {
-                        filterString = appParams.FilterRecipient.trim();
-                        if (V){
-                            Log.v(TAG, " appParams.FilterRecipient"
-                                + appParams.FilterRecipient);
-                        }
-                    }
+                boolean outgoing = isOutgoingMMSMessage(msgId);
+                if (!filter.allowOwner(outgoing)) {
+                    continue;
                 }
-
-                if (filterString != null) {
+                if (filter.hasRemoteFilter(outgoing)) {
                     if (V){
-                        Log.v(TAG, " filterString = " + filterString);
+                        Log.v(TAG, " filterString = " + filter.getRemoteFilter(outgoing));
                     }
-                    String ContactName = null;
-                    String ContactNum = null;
-
-                    ContactName = getContactName(getMmsMsgAddress(msgId));
-                    ContactNum = getMmsMsgAddress(msgId);
+                    String ContactNum = getMmsMsgAddress(msgId);
+                    String ContactName = getContactName(ContactNum);
 
-                    if (ContactName.matches(filterString) || ContactNum.matches(filterString)) {
+                    if (filter.matchesRemoteExact(outgoing, ContactName, ContactNum)) {
                         if (V){
                             Log.v(TAG, " ALLOWED : "
                                 + ContactName + " - " + ContactNum );
@@ -2344,13 +2455,15 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                     }
                 }
 
+                final long date = getMmsMsgDate(msgId).getTime();
                 Time time = new Time();
-                time.set(getMmsMsgDate(msgId).getTime());
+                time.set(date);
 
                 String datetimeStr = time.toString().substring(0, 15);
 
                 MsgListingConsts mmsl = bldMmsMsgLstItem(msgId, appParams, name, datetimeStr);
                 mmsl.msgInfo.setDateTime(datetimeStr);
+                mmsl.msgInfo.setTimestamp(date);
 
                 if ((rsp.newMessage == 0)
                         && "no".equalsIgnoreCase(getMmsMsgReadStatus(msgId))) {
@@ -2368,6 +2481,73 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         return bmlr;
     }
 
+    /**
+     * Batched variant of msgListMms. The pdu, part and addr data of the whole
+     * folder are fetched up front by MmsListingQuery and joined in memory, so
+     * the number of provider queries no longer grows with the listing
+     * attributes requested for every message.
+     */
+    private BluetoothMsgListRsp msgListMmsBatched(List<MsgListingConsts> msgList, String name,
+            BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams) {
+        return msgListMmsBatched(msgList, name, rsp, appParams, "date desc");
+    }
+
+    private BluetoothMsgListRsp msgListMmsBatched(List<MsgListingConsts> msgList, String name,
+            BluetoothMasMessageListingRsp rsp, BluetoothMasAppParams appParams,
+            String sortOrder) {
+        BluetoothMsgListRsp bmlr = new BluetoothMsgListRsp();
+        MsgListingFilter filter = getListingFilter(appParams);
+
+        final boolean needText = (appParams.ParameterMask & (BIT_TEXT | BIT_SIZE)) != 0;
+        final boolean needAddress = !filter.isEmpty()
+                || (appParams.ParameterMask & (BIT_SENDER_NAME | BIT_SENDER_ADDRESSING
+                        | BIT_RECIPIENT_NAME | BIT_RECIPIENT_ADDRESSING)) != 0;
+
+        MmsListingQuery query = new MmsListingQuery(mContext);
+        List<MmsRow> rows = query.query(bldMmsWhereClause(appParams,
+                SmsMmsUtils.getFolderTypeMms(name)), sortOrder, needText, needAddress);
+        for (MmsRow row : rows) {
+            boolean outgoing = row.isOutgoing();
+            if (!filter.allowOwner(outgoing)) {
+                continue;
+            }
+            if (filter.hasRemoteFilter(outgoing)) {
+                String contactName = getContactName(row.address);
+                if (filter.matchesRemoteExact(outgoing, contactName, row.address)) {
+                    if (V) Log.v(TAG, " ALLOWED : " + contactName + " - " + row.address);
+                } else {
+                    if (V) Log.v(TAG, " DENIED : " + contactName + " - " + row.address);
+                    continue;
+                }
+            }
+
+            Time time = new Time();
+            time.set(row.date);
+
+            String datetimeStr = time.toString().substring(0, 15);
+
+            MsgListingConsts mmsl = bldMmsMsgLstItem(row, appParams, datetimeStr);
+            mHandleIndex.put(row.id + MMS_OFFSET_START, row.msgBox, row.threadId);
+            mmsl.msgInfo.setDateTime(datetimeStr);
+            mmsl.msgInfo.setTimestamp(row.date);
+
+            if ((rsp.newMessage == 0) && !row.read) {
+                rsp.newMessage = 1;
+            }
+
+            msgList.add(mmsl);
+            rsp.msgListingSize++;
+        }
+        if (D) Log.d(TAG, "msgListMmsBatched: " + rows.size() + " msgs in " + name + ", "
+                + query.getQueryCount() + " provider queries, " + query.getElapsedTime() + " ms");
+
+        rsp.rsp = ResponseCodes.OBEX_HTTP_OK;
+        bmlr.messageListingSize = rsp.msgListingSize;
+        bmlr.rsp = rsp;
+        bmlr.msgList = msgList;
+        return bmlr;
+    }
+
     private BluetoothMasMessageRsp getMessageSms(long msgHandle, Context context,
             BluetoothMasMessageRsp rsp, BluetoothMasAppParams bluetoothMasAppParams) {
         long smsHandle = msgHandle - SMS_OFFSET_START;
@@ -2390,27 +2570,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         if (V) Log.v(TAG, strSms);
 
         if (strSms != null && (strSms.length() > 0)) {
-            final String FILENAME = "message" + getMasId();
-            FileOutputStream bos = null;
-            File file = new File(context.getFilesDir() + "/" + FILENAME);
-            file.delete();
-
-            try {
-                bos = context.openFileOutput(FILENAME, Context.MODE_PRIVATE);
-                bos.write(strSms.getBytes());
-                bos.flush();
-                bos.close();
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "Unable to write " + FILENAME, e);
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to write " + FILENAME, e);
-            }
-
-            File fileR = new File(context.getFilesDir() + "/" + FILENAME);
-            if (fileR.exists() == true) {
-                rsp.file = fileR;
-                rsp.fractionDeliver = 1;
-            }
+            setMessageBody(rsp, strSms);
         }
         return rsp;
     }
@@ -2430,10 +2590,10 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
     }
 
     private BluetoothMasPushMsgRsp pushMessageMms(BluetoothMasPushMsgRsp rsp,
-            String readStr, String name) throws BadRequestException {
+            BmessageParser parser, String name) throws BadRequestException {
         String fullPath = (name == null || name.length() == 0) ? mCurrentPath : mCurrentPath + "/" + name;
         if (fullPath.equalsIgnoreCase("telecom/msg/outbox")) {
-            String handle = addToMmsFolder(DRAFTS, readStr);
+            String handle = addToMmsFolder(DRAFTS, parser);
             if (INTERNAL_ERROR == handle) {  // == comparison valid here
                 rsp.response = ResponseCodes.OBEX_HTTP_NOT_FOUND;
                 return rsp;
@@ -2460,7 +2620,7 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
                 folderName = splitStrings[tmp - 1];
             }
             if (folderName != null && folderName.equalsIgnoreCase(DRAFT)){
-                String handle = addToMmsFolder(folderName, readStr);
+                String handle = addToMmsFolder(folderName, parser);
                 if (INTERNAL_ERROR == handle) {  // == comparison valid here
                     rsp.msgHandle = null;
                     rsp.response = ResponseCodes.OBEX_HTTP_NOT_FOUND;
@@ -2502,9 +2662,10 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
         return sms.getMessageBody();
     }
 
-    private BluetoothMasPushMsgRsp pushMessageSms(BluetoothMasPushMsgRsp rsp, String readStr,
-            String name, BluetoothMasAppParams bluetoothMasAppParams) throws BadRequestException {
-        BmessageConsts bMsg = MapUtils.fromBmessageSMS(readStr);
+    private BluetoothMasPushMsgRsp pushMessageSms(BluetoothMasPushMsgRsp rsp,
+            BmessageParser parser, String name, BluetoothMasAppParams bluetoothMasAppParams)
+            throws BadRequestException {
+        BmessageConsts bMsg = MapUtils.fromBmessageSMS(parser);
         String address = bMsg.getRecipientVcard_phone_number();
         String smsText;
         if((int)bluetoothMasAppParams.Charset == 0)
@@ -2583,58 +2744,40 @@ public class BluetoothMasAppSmsMms extends BluetoothMasAppIf {
 
     private int setMsgStatusSms(long msgHandle, BluetoothMasAppParams bluetoothMasAppParams){
         long handle = msgHandle - SMS_OFFSET_START;
-        Uri uri = Uri.parse("content://sms/" + handle);
-        Cursor cr = mContext.getContentResolver().query(uri, null, null, null, null);
-        if (cr != null && cr.moveToFirst()) {
-            if (bluetoothMasAppParams.StatusIndicator == 0) {
-                /* Read Status */
-                ContentValues values = new ContentValues();
-                values.put("read", bluetoothMasAppParams.StatusValue);
-                mContext.getContentResolver().update(uri, values, null, null);
-            } else {
-                if (bluetoothMasAppParams.StatusValue == 1) {
-                    deleteSMS(handle);
-                } else if (bluetoothMasAppParams.StatusValue == 0) {
-                    unDeleteSMS(handle);
-                }
+        if (bluetoothMasAppParams.StatusIndicator == 0) {
+            /* Read Status */
+            mStatusBatch.setRead(Uri.parse("content://sms/" + handle),
+                    bluetoothMasAppParams.StatusValue);
+        } else {
+            mStatusBatch.flush();
+            if (bluetoothMasAppParams.StatusValue == 1) {
+                deleteSMS(handle);
+            } else if (bluetoothMasAppParams.StatusValue == 0) {
+                unDeleteSMS(handle);
             }
         }
-        if (cr != null) {
-            cr.close();
-        }
-        // Do we need to return ResponseCodes.OBEX_HTTP_BAD_REQUEST when cr == null?
+        // Do we need to return ResponseCodes.OBEX_HTTP_BAD_REQUEST for unknown handles?
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
     private int setMsgStatusMms(long msgHandle, BluetoothMasAppParams bluetoothMasAppParams){
-        long handle = getMmsMsgHndToID(msgHandle);
-        String whereClause = " _id= " + handle;
-        Uri uri = Uri.parse("content://mms/");
-        if(handle > 0){
-            Cursor cr = mContext.getContentResolver().query(uri, null, null, null, null);
-            if (cr != null) {
-                if (cr.getCount() > 0) {
-                    cr.moveToFirst();
-                    if (bluetoothMasAppParams.StatusIndicator == 0) {
-                        /* Read Status */
-                        ContentValues values = new ContentValues();
-                        values.put("read", bluetoothMasAppParams.StatusValue);
-                        int rowUpdate = mContext.getContentResolver().update(uri,
-                                values, whereClause, null);
-                        if (V){
-                                Log.v(TAG, "\nRows updated => " + Integer.toString(rowUpdate));
-                        }
-                        return ResponseCodes.OBEX_HTTP_OK;
-                    } else {
-                        if (bluetoothMasAppParams.StatusValue == 1) {
-                            deleteMMS(handle);
-                        } else if (bluetoothMasAppParams.StatusValue == 0) {
-                            unDeleteMMS(handle);
-                        }
-                        return ResponseCodes.OBEX_HTTP_OK;
-                    }
-                }
-                cr.close();
+        if (bluetoothMasAppParams.StatusIndicator == 0) {
+            /* Read Status */
+            mStatusBatch.setRead(Uri.parse("content://mms/" + (msgHandle - MMS_OFFSET_START)),
+                    bluetoothMasAppParams.StatusValue);
+            return ResponseCodes.OBEX_HTTP_OK;
+        }
+        /* A listed handle is confirmed by the row count of the thread_id
+         * update or delete, other handles must still have their parts
+         */
+        long handle = mHandleIndex.contains(msgHandle)
+                ? msgHandle - MMS_OFFSET_START : getMmsMsgHndToID(msgHandle);
+        if (handle > 0) {
+            mStatusBatch.flush();
+            if (bluetoothMasAppParams.StatusValue == 1) {
+                deleteMMS(handle);
+            } else if (bluetoothMasAppParams.StatusValue == 0) {
+                unDeleteMMS(handle);
             }
         }
         return ResponseCodes.OBEX_HTTP_OK;
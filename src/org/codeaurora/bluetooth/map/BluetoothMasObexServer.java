@@ -34,25 +34,29 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.text.format.Time;
 import android.util.Log;
 
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageListingRsp;
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageRsp;
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMasPushMsgRsp;
+import org.codeaurora.bluetooth.map.MapUtils.MsgListingConsts;
+import org.codeaurora.bluetooth.map.MapUtils.MsgListingXmlWriter;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.obex.ApplicationParameter;
 import javax.obex.HeaderSet;
 import javax.obex.Operation;
 import javax.obex.ResponseCodes;
@@ -85,7 +89,16 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
 
     public Context mContext;
 
-    public static boolean sIsAborted = false;
+    // Per instance, an ABORT on one MAS instance must not end the transfer of another
+    private volatile boolean mIsAborted = false;
+
+    // Number of MAS instances currently handling a GET or PUT request
+    private static final AtomicInteger sActiveRequests = new AtomicInteger();
+
+    // Per request type: count, total time and longest time in ms
+    private final HashMap<String, long[]> mRequestStats = new HashMap<String, long[]>();
+
+    private String mRequestType = null;
 
     private PowerManager.WakeLock mWakeLock = null;
 
@@ -168,11 +181,11 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
             tmp.FilterReadStatus = appParams.FilterReadStatus;
             tmp.FilterPriority = appParams.FilterPriority;
 
-            tmp.FilterPeriodBegin = (appParams.FilterPeriodBegin == null) ? null : new String(appParams.FilterPeriodBegin);
-            tmp.FilterPeriodEnd = (appParams.FilterPeriodEnd == null) ? null : new String(appParams.FilterPeriodEnd);
-            tmp.FilterRecipient = (appParams.FilterRecipient == null) ? null : new String(appParams.FilterRecipient);
-            tmp.FilterOriginator = (appParams.FilterOriginator == null) ? null : new String(appParams.FilterOriginator);
-            tmp.Retry = appParams.Retry;
+            // Strings are immutable and can be shared with the copy
+            tmp.FilterPeriodBegin = appParams.FilterPeriodBegin;
+            tmp.FilterPeriodEnd = appParams.FilterPeriodEnd;
+            tmp.FilterRecipient = appParams.FilterRecipient;
+            tmp.FilterOriginator = appParams.FilterOriginator;
             tmp.Transparent = appParams.Transparent;
             tmp.FractionRequest = appParams.FractionRequest;
             tmp.Notification = appParams.Notification;
@@ -187,17 +200,12 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
         }
 
         private final int getUint16BigEndian(byte b1, byte b2) {
-            int retVal;
-            retVal = (int) ((0x0000FF00 & (int) (b1 << 0x8)) | (0x000000FF & (int) b2));
-            return retVal;
+            return ((b1 & 0xFF) << 8) | (b2 & 0xFF);
         }
 
         private final long getUint32BigEndian(byte b1, byte b2, byte b3, byte b4) {
-            long retVal;
-            retVal = (long) ((0xFF000000 & (long) (b1 << 0x24))
-                    | (0x00FF0000 & (long) (b2 << 0x16))
-                    | (0x0000FF00 & (long) (b3 << 0x8)) | (0x000000FF & (long) b4));
-            return retVal;
+            return ((long) (b1 & 0xFF) << 24) | ((b2 & 0xFF) << 16)
+                    | ((b3 & 0xFF) << 8) | (b4 & 0xFF);
         }
 
         private final boolean validateTag(long tagVal, long tagLen, long tagMinVal, long tagMaxVal, long tagActualLen) {
@@ -212,10 +220,21 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
             return true;
         }
 
-        public final boolean parse(byte[] params) {
-            int i = 0;
-
+        private final String getString(byte[] params, int offset, int len) {
+            try {
+                return new String(params, offset, len, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return new String(params, offset, len);
+            }
+        }
 
+        /**
+         * Decodes the application parameter TLVs in one pass. Every TLV is
+         * bounds checked against the array and unknown tags are skipped.
+         *
+         * @return false if a TLV is truncated or a value is out of range
+         */
+        public final boolean parse(byte[] params) {
             if (D) Log.d(TAG, "Parse App. Params: Enter");
 
             if (params == null){
@@ -223,316 +242,167 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
                 return true;
             }
 
-            while (i < params.length) {
-                switch (params[i]) {
+            int i = 0;
+            while (i + 2 <= params.length) {
+                final int tag = params[i];
+                final int len = params[i + 1] & 0xFF;
+                final int v = i + 2;
+                if (v + len > params.length) {
+                    Log.e(TAG, "Truncated App. Param, tag " + tag + " len " + len);
+                    return false;
+                }
+                long value = 0;
+                long minVal = 0;
+                long maxVal = 0;
+                int expectedLen = 1;
+                boolean validate = true;
+                if (len > 0) {
+                    value = params[v];
+                }
+
+                switch (tag) {
                 case BluetoothMasSpecParams.MAS_TAG_MAX_LIST_COUNT:
-                    i += 2;
-                    appParams.MaxListCount = getUint16BigEndian(params[i], params[i + 1]);
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " params i+1"
-                                + params[i + 1] + " maxlistcount "
-                                + appParams.MaxListCount);
-                    }
-                    if(validateTag((long)appParams.MaxListCount, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_MAX_LIST_COUNT_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_MAX_LIST_COUNT_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_MAX_LIST_COUNT_LEN ) == false){
-                        return false;
+                    if (len == BluetoothMasSpecParams.MAS_TAG_MAX_LIST_COUNT_LEN) {
+                        appParams.MaxListCount = getUint16BigEndian(params[v], params[v + 1]);
                     }
-                    i += BluetoothMasSpecParams.MAS_TAG_MAX_LIST_COUNT_LEN;
+                    value = appParams.MaxListCount;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_MAX_LIST_COUNT_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_MAX_LIST_COUNT_MAX_VAL;
+                    expectedLen = BluetoothMasSpecParams.MAS_TAG_MAX_LIST_COUNT_LEN;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_LIST_START_OFFSET:
-                    i += 2;
-                    appParams.ListStartOffset = getUint16BigEndian(params[i],
-                            params[i + 1]);
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " params i+1"
-                                + params[i + 1] + " maxlistcount "
-                                + appParams.ListStartOffset);
+                    if (len == BluetoothMasSpecParams.MAS_TAG_LIST_START_OFFSET_LEN) {
+                        appParams.ListStartOffset = getUint16BigEndian(params[v], params[v + 1]);
                     }
-                    if(validateTag((long)appParams.ListStartOffset, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_LIST_START_OFFSET_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_LIST_START_OFFSET_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_LIST_START_OFFSET_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_LIST_START_OFFSET_LEN;
+                    value = appParams.ListStartOffset;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_LIST_START_OFFSET_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_LIST_START_OFFSET_MAX_VAL;
+                    expectedLen = BluetoothMasSpecParams.MAS_TAG_LIST_START_OFFSET_LEN;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_FILTER_PERIOD_BEGIN:
-                    i += 1;
-                    appParams.FilterPeriodBegin = new String("");
-                    for (int j = 1; j <= params[i]; j++) {
-                        appParams.FilterPeriodBegin += (char) params[i + j];
-                    }
-                    if (V){
-                        Log.v(TAG, "FilterPeriodBegin "
-                                + appParams.FilterPeriodBegin);
-                    }
-                    i += params[i];
-                    i += 1;
+                    appParams.FilterPeriodBegin = getString(params, v, len);
+                    validate = false;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_FILTER_PERIOD_END:
-                    i += 1;
-                    appParams.FilterPeriodEnd = new String("");
-                    for (int j = 1; j <= params[i]; j++) {
-                        appParams.FilterPeriodEnd += (char) params[i + j];
-                    }
-                    if (V){
-                        Log.v(TAG, "FilterPeriodEnd " + appParams.FilterPeriodEnd);
-                    }
-                    i += params[i];
-                    i += 1;
+                    appParams.FilterPeriodEnd = getString(params, v, len);
+                    validate = false;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_FILTER_RECIPIENT:
-                    i += 1;
-                    appParams.FilterRecipient = new String("");
-                    for (int j = 1; j <= params[i]; j++) {
-                        appParams.FilterRecipient += (char)params[i + j];
-
-                    }
-                    if (V){
-                        Log.v(TAG, "FilterPeriodRecipient "
-                                + appParams.FilterRecipient);
-                    }
-                    i += params[i];
-                    i += 1;
+                    appParams.FilterRecipient = getString(params, v, len);
+                    validate = false;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_FILTER_ORIGINATOR:
-                    i += 1;
-                    appParams.FilterOriginator = new String("");
-                    for (int j = 1; j <= params[i]; j++) {
-                        appParams.FilterOriginator += (char) params[i+ j];
-                    }
-                    if (V){
-                        Log.v(TAG, "FilterPeriodOriginator "
-                                + appParams.FilterOriginator);
-                    }
-                    i += params[i];
-                    i += 1;
+                    appParams.FilterOriginator = getString(params, v, len);
+                    validate = false;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_FILTER_MESSAGE_TYPE:
-                    i += 2;
-                    appParams.FilterMessageType = params[i];
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " FilterMessageType "
-                                + appParams.FilterMessageType);
-                    }
-                    if(validateTag((long)appParams.FilterMessageType, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FILTER_MESSAGE_TYPE_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FILTER_MESSAGE_TYPE_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FILTER_MESSAGE_TYPE_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_FILTER_MESSAGE_TYPE_LEN;
+                    appParams.FilterMessageType = (byte) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_FILTER_MESSAGE_TYPE_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_FILTER_MESSAGE_TYPE_MAX_VAL;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_FILTER_READ_STATUS:
-                    i += 2;
-                    appParams.FilterReadStatus = params[i];
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " FilterReadStatus "
-                                + appParams.FilterReadStatus);
-                    }
-                    if(validateTag((long)appParams.FilterReadStatus, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FILTER_READ_STATUS_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FILTER_READ_STATUS_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FILTER_READ_STATUS_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_FILTER_READ_STATUS_LEN;
+                    appParams.FilterReadStatus = (byte) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_FILTER_READ_STATUS_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_FILTER_READ_STATUS_MAX_VAL;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_FILTER_PRIORITY:
-                    i += 2;
-                    appParams.FilterPriority = params[i];
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " FilterPriority "
-                                + appParams.FilterPriority);
-                    }
-                    if(validateTag((long)appParams.FilterPriority, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FILTER_PRIORITY_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FILTER_PRIORITY_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FILTER_PRIORITY_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_FILTER_PRIORITY_LEN;
+                    appParams.FilterPriority = (byte) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_FILTER_PRIORITY_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_FILTER_PRIORITY_MAX_VAL;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_STATUS_INDICATOR:
-                    i += 2;
-                    appParams.StatusIndicator = params[i];
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " StatusIndicator "
-                                + appParams.StatusIndicator);
-                    }
-                    if(validateTag((long)appParams.StatusIndicator, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_STATUS_INDICATOR_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_STATUS_INDICATOR_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_STATUS_INDICATOR_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_STATUS_INDICATOR_LEN;
+                    appParams.StatusIndicator = (byte) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_STATUS_INDICATOR_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_STATUS_INDICATOR_MAX_VAL;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_STATUS_VALUE:
-                    i += 2;
-                    appParams.StatusValue = params[i];
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " StatusValue "
-                                + appParams.StatusValue);
-                    }
-                    if(validateTag((long)appParams.StatusValue, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_STATUS_VALUE_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_STATUS_VALUE_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_STATUS_VALUE_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_STATUS_VALUE_LEN;
+                    appParams.StatusValue = (byte) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_STATUS_VALUE_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_STATUS_VALUE_MAX_VAL;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_SUBJECT_LENGTH:
-                    i += 2;
-                    appParams.SubjectLength = (short)(params[i] & 0x00FF);
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " SubjectLen "
-                                + appParams.SubjectLength);
-                    }
-                    if(validateTag((long)appParams.SubjectLength, (long) params[i-1],
-                                         (long) BluetoothMasSpecParams.MAS_TAG_SUBJECT_LENGTH_MIN_VAL,
-                                         (long) BluetoothMasSpecParams.MAS_TAG_SUBJECT_LENGTH_MAX_VAL,
-                                         (long) BluetoothMasSpecParams.MAS_TAG_SUBJECT_LENGTH_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_SUBJECT_LENGTH_LEN;
+                    value &= 0xFF;
+                    appParams.SubjectLength = (short) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_SUBJECT_LENGTH_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_SUBJECT_LENGTH_MAX_VAL;
+                    expectedLen = BluetoothMasSpecParams.MAS_TAG_SUBJECT_LENGTH_LEN;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_PARAMETER_MASK:
-                    i += 2;
-                    appParams.ParameterMask = getUint32BigEndian(params[i],
-                            params[i + 1], params[i + 2], params[i + 3]);
+                    if (len == BluetoothMasSpecParams.MAS_TAG_PARAMETER_MASK_LEN) {
+                        appParams.ParameterMask = getUint32BigEndian(params[v],
+                                params[v + 1], params[v + 2], params[v + 3]);
+                    }
                     if ( appParams.ParameterMask == 0 ){
                         // If it is 0, send all parameters
                         appParams.ParameterMask = BluetoothMasSpecParams.MAS_DEFAULT_PARAMETER_MASK;
                     }
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " params i+1"
-                                + params[i + 1] + "params[i+2]" + params[i + 2]
-                                + "params[i+3" + params[i + 3] + " ParameterMask "
-                                + appParams.ParameterMask);
-                    }
-                    if(validateTag((long)appParams.ParameterMask, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_PARAMETER_MASK_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_PARAMETER_MASK_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_PARAMETER_MASK_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_PARAMETER_MASK_LEN;
+                    value = appParams.ParameterMask;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_PARAMETER_MASK_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_PARAMETER_MASK_MAX_VAL;
+                    expectedLen = BluetoothMasSpecParams.MAS_TAG_PARAMETER_MASK_LEN;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_CHARSET:
-                    i += 2;
-                    appParams.Charset = params[i];
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " Charset "
-                                + appParams.Charset);
-                    }
-                    if(validateTag((long)appParams.Charset, (long) params[i-1],
-                                          (long) BluetoothMasSpecParams.MAS_TAG_CHARSET_MIN_VAL,
-                                          (long) BluetoothMasSpecParams.MAS_TAG_CHARSET_MAX_VAL,
-                                          (long) BluetoothMasSpecParams.MAS_TAG_CHARSET_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_CHARSET_LEN;
+                    appParams.Charset = (byte) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_CHARSET_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_CHARSET_MAX_VAL;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_TRANSPARENT:
-                    i += 2;
-                    appParams.Transparent = params[i];
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " Transparent "
-                                + appParams.Transparent);
-                    }
-                    if(validateTag((long)appParams.Transparent, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_TRANSPARENT_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_TRANSPARENT_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_TRANSPARENT_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_TRANSPARENT_LEN;
+                    appParams.Transparent = (byte) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_TRANSPARENT_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_TRANSPARENT_MAX_VAL;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_RETRY:
-                    i += 2;
-                    appParams.Retry = params[i];
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " Retry "
-                                + appParams.Retry);
-                    }
-                    if(validateTag((long)appParams.Retry, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_RETRY_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_RETRY_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_RETRY_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_RETRY_LEN;
+                    appParams.Retry = (byte) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_RETRY_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_RETRY_MAX_VAL;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_ATTACHMENT:
-                    i += 2;
-                    appParams.Attachment = params[i];
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " Attachment "
-                                + appParams.Attachment);
-                    }
-                    if(validateTag((long)appParams.Attachment, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_ATTACHMENT_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_ATTACHMENT_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_ATTACHMENT_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_ATTACHMENT_LEN;
+                    appParams.Attachment = (byte) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_ATTACHMENT_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_ATTACHMENT_MAX_VAL;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_FRACTION_REQUEST:
-                    i += 2;
-                    appParams.FractionRequest = params[i];
-                    if (V){
-                        Log.v(TAG, " params i " + params[i] + " Fraction Request "
-                                + appParams.FractionRequest);
-                    }
-                    if(validateTag((long)appParams.FractionRequest, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FRACTION_REQUEST_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FRACTION_REQUEST_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_FRACTION_REQUEST_LEN ) == false){
-                        return false;
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_FRACTION_REQUEST_LEN;
+                    appParams.FractionRequest = (byte) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_FRACTION_REQUEST_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_FRACTION_REQUEST_MAX_VAL;
                     break;
 
                 case BluetoothMasSpecParams.MAS_TAG_NOTIFICATION_STATUS:
-                    i += 2;
-                    appParams.Notification = params[i];
-                    if(validateTag((long)appParams.MaxListCount, (long) params[i-1],
-                                   (long) BluetoothMasSpecParams.MAS_TAG_NOTIFICATION_STATUS_MIN_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_NOTIFICATION_STATUS_MAX_VAL,
-                                   (long) BluetoothMasSpecParams.MAS_TAG_NOTIFICATION_STATUS_LEN ) == false){
-                        return false;
-
-                    }
-                    i += BluetoothMasSpecParams.MAS_TAG_NOTIFICATION_STATUS_LEN;
+                    appParams.Notification = (byte) value;
+                    minVal = BluetoothMasSpecParams.MAS_TAG_NOTIFICATION_STATUS_MIN_VAL;
+                    maxVal = BluetoothMasSpecParams.MAS_TAG_NOTIFICATION_STATUS_MAX_VAL;
                     break;
+
                 default:
+                    if (V) Log.v(TAG, "Skipping App. Param tag " + tag + " len " + len);
+                    validate = false;
                     break;
+                }
 
+                if (V) Log.v(TAG, "App. Param tag " + tag + " len " + len + " value " + value);
+                if (validate && !validateTag(value, len, minVal, maxVal, expectedLen)) {
+                    return false;
                 }
+                i = v + len;
             }
-            return true;
+            return i == params.length;
         }
     }
 
@@ -650,7 +520,7 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
     @Override
     public int onAbort(HeaderSet request, HeaderSet reply) {
         if (D) Log.d(TAG, "onAbort(): enter.");
-        sIsAborted = true;
+        mIsAborted = true;
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
@@ -722,6 +592,7 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
 
     public void onCloseInternal() {
         mAppIf.stopMnsSession(mRemoteDevice);
+        if (D) dumpRequestStats();
 
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
@@ -736,7 +607,9 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
     public int onGet(Operation op) {
         if (V) Log.v(TAG, "BluetoothMasObexServer: onGet");
         acquireMasLock();
+        final long start = beginRequest();
         int retVal = onGetInternal(op);
+        endRequest(start, retVal);
         if (V) Log.v(TAG, "BluetoothMasObexServer: exiting from onGet");
         releaseMasLock();
         return retVal;
@@ -749,7 +622,7 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
 
         if (D) Log.d(TAG, "onGet(): support GET request.");
 
-        sIsAborted = false;
+        mIsAborted = false;
         HeaderSet request = null;
         String type = "";
         String name = "";
@@ -776,6 +649,7 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
         }
 
         if (V) Log.v(TAG, "type = " + type);
+        mRequestType = type;
 
         if (type.equals(TYPE_LISTING)) {
             return sendFolderListing(op);
@@ -795,95 +669,35 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
     private final int pushMsg(Operation op, String name) {
         // TBD - Need to do this on a per masinstance basis
         String fileName = "PushMsg" + mAppIf.getMasId();
-        int outputBufferSize = op.getMaxPacketSize();
-        int readLength = 0;
-        long timestamp = 0;
-        int position = 0;
-        byte[] b = new byte[outputBufferSize];
-        BufferedOutputStream bos = null;
-        InputStream is = null;
-        boolean error = false;
-        File file = null;
-        BluetoothMasPushMsgRsp pMsg = new BluetoothMasPushMsgRsp();;
-
-        file = new File(mContext.getFilesDir() + "/" + fileName);
+        PushMsgBody body = new PushMsgBody(new File(mContext.getFilesDir(), fileName));
+        BluetoothMasPushMsgRsp pMsg;
 
         try {
-            is = op.openInputStream();
-        } catch (IOException e1) {
-            Log.e(TAG, "Error while opening InputStream");
-            error = true;
-        }
-
-        if (error != true) {
-            try {
-
-                FileOutputStream fos = mContext.openFileOutput(fileName,
-                        Context.MODE_PRIVATE);
-
-                bos = new BufferedOutputStream(fos);
-            } catch (FileNotFoundException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        }
-
-        if (error != true) {
-            try {
-                while (true) {
-                    if (V) {
-                        timestamp = System.currentTimeMillis();
-                    }
-                    readLength = is.read(b);
-                    if (readLength == -1) {
-                        if (D) {
-                            Log.d(TAG, "Receive file reached stream end at position" + position);
-                        }
-                        break;
-                    }
-                    bos.write(b, 0, readLength);
-                    position += readLength;
-                    if (V) {
-                        Log.v(TAG, "Receive file position = " + position
-                                + " readLength " + readLength + " bytes took "
-                                + (System.currentTimeMillis() - timestamp)
-                                + " ms");
-                    }
-                }
-            } catch (IOException e1) {
-                Log.e(TAG, "Error when receiving file");
-                error = true;
-            }
+            InputStream is = op.openInputStream();
+            body.readFrom(is, op.getMaxPacketSize());
+        } catch (IOException e) {
+            Log.e(TAG, "Error when receiving message " + e.getMessage());
+            body.release();
+            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        if (bos != null) {
-            try {
-                bos.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error when closing stream after send");
-                error = true;
-            }
+        try {
+            pMsg = mAppIf.pushMsg(name, body, masAppParams.get());
+        } catch (BadRequestException e) {
+            if (V) Log.v(TAG, "BadRequestException:" + e.getMessage(), e);
+            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+        } finally {
+            body.release();
         }
 
-        if (error != true) {
-            try {
-                pMsg = mAppIf.pushMsg(name, file, masAppParams.get());
-            } catch (BadRequestException e) {
-                if (V) Log.v(TAG, "BadRequestException:" + e.getMessage(), e);
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-            }
-
-            if ((pMsg.msgHandle != null)
-                    && (pMsg.response == ResponseCodes.OBEX_HTTP_OK)) {
-                HeaderSet reply;
-                reply = new HeaderSet();
-                reply.setHeader(HeaderSet.NAME, pMsg.msgHandle);
-                return pushHeader(op, reply);
-            } else {
-                return pMsg.response;
-            }
+        if ((pMsg.msgHandle != null)
+                && (pMsg.response == ResponseCodes.OBEX_HTTP_OK)) {
+            HeaderSet reply;
+            reply = new HeaderSet();
+            reply.setHeader(HeaderSet.NAME, pMsg.msgHandle);
+            return pushHeader(op, reply);
         } else {
-            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+            return pMsg.response;
         }
     }
 
@@ -908,7 +722,9 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
     public int onPut(Operation op) {
         if (V) Log.v(TAG, "BluetoothMasObexServer: onPut");
         acquireMasLock();
+        final long start = beginRequest();
         int retVal = onPutInternal(op);
+        endRequest(start, retVal);
         if (V) Log.v(TAG, "BluetoothMasObexServer: exiting from onPut");
         releaseMasLock();
         return retVal;
@@ -924,7 +740,7 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
 
         if (D) Log.d(TAG, "onPut(): support PUT request.");
 
-        sIsAborted = false;
+        mIsAborted = false;
         HeaderSet request = null;
         String type = "";
         String name = "";
@@ -953,6 +769,7 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
         tmp = masAppParams.get();
 
         if (V) Log.v(TAG, "type = " + type);
+        mRequestType = type;
 
         if (type.equals(TYPE_MESSAGE)) {
             return pushMsg(op, name);
@@ -1036,16 +853,19 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
     }
 
     /** Function to send folder data to client */
-    private final int sendFolderListingBody(Operation op,
-            final String folderlistString) {
+    private final int sendFolderListingBody(Operation op, final byte[] folderListing) {
 
-        if (folderlistString == null) {
-            Log.e(TAG, "folderlistString is null!");
+        if (folderListing == null) {
+            Log.e(TAG, "folderListing is null!");
             return ResponseCodes.OBEX_HTTP_OK;
         }
+        if (D) Log.d(TAG, "Send Folder Listing Body: len=" + folderListing.length);
+        return sendBody(op, folderListing);
+    }
 
-        int folderlistStringLen = folderlistString.length();
-        if (D) Log.d(TAG, "Send Folder Listing Body: len=" + folderlistStringLen);
+    /** Function to encode message listing entries straight into the OBEX stream */
+    private final int sendMsgListingBody(Operation op, final List<MsgListingConsts> msgList) {
+        if (D) Log.d(TAG, "Send Msg Listing Body: entries=" + msgList.size());
 
         OutputStream outputStream = null;
         int pushResult = ResponseCodes.OBEX_HTTP_OK;
@@ -1056,44 +876,84 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_UNAVAILABLE;
         }
 
-        int position = 0;
         long timestamp = 0;
-        int outputBufferSize = op.getMaxPacketSize();
-        if (V) Log.v(TAG, "outputBufferSize = " + outputBufferSize);
-        while (position != folderlistStringLen) {
-            if (sIsAborted) {
-                ((ServerOperation) op).isAborted = true;
-                sIsAborted = false;
-                break;
-            }
-            if (V) timestamp = System.currentTimeMillis();
-            int readLength = outputBufferSize;
-            if (folderlistStringLen - position < outputBufferSize) {
-                readLength = folderlistStringLen - position;
-            }
-            String subStr = folderlistString.substring(position, position + readLength);
-            try {
-                outputStream.write(subStr.getBytes(), 0, readLength);
-            } catch (IOException e) {
-                Log.e(TAG, "write outputstream failed" + e.toString());
-                pushResult = ResponseCodes.OBEX_HTTP_UNAVAILABLE;
-                break;
+        if (V) timestamp = System.currentTimeMillis();
+        // Coalesce the serializer output into packet sized writes
+        BufferedOutputStream bos = new BufferedOutputStream(outputStream,
+                op.getMaxPacketSize());
+        MsgListingXmlWriter writer = new MsgListingXmlWriter(bos);
+        try {
+            writer.start();
+            for (MsgListingConsts msg : msgList) {
+                if (mIsAborted) {
+                    ((ServerOperation) op).isAborted = true;
+                    mIsAborted = false;
+                    break;
+                }
+                writer.write(msg);
             }
-            if (V) {
-                Log.d(TAG, "Sending folderlist String position = " + position
-                        + " readLength " + readLength + " bytes took "
-                        + (System.currentTimeMillis() - timestamp) + " ms");
+            if (!((ServerOperation) op).isAborted) {
+                writer.end();
             }
-            position += readLength;
+            bos.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "write outputstream failed" + e.toString());
+            pushResult = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "encoding message listing failed" + e.toString());
+            pushResult = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "encoding message listing failed" + e.toString());
+            pushResult = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        if (V) Log.v(TAG, "Send Data complete!");
+        if (V) {
+            Log.v(TAG, "Sending " + writer.getCount() + " listing entries took "
+                    + (System.currentTimeMillis() - timestamp) + " ms");
+        }
 
         if (!closeStream(outputStream, op)) {
-            Log.e(TAG,"Send Folder Listing Body - Close output stream error! ");
+            Log.e(TAG,"Send Msg Listing Body - Close output stream error! ");
+            pushResult = ResponseCodes.OBEX_HTTP_UNAVAILABLE;
+        }
+        if (V) Log.v(TAG, "Send Msg Listing Body complete! result = " + pushResult);
+        return pushResult;
+    }
+
+    /** Function to send a response body held in memory to client */
+    private final int sendBody(Operation op, byte[] body) {
+        if (D) Log.d(TAG, "Send Body: len=" + body.length);
+        int position = 0;
+        long timestamp = 0;
+        if (V) timestamp = System.currentTimeMillis();
+        OutputStream outputStream = null;
+        int pushResult = ResponseCodes.OBEX_HTTP_OK;
+        try {
+            outputStream = op.openOutputStream();
+            int outputBufferSize = op.getMaxPacketSize();
+            while (position != body.length) {
+                if (mIsAborted) {
+                    ((ServerOperation) op).isAborted = true;
+                    mIsAborted = false;
+                    break;
+                }
+                int readLength = Math.min(outputBufferSize, body.length - position);
+                outputStream.write(body, position, readLength);
+                position += readLength;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "write outputstream failed" + e.toString());
+            pushResult = ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+        }
+        if (V) {
+            Log.v(TAG, "Sending " + position + " bytes took "
+                    + (System.currentTimeMillis() - timestamp) + " ms");
+        }
+        if (outputStream != null && !closeStream(outputStream, op)) {
+            Log.e(TAG,"Send Body - Close output stream error! ");
             pushResult = ResponseCodes.OBEX_HTTP_UNAVAILABLE;
         }
-        if (V) Log.v(TAG, "Send Folder Listing Body complete! result = " + pushResult);
+        if (D) Log.d(TAG, "Send Body : Exit: result = " + pushResult);
         return pushResult;
     }
 
@@ -1150,25 +1010,27 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
     /** Send a bMessage to client */
     private final int sendMsg(Operation op, String name) {
         BluetoothMasMessageRsp msg = new BluetoothMasMessageRsp();
-        byte[] val = new byte[1];
 
         if (D) Log.d(TAG, "SendMsg : Enter");
+        long timestamp = 0;
+        if (D) timestamp = System.currentTimeMillis();
         msg = mAppIf.msg(name, masAppParams.get());
+        if (D) {
+            Log.d(TAG, "SendMsg : bMessage built in " + (System.currentTimeMillis() - timestamp)
+                    + " ms" + ((msg != null && msg.body == null) ? " (file)" : ""));
+        }
         if(msg == null || msg.rsp != ResponseCodes.OBEX_HTTP_OK) {
             return msg.rsp;
         }
 
         if(masAppParams.get().FractionRequest == 1){
             HeaderSet reply;
-            val[0] = msg.fractionDeliver;
-            ApplicationParameter ap = new ApplicationParameter();
-            ap.addAPPHeader(
-                (byte) BluetoothMasSpecParams.MAS_TAG_FRACTION_DELIVER,
-                (byte) BluetoothMasSpecParams.MAS_TAG_FRACTION_DELIVER_LEN,
-                 val);
+            byte[] ap = new byte[2 + BluetoothMasSpecParams.MAS_TAG_FRACTION_DELIVER_LEN];
+            putAppParam(ap, 0, BluetoothMasSpecParams.MAS_TAG_FRACTION_DELIVER,
+                    BluetoothMasSpecParams.MAS_TAG_FRACTION_DELIVER_LEN, msg.fractionDeliver);
 
             reply = new HeaderSet();
-            reply.setHeader(HeaderSet.APPLICATION_PARAMETER, ap.getAPPparam());
+            reply.setHeader(HeaderSet.APPLICATION_PARAMETER, ap);
 
             int retVal;
             retVal = pushHeader(op, reply);
@@ -1178,26 +1040,49 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
             }
         }
         if (D) Log.d(TAG, "SendMsg : SUCCESS");
+        if (msg.body != null) {
+            return sendBody(op, msg.body);
+        }
+        if (msg.file == null) {
+            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+        }
         return sendBody(op, msg.file);
     }
 
+    /**
+     * Writes one application parameter TLV with a big endian value of len
+     * bytes into buf at pos.
+     *
+     * @return the position after the TLV
+     */
+    private static int putAppParam(byte[] buf, int pos, int tag, int len, long value) {
+        buf[pos++] = (byte) tag;
+        buf[pos++] = (byte) len;
+        for (int shift = (len - 1) * 8; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (value >> shift);
+        }
+        return pos;
+    }
+
+    private static int putAppParam(byte[] buf, int pos, int tag, byte[] value) {
+        buf[pos++] = (byte) tag;
+        buf[pos++] = (byte) value.length;
+        System.arraycopy(value, 0, buf, pos, value.length);
+        return pos + value.length;
+    }
+
     /** Send an XML format String to client for Folder listing */
     private final int sendFolderListing(Operation op) {
         int folderListSize = 0;
         if (D) Log.d(TAG, "SendFolderListing : Enter");
         folderListSize = mAppIf.folderListingSize();
-        byte[] size = new byte[2];
-        size[0] = (byte) ((folderListSize / 0x100) & 0xff);
-        size[1] = (byte) ((folderListSize % 0x100) & 0xff);
 
         HeaderSet reply;
-        ApplicationParameter ap = new ApplicationParameter();
-        ap.addAPPHeader(
-            (byte) BluetoothMasSpecParams.MAS_TAG_FOLDER_LISTING_SIZE,
-            (byte) BluetoothMasSpecParams.MAS_TAG_FOLDER_LISTING_SIZE_LEN,
-            size);
+        byte[] ap = new byte[2 + BluetoothMasSpecParams.MAS_TAG_FOLDER_LISTING_SIZE_LEN];
+        putAppParam(ap, 0, BluetoothMasSpecParams.MAS_TAG_FOLDER_LISTING_SIZE,
+                BluetoothMasSpecParams.MAS_TAG_FOLDER_LISTING_SIZE_LEN, folderListSize);
         reply = new HeaderSet();
-        reply.setHeader(HeaderSet.APPLICATION_PARAMETER, ap.getAPPparam());
+        reply.setHeader(HeaderSet.APPLICATION_PARAMETER, ap);
 
         if (!masAppParams.isMaxListCountZero()) {
             int retVal;
@@ -1216,7 +1101,6 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
     /** Send an XML format String to client for Message listing */
     private final int sendMsgListing(Operation op, String name) {
 
-        byte[] val = new byte[2];
         BluetoothMasMessageListingRsp appIfMsgListRsp = new BluetoothMasMessageListingRsp();
         if (D) Log.d(TAG, "SendMsgListing : Enter");
         appIfMsgListRsp = mAppIf.msgListing(name, masAppParams.get());
@@ -1238,23 +1122,18 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
         byte[] MSETime = datetimeStr.getBytes();
 
         HeaderSet reply;
-        ApplicationParameter ap = new ApplicationParameter();
-        ap.addAPPHeader((byte) BluetoothMasSpecParams.MAS_TAG_MSE_TIME,
-                (byte) BluetoothMasSpecParams.MAS_TAG_MSE_TIME_LEN, MSETime);
-        val[0] = appIfMsgListRsp.newMessage;
-        ap.addAPPHeader((byte) BluetoothMasSpecParams.MAS_TAG_NEW_MESSAGE,
-                (byte) BluetoothMasSpecParams.MAS_TAG_NEW_MESSAGE_LEN, val);
-
-        val[0] = (byte) ((appIfMsgListRsp.msgListingSize / 0x100) & 0xff);
-        val[1] = (byte) ((appIfMsgListRsp.msgListingSize % 0x100) & 0xff);
-
-        ap.addAPPHeader(
-                (byte) BluetoothMasSpecParams.MAS_TAG_MESSAGE_LISTING_SIZE,
-                (byte) BluetoothMasSpecParams.MAS_TAG_MESSAGE_LISTING_SIZE_LEN,
-                val);
+        byte[] ap = new byte[2 + MSETime.length
+                + 2 + BluetoothMasSpecParams.MAS_TAG_NEW_MESSAGE_LEN
+                + 2 + BluetoothMasSpecParams.MAS_TAG_MESSAGE_LISTING_SIZE_LEN];
+        int pos = putAppParam(ap, 0, BluetoothMasSpecParams.MAS_TAG_MSE_TIME, MSETime);
+        pos = putAppParam(ap, pos, BluetoothMasSpecParams.MAS_TAG_NEW_MESSAGE,
+                BluetoothMasSpecParams.MAS_TAG_NEW_MESSAGE_LEN, appIfMsgListRsp.newMessage);
+        putAppParam(ap, pos, BluetoothMasSpecParams.MAS_TAG_MESSAGE_LISTING_SIZE,
+                BluetoothMasSpecParams.MAS_TAG_MESSAGE_LISTING_SIZE_LEN,
+                appIfMsgListRsp.msgListingSize);
 
         reply = new HeaderSet();
-        reply.setHeader(HeaderSet.APPLICATION_PARAMETER, ap.getAPPparam());
+        reply.setHeader(HeaderSet.APPLICATION_PARAMETER, ap);
 
         if (!masAppParams.isMaxListCountZero()) {
             int retVal;
@@ -1263,6 +1142,9 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
                 if (D) Log.d(TAG, "SendMsgListing : Failed : RetVal " + retVal);
                 return retVal;
             }
+            if (appIfMsgListRsp.msgList != null) {
+                return sendMsgListingBody(op, appIfMsgListRsp.msgList);
+            }
             return sendBody(op, appIfMsgListRsp.file);
         } else {
             op.noEndofBody();
@@ -1291,6 +1173,39 @@ public class BluetoothMasObexServer extends ServerRequestHandler {
         return returnvalue;
     }
 
+    private long beginRequest() {
+        mRequestType = null;
+        final int active = sActiveRequests.incrementAndGet();
+        if (D) Log.d(TAG, "MAS " + mAppIf.getMasId() + ": request started, " + active
+                + " instance(s) busy");
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void endRequest(long start, int responseCode) {
+        sActiveRequests.decrementAndGet();
+        final long time = SystemClock.elapsedRealtime() - start;
+        final String type = (mRequestType == null) ? "unknown" : mRequestType;
+        long[] stats = mRequestStats.get(type);
+        if (stats == null) {
+            stats = new long[3];
+            mRequestStats.put(type, stats);
+        }
+        stats[0]++;
+        stats[1] += time;
+        stats[2] = Math.max(stats[2], time);
+        if (D) Log.d(TAG, "MAS " + mAppIf.getMasId() + ": " + type + " took " + time
+                + " ms, response " + responseCode);
+    }
+
+    private void dumpRequestStats() {
+        for (String type : mRequestStats.keySet()) {
+            long[] stats = mRequestStats.get(type);
+            Log.d(TAG, "MAS " + mAppIf.getMasId() + ": " + type + " count " + stats[0]
+                    + " avg " + (stats[1] / stats[0]) + " ms max " + stats[2] + " ms");
+        }
+        mRequestStats.clear();
+    }
+
     private void acquireMasLock() {
         if (V) Log.v(TAG, "About to acquire Mas:mWakeLock");
         if (mWakeLock == null) {
@@ -38,25 +38,18 @@ import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelUuid;
-import android.text.format.Time;
 import android.util.Log;
-import android.util.Pair;
 
 import org.codeaurora.bluetooth.map.IBluetoothMasApp.MessageNotificationListener;
 import org.codeaurora.bluetooth.map.IBluetoothMasApp.MnsRegister;
 import org.codeaurora.bluetooth.map.MapUtils.MapUtils;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.obex.ObexTransport;
 
@@ -67,11 +60,16 @@ import static org.codeaurora.bluetooth.map.IBluetoothMasApp.MSG;
 import static org.codeaurora.bluetooth.map.IBluetoothMasApp.TELECOM;
 
 /**
- * This class run an MNS session.
+ * This class run an MNS session. One OBEX client session is shared by all
+ * the registered MAS instances. When the session fails while instances are
+ * still registered it is re-established with an exponential back-off, and
+ * the event reports raised in the meantime are held in the event queue.
  */
 public class BluetoothMns implements MessageNotificationListener {
     private static final String TAG = "BtMns";
 
+    private static final boolean D = BluetoothMasService.DEBUG;
+
     private static final boolean V = BluetoothMasService.VERBOSE;
 
     public static final int RFCOMM_ERROR = 10;
@@ -90,8 +88,16 @@ public class BluetoothMns implements MessageNotificationListener {
 
     public static final int MNS_BLUETOOTH_OFF = 18;
 
+    public static final int MNS_RECONNECT = 19;
+
     public static final int MNS_SEND_TIMEOUT_DURATION = 30000; // 30 secs
 
+    private static final int RECONNECT_BASE_DELAY = 1000; // 1 sec
+
+    private static final int RECONNECT_MAX_DELAY = 30000; // 30 secs
+
+    private static final int MAX_RECONNECT_ATTEMPTS = 6;
+
     private static final short MNS_UUID16 = 0x1133;
 
     public static final String NEW_MESSAGE = "NewMessage";
@@ -116,7 +122,7 @@ public class BluetoothMns implements MessageNotificationListener {
 
     private BluetoothAdapter mAdapter;
 
-    private BluetoothMnsObexSession mSession;
+    private volatile BluetoothMnsObexSession mSession;
 
     private EventHandler mSessionHandler;
 
@@ -125,8 +131,18 @@ public class BluetoothMns implements MessageNotificationListener {
             .fromString("00001133-0000-1000-8000-00805F9B34FB");
 
     private HashSet<Integer> mWaitingMasId = new HashSet<Integer>();
-    private final Queue<Pair<Integer, String>> mEventQueue = new ConcurrentLinkedQueue<Pair<Integer, String>>();
-    private boolean mSendingEvent = false;
+    private final MnsEventQueue mEventQueue = new MnsEventQueue(new MnsEventQueue.EventSender() {
+        public boolean sendEvent(MnsEventQueue.Event event) {
+            return BluetoothMns.this.sendEvent(event);
+        }
+    });
+
+    // Reconnection state, only changed on the handler thread or in stop()
+    private BluetoothDevice mRemoteDevice;
+    private volatile boolean mReconnecting = false;
+    private int mReconnectAttempt = 0;
+    private int mReconnects = 0;
+    private int mReconnectFailures = 0;
 
 
     public BluetoothMns(Context context, boolean isEmailEnabled) {
@@ -286,6 +302,7 @@ public class BluetoothMns implements MessageNotificationListener {
                 {
                     final int masId = msg.arg1;
                     final BluetoothDevice device = (BluetoothDevice)msg.obj;
+                    mRemoteDevice = device;
                     if (mSession != null) {
                         if (V) Log.v(TAG, "is MNS session connected? " + mSession.isConnected());
                         if (mSession.isConnected()) {
@@ -296,6 +313,11 @@ public class BluetoothMns implements MessageNotificationListener {
                             break;
                         }
                     }
+                    if (mReconnecting) {
+                        // Registered as soon as the session is back
+                        mWaitingMasId.add(masId);
+                        break;
+                    }
                     if (mWaitingMasId.isEmpty()) {
                         mWaitingMasId.add(masId);
                         mConnectThread = new SocketConnectThread(device);
@@ -336,6 +358,9 @@ public class BluetoothMns implements MessageNotificationListener {
                  */
                 case RFCOMM_ERROR:
                     if (V) Log.v(TAG, "receive RFCOMM_ERROR msg");
+                    if (scheduleReconnect()) {
+                        break;
+                    }
                     deregisterAll();
                     mWaitingMasId.clear();
                     if (canDisconnect()) {
@@ -355,6 +380,21 @@ public class BluetoothMns implements MessageNotificationListener {
                         sendEmptyMessage(RFCOMM_ERROR);
                         return;
                     }
+                    if (mReconnecting) {
+                        if (!mSession.isConnected()) {
+                            sendEmptyMessage(RFCOMM_ERROR);
+                            return;
+                        }
+                        mReconnecting = false;
+                        mReconnects++;
+                        if (D) Log.d(TAG, "MNS session restored after " + mReconnectAttempt
+                                + " attempts, reconnects " + mReconnects + ", failed "
+                                + mReconnectFailures + ", dropped events "
+                                + mEventQueue.getDroppedCount());
+                        mReconnectAttempt = 0;
+                    }
+                    // Events held back by an earlier failure can go out now
+                    mEventQueue.resume();
                     for (int masId : mWaitingMasId) {
                         register(masId);
                     }
@@ -364,41 +404,67 @@ public class BluetoothMns implements MessageNotificationListener {
                 /* Handle the error state of an Obex session */
                 case BluetoothMnsObexSession.MSG_SESSION_ERROR:
                     if (V) Log.v(TAG, "receive MSG_SESSION_ERROR");
+                    if (mReconnecting || scheduleReconnect()) {
+                        break;
+                    }
                     deregisterAll();
                     stop();
                     break;
-                case MNS_SEND_EVENT:
-                {
-                    final String xml = (String)msg.obj;
-                    final int masId = msg.arg1;
-                    if (mSendingEvent) {
-                        mEventQueue.add(new Pair<Integer, String>(masId, xml));
-                    } else {
-                        mSendingEvent = true;
-                        new Thread(new SendEventTask(xml, masId)).start();
-                    }
-                    break;
-                }
-                case MNS_SEND_EVENT_DONE:
-                    if (mEventQueue.isEmpty()) {
-                        mSendingEvent = false;
-                    } else {
-                        final Pair<Integer, String> p = mEventQueue.remove();
-                        final int masId = p.first;
-                        final String xml = p.second;
-                        new Thread(new SendEventTask(xml, masId)).start();
-                    }
-                    break;
                 case MNS_SEND_TIMEOUT:
                 {
                     if (V) Log.v(TAG, "MNS_SEND_TIMEOUT disconnecting.");
+                    if (mReconnecting || scheduleReconnect()) {
+                        break;
+                    }
                     deregisterAll();
                     stop();
                     break;
                 }
+                case MNS_RECONNECT:
+                {
+                    if (!mReconnecting) {
+                        break;
+                    }
+                    if (canDisconnect()) {
+                        if (V) Log.v(TAG, "No MAS instance registered, reconnect cancelled");
+                        stop();
+                        break;
+                    }
+                    if (D) Log.d(TAG, "MNS reconnect attempt " + mReconnectAttempt);
+                    mConnectThread = new SocketConnectThread(mRemoteDevice);
+                    mConnectThread.start();
+                    break;
+                }
             }
         }
 
+        /**
+         * Close the failed session and retry the connection later, keeping
+         * the registered instances and their pending events.
+         * @return false if the session should be torn down instead
+         */
+        private boolean scheduleReconnect() {
+            if (mRemoteDevice == null || canDisconnect()) {
+                return false;
+            }
+            if (mReconnectAttempt >= MAX_RECONNECT_ATTEMPTS) {
+                mReconnectFailures++;
+                Log.e(TAG, "MNS reconnect failed after " + mReconnectAttempt + " attempts");
+                mReconnecting = false;
+                mReconnectAttempt = 0;
+                return false;
+            }
+            final int delay = Math.min(RECONNECT_BASE_DELAY << mReconnectAttempt,
+                    RECONNECT_MAX_DELAY);
+            mReconnectAttempt++;
+            mReconnecting = true;
+            mEventQueue.pause();
+            closeSession();
+            if (D) Log.d(TAG, "MNS session lost, reconnecting in " + delay + " ms");
+            sendEmptyMessageDelayed(MNS_RECONNECT, delay);
+            return true;
+        }
+
         private void setTimeout(int masId) {
             if (V) Log.v(TAG, "setTimeout MNS_SEND_TIMEOUT for instance " + masId);
             sendMessageDelayed(obtainMessage(MNS_SEND_TIMEOUT, masId, -1),
@@ -408,112 +474,24 @@ public class BluetoothMns implements MessageNotificationListener {
         private void removeTimeout() {
             if (hasMessages(MNS_SEND_TIMEOUT)) {
                 removeMessages(MNS_SEND_TIMEOUT);
-                sendEventDone();
             }
         }
-
-        private void sendEventDone() {
-            if (V) Log.v(TAG, "post MNS_SEND_EVENT_DONE");
-            obtainMessage(MNS_SEND_EVENT_DONE).sendToTarget();
-        }
-
-        class SendEventTask implements Runnable {
-            final String mXml;
-            final int mMasId;
-            SendEventTask (String xml, int masId) {
-                mXml = xml;
-                mMasId = masId;
-            }
-
-            public void run() {
-                if (V) Log.v(TAG, "MNS_SEND_EVENT started");
-                setTimeout(mMasId);
-                sendEvent(mXml, mMasId);
-                removeTimeout();
-                if (V) Log.v(TAG, "MNS_SEND_EVENT finished");
-            }
-        }
-    }
-
-    /*
-     * Class to hold message handle for MCE Initiated operation
-     */
-    public class BluetoothMnsMsgHndlMceInitOp {
-        public String msgHandle;
-        Time time;
     }
 
     /*
      * Keep track of Message Handles on which the operation was
      * initiated by MCE
      */
-    List<BluetoothMnsMsgHndlMceInitOp> opList = new ArrayList<BluetoothMnsMsgHndlMceInitOp>();
+    private final MceOperationTracker mMceOperations = new MceOperationTracker();
 
     /*
-     * Adds the Message Handle to the list for tracking
-     * MCE initiated operation
+     * Adds the Message Handle for tracking MCE initiated operation.
+     * "+" indicates the next (any) operation
      */
     public void addMceInitiatedOperation(String msgHandle) {
-        BluetoothMnsMsgHndlMceInitOp op = new BluetoothMnsMsgHndlMceInitOp();
-        op.msgHandle = msgHandle;
-        op.time = new Time();
-        op.time.setToNow();
-        opList.add(op);
-    }
-    /*
-     * Removes the Message Handle from the list for tracking
-     * MCE initiated operation
-     */
-    public void removeMceInitiatedOperation(int location) {
-        opList.remove(location);
-    }
-
-    /*
-     * Finds the location in the list of the given msgHandle, if
-     * available. "+" indicates the next (any) operation
-     */
-    public int findLocationMceInitiatedOperation( String msgHandle) {
-        int location = -1;
-
-        Time currentTime = new Time();
-        currentTime.setToNow();
-
-        if (V) Log.v(TAG, "findLocationMceInitiatedOperation " + msgHandle);
-
-        List<BluetoothMnsMsgHndlMceInitOp> staleOpList = new ArrayList<BluetoothMnsMsgHndlMceInitOp>();
-        for (BluetoothMnsMsgHndlMceInitOp op: opList) {
-            if (currentTime.toMillis(false) - op.time.toMillis(false) > 10000) {
-                // add stale entries
-                staleOpList.add(op);
-            }
-        }
-        if (!staleOpList.isEmpty()) {
-            for (BluetoothMnsMsgHndlMceInitOp op: staleOpList) {
-                // Remove stale entries
-                opList.remove(op);
-            }
-        }
-
-        for (BluetoothMnsMsgHndlMceInitOp op: opList) {
-            if (op.msgHandle.equalsIgnoreCase(msgHandle)){
-                location = opList.indexOf(op);
-                break;
-            }
-        }
-
-        if (location == -1) {
-            for (BluetoothMnsMsgHndlMceInitOp op: opList) {
-                if (op.msgHandle.equalsIgnoreCase("+")) {
-                    location = opList.indexOf(op);
-                    break;
-                }
-            }
-        }
-        if (V) Log.v(TAG, "findLocationMce loc" + location);
-        return location;
+        mMceOperations.add(msgHandle);
     }
 
-
     /**
      * Post a MNS Event to the MNS thread
      */
@@ -527,83 +505,77 @@ public class BluetoothMns implements MessageNotificationListener {
             Log.v(TAG, "old_folder: " + old_folder);
             Log.v(TAG, "msgType: " + msgType);
         }
-        int location = -1;
+        boolean mceInitiated = false;
 
         /* Send the notification, only if it was not initiated
          * by MCE. MEMORY_FULL and MEMORY_AVAILABLE cannot be
          * MCE initiated
          */
-        if (msg.equals(MEMORY_AVAILABLE) || msg.equals(MEMORY_FULL)) {
-            location = -1;
-        } else {
+        if (!msg.equals(MEMORY_AVAILABLE) && !msg.equals(MEMORY_FULL)) {
             /* Consider SENDING_SUCESS as non MCE Initiated operation and remove
              * message handle from MCE Initiated OpList when MmsContentObserver
              * is not triggered for both OUTBOX and SENT folder even though
              * message is pushed sucessfully.
              */
-            location = findLocationMceInitiatedOperation(handle);
-            if (location != -1 && msg.equals(SENDING_SUCCESS)) {
-               if (V) Log.v(TAG, "Handle Pending MCE Initiated list " + location);
-               removeMceInitiatedOperation(location);
-               location = -1;
+            mceInitiated = mMceOperations.consume(handle);
+            if (mceInitiated && msg.equals(SENDING_SUCCESS)) {
+               if (V) Log.v(TAG, "Handle Pending MCE Initiated list " + handle);
+               mceInitiated = false;
             }
         }
 
-        if (location == -1) {
-            String str = MapUtils.mapEventReportXML(msg, handle, folder, old_folder, msgType);
+        if (!mceInitiated) {
             if (V) Log.v(TAG, "Notification to MAS " + masId + ", msgType = " + msgType);
-            mSessionHandler.obtainMessage(MNS_SEND_EVENT, masId, -1, str).sendToTarget();
+            mEventQueue.add(new MnsEventQueue.Event(masId, msg, handle, folder, old_folder,
+                    msgType));
         } else {
-            if (V) Log.v(TAG, "REMOVE location" + location);
-            removeMceInitiatedOperation(location);
+            if (V) Log.v(TAG, "MCE initiated, no notification for " + handle);
         }
     }
 
     /**
-     * Push the message over Obex client session
+     * Push the message over Obex client session. Called on the event queue
+     * sender thread.
      */
-    private void sendEvent(String str, int masId) {
+    private boolean sendEvent(MnsEventQueue.Event event) {
+        final String str = MapUtils.mapEventReportXML(event.type, event.handle, event.folder,
+                event.oldFolder, event.msgType);
+        final int masId = event.masId;
         if (str != null && (str.length() > 0)) {
             if (V){
                 Log.v(TAG, "--------------");
-                Log.v(TAG, " CONTENT OF EVENT REPORT FILE: " + str);
+                Log.v(TAG, " CONTENT OF EVENT REPORT: " + str);
             }
-
-            final String FILENAME = "EventReport" + masId;
-            FileOutputStream fos = null;
-            File file = new File(mContext.getFilesDir() + "/" + FILENAME);
-            file.delete();
+            final BluetoothMnsObexSession session = mSession;
+            final EventHandler handler = mSessionHandler;
+            if (session == null || handler == null) {
+                if (mReconnecting) {
+                    if (V) Log.v(TAG, " MNS reconnecting, holding event for Mas " + masId);
+                    return false;
+                }
+                if (V) Log.v(TAG, " No MNS session, dropping event for Mas " + masId);
+                return true;
+            }
+            if (V) {
+                Log.v(TAG, " Sending event report for Mas " + masId);
+            }
+            int responseCode = -1;
+            handler.setTimeout(masId);
             try {
-                fos = mContext.openFileOutput(FILENAME, Context.MODE_PRIVATE);
-                fos.write(str.getBytes());
-                fos.flush();
-                fos.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
+                responseCode = session.sendEvent(str.getBytes("UTF-8"), (byte) masId);
+            } catch (Exception e) {
                 e.printStackTrace();
             }
-
-            File fileR = new File(mContext.getFilesDir() + "/" + FILENAME);
-            if (fileR.exists() == true) {
-                if (V) {
-                    Log.v(TAG, " Sending event report file for Mas " + masId);
-                }
-                try {
-                    if (mSession != null) {
-                        mSession.sendEvent(fileR, (byte) masId);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            } else {
-                if (V){
-                    Log.v(TAG, " ERROR IN CREATING SEND EVENT OBJ FILE");
-                }
+            handler.removeTimeout();
+            if (responseCode == -1) {
+                // Transport failure, keep the event for the next session
+                handler.sendEmptyMessage(BluetoothMnsObexSession.MSG_SESSION_ERROR);
+                return false;
             }
         } else if (V) {
             Log.v(TAG, "sendEvent(null, " + masId + ")");
         }
+        return true;
     }
 
     private BroadcastReceiver mStorageStatusReceiver = new BroadcastReceiver() {
@@ -627,11 +599,21 @@ public class BluetoothMns implements MessageNotificationListener {
      */
     public synchronized void stop() {
         if (V) Log.v(TAG, "stop");
-            if (mSession != null) {
-                if (V) Log.v(TAG, "Stop mSession");
-                mSession.disconnect();
-                mSession = null;
+            if (mSessionHandler != null) {
+                mSessionHandler.removeMessages(MNS_RECONNECT);
             }
+            mReconnecting = false;
+            mReconnectAttempt = 0;
+            mEventQueue.clear();
+            closeSession();
+    }
+
+    private synchronized void closeSession() {
+        if (mSession != null) {
+            if (V) Log.v(TAG, "Stop mSession");
+            mSession.disconnect();
+            mSession = null;
+        }
     }
 
     /**
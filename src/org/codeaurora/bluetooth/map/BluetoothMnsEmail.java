@@ -37,8 +37,8 @@ import android.util.Log;
 
 import org.codeaurora.bluetooth.map.BluetoothMns.MnsClient;
 import org.codeaurora.bluetooth.map.MapUtils.EmailUtils;
+import org.codeaurora.bluetooth.map.MapUtils.MessageSnapshot;
 
-import java.util.Collection;
 import java.util.HashMap;
 
 import static org.codeaurora.bluetooth.map.MapUtils.EmailUtils.EMAIL_BOX_COLUMN_ACCOUNT_KEY;
@@ -64,6 +64,7 @@ import static org.codeaurora.bluetooth.map.MapUtils.EmailUtils.TYPE_SENT;
  */
 public class BluetoothMnsEmail extends MnsClient {
     private static final String TAG = "BluetoothMnsEmail";
+    private static final boolean D = BluetoothMasService.DEBUG;
     private static final boolean V = BluetoothMasService.VERBOSE;
     private static final String EMAIL_TO_MAP[] = {
         "inbox",    // TYPE_INBOX = 0;
@@ -120,35 +121,16 @@ public class BluetoothMnsEmail extends MnsClient {
         }
     }
 
-    static class EmailMessage {
-        long mId;
-        long mAccountKey;
-        String mFolderName;
-        int mType;
-
-        public EmailMessage(long id, long accountKey, String folderName, int type) {
-            mId = id;
-            mAccountKey = accountKey;
-            mFolderName = folderName;
-            mType = type;
-        }
-
-        @Override
-        public String toString() {
-            return "[id:" + mId + ", folder name:" + mFolderName + ", account key:" + mAccountKey +
-                    ", type:" + mType + "]";
-        }
-    }
-
     private class EmailContentObserver extends ContentObserver {
         private static final String TAG = "EmailContentObserver";
         private HashMap<Long, EmailBox> mEmailBoxList = new HashMap<Long, EmailBox>();
-        private HashMap<Long, EmailMessage> mEmailList = new HashMap<Long, EmailMessage>();
+        // Snapshots hold the mailbox type as type and the mailbox key as thread id
+        private MessageSnapshot mEmailList = new MessageSnapshot();
         /** List of deleted message, do not notify */
-        private HashMap<Long, EmailMessage> mDeletedList = new HashMap<Long, EmailMessage>();
-        private HashMap<Long, EmailMessage> mEmailAddedList = new HashMap<Long, EmailMessage>();
+        private final MessageSnapshot mDeletedList = new MessageSnapshot();
+        private final MessageSnapshot mEmailAddedList = new MessageSnapshot();
         /** List of newly deleted message, notify */
-        private HashMap<Long, EmailMessage> mEmailDeletedList = new HashMap<Long, EmailMessage>();
+        private final MessageSnapshot mEmailDeletedList = new MessageSnapshot();
 
         private static final int UPDATE = 0;
         private static final int THRESHOLD = 3000;  // 3 sec
@@ -205,18 +187,18 @@ public class BluetoothMnsEmail extends MnsClient {
             }
         }
 
-        void update(boolean init) {
+        synchronized void update(boolean init) {
             if (init) {
                 clear();
             }
             final ContentResolver resolver = mContext.getContentResolver();
             Cursor crEmail = resolver.query(EMAIL_MESSAGE_URI, EMAIL_MESSAGE_PROJECTION,
-                    null, null, null);
+                    null, null, EMAIL_MESSAGE_PROJECTION[MSG_COL_RECORD_ID]);
             if (crEmail != null) {
                 if (crEmail.moveToFirst()) {
                     final HashMap<Long, EmailBox> boxList = mEmailBoxList;
-                    HashMap<Long, EmailMessage> oldEmailList = mEmailList;
-                    HashMap<Long, EmailMessage> emailList = new HashMap<Long, EmailMessage>();
+                    final MessageSnapshot oldEmailList = mEmailList;
+                    final MessageSnapshot emailList = new MessageSnapshot(oldEmailList.size());
                     do {
                         final long accountKey = crEmail.getLong(MSG_COL_ACCOUNT_KEY);
                         if (accountKey != mAccountKey) {
@@ -229,35 +211,33 @@ public class BluetoothMnsEmail extends MnsClient {
                             if (box == null) {
                                 continue;
                             }
-                            final String folderName = isMapFolder(box.mType)
-                                    ? EMAIL_TO_MAP[box.mType] : box.mDisplayName;
-                            final EmailMessage msg = new EmailMessage(id, accountKey,
-                                    folderName, box.mType);
                             if (box.mType == EmailUtils.TYPE_DELETED) {
                                 if (init) {
-                                    mDeletedList.put(id, msg);
-                                } else if (!mDeletedList.containsKey(id) &&
-                                        !mEmailDeletedList.containsKey(id)) {
-                                    mEmailDeletedList.put(id, msg);
+                                    mDeletedList.put(id, box.mType, mailboxKey, 0);
+                                } else if (!mDeletedList.contains(id) &&
+                                        !mEmailDeletedList.contains(id)) {
+                                    mEmailDeletedList.put(id, box.mType, mailboxKey, 0);
                                 }
                             } else {
-                                emailList.put(id, msg);
-                                if (!oldEmailList.containsKey(id) && !init &&
-                                        !mEmailAddedList.containsKey(id)) {
-                                    mEmailAddedList.put(id, msg);
+                                emailList.append(id, box.mType, mailboxKey, 0);
+                                if (!init && !oldEmailList.contains(id) &&
+                                        !mEmailAddedList.contains(id)) {
+                                    mEmailAddedList.put(id, box.mType, mailboxKey, 0);
                                 }
                             }
                         } else {
                             Log.e(TAG, "Mailbox is not updated");
                         }
                     } while (crEmail.moveToNext());
+                    emailList.sort();
                     mEmailList = emailList;
                 }
                 crEmail.close();
             }
+            if (D) Log.d(TAG, "Email snapshot " + mEmailList.dump());
         }
 
-        private void sendEvents() {
+        private synchronized void sendEvents() {
             if (mEmailAddedList.size() > 0) {
                 newEmail();
                 mEmailAddedList.clear();
@@ -276,6 +256,15 @@ public class BluetoothMnsEmail extends MnsClient {
             mEmailDeletedList.clear();
         }
 
+        private String getFolderName(MessageSnapshot msgs, int i) {
+            final int type = msgs.getType(i);
+            if (isMapFolder(type)) {
+                return EMAIL_TO_MAP[type];
+            }
+            final EmailBox box = mEmailBoxList.get(msgs.getThreadId(i));
+            return (box != null) ? box.mDisplayName : "";
+        }
+
         private boolean isMapFolder(int type) {
             if (type == TYPE_INBOX || type == TYPE_OUTBOX || type == TYPE_SENT ||
                     type == TYPE_DRAFT || type == TYPE_DELETED) {
@@ -287,14 +276,13 @@ public class BluetoothMnsEmail extends MnsClient {
         private void newEmail() {
             if (V) Log.v(TAG, "newEmail()");
             if (mListener != null) {
-                Collection<EmailMessage> values = mEmailAddedList.values();
-                for (EmailMessage email : values) {
-                    if (V) Log.v(TAG, email.toString());
-                    mListener.onNewMessage(mMasId, String.valueOf(email.mId + OFFSET_START),
-                            PRE_PATH + email.mFolderName, EMAIL);
-                    if (email.mType == TYPE_SENT) {
-                        mListener.onSendingSuccess(mMasId, String.valueOf(email.mId + OFFSET_START),
-                                PRE_PATH + email.mFolderName, EMAIL);
+                for (int i = 0; i < mEmailAddedList.size(); i++) {
+                    final String handle = String.valueOf(mEmailAddedList.getId(i) + OFFSET_START);
+                    final String folderName = getFolderName(mEmailAddedList, i);
+                    if (V) Log.v(TAG, "[id:" + handle + ", folder name:" + folderName + "]");
+                    mListener.onNewMessage(mMasId, handle, PRE_PATH + folderName, EMAIL);
+                    if (mEmailAddedList.getType(i) == TYPE_SENT) {
+                        mListener.onSendingSuccess(mMasId, handle, PRE_PATH + folderName, EMAIL);
                     }
                 }
             }
@@ -303,11 +291,12 @@ public class BluetoothMnsEmail extends MnsClient {
         private void deletedEmail() {
             if (V) Log.v(TAG, "deletedEmail()");
             if (mListener != null) {
-                Collection<EmailMessage> values = mEmailDeletedList.values();
-                for (EmailMessage email : values) {
-                    if (V) Log.v(TAG, email.toString());
-                    mListener.onMessageDeleted(mMasId, String.valueOf(email.mId + OFFSET_START),
-                            PRE_PATH + email.mFolderName, EMAIL);
+                for (int i = 0; i < mEmailDeletedList.size(); i++) {
+                    final String handle = String.valueOf(mEmailDeletedList.getId(i)
+                            + OFFSET_START);
+                    final String folderName = getFolderName(mEmailDeletedList, i);
+                    if (V) Log.v(TAG, "[id:" + handle + ", folder name:" + folderName + "]");
+                    mListener.onMessageDeleted(mMasId, handle, PRE_PATH + folderName, EMAIL);
                 }
             }
         }
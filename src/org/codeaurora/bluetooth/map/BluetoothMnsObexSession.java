@@ -34,9 +34,6 @@ import android.os.Handler;
 import android.util.Log;
 import android.os.PowerManager;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -159,7 +156,11 @@ public class BluetoothMnsObexSession {
         releaseMnsLock();
     }
 
-    public int sendEvent(File file, byte masInstanceId) {
+    /**
+     * Push an event report held in memory to the MNS server
+     * @return the OBEX response code, -1 on error
+     */
+    public int sendEvent(byte[] event, byte masInstanceId) {
         Log.d(TAG, "BluetoothMnsObexSession: sendEvent");
         acquireMnsLock();
         boolean error = false;
@@ -178,7 +179,6 @@ public class BluetoothMnsObexSession {
 
         ClientOperation putOperation = null;
         OutputStream outputStream = null;
-        FileInputStream fileInputStream = null;
         try {
             synchronized (this) {
                 mWaitingForRemote = true;
@@ -211,35 +211,22 @@ public class BluetoothMnsObexSession {
                 int readLength = 0;
                 long timestamp = 0;
                 int outputBufferSize = putOperation.getMaxPacketSize();
-                byte[] buffer = new byte[outputBufferSize];
 
-                fileInputStream = new FileInputStream(file);
-                BufferedInputStream a = new BufferedInputStream(fileInputStream, 0x4000);
-
-                while ((position != file.length())) {
+                while (position != event.length) {
                     if (V) timestamp = System.currentTimeMillis();
 
-                    readLength = a.read(buffer, 0, outputBufferSize);
-                    outputStream.write(buffer, 0, readLength);
+                    readLength = Math.min(outputBufferSize, event.length - position);
+                    outputStream.write(event, position, readLength);
 
                     position += readLength;
                     if (V) {
-                        Log.v(TAG, "Sending file position = " + position
+                        Log.v(TAG, "Sending event position = " + position
                                 + " readLength " + readLength + " bytes took "
                                 + (System.currentTimeMillis() - timestamp) + " ms");
                     }
                 }
-                if (position == file.length()) {
-                    Log.i(TAG, "SendFile finished send out file " + file.length()
-                            + " length " + file.length());
-                    outputStream.close();
-                } else {
-                    error = true;
-                    // TBD - Is Output stream close needed here
-                    putOperation.abort();
-                    Log.i(TAG, "SendFile interrupted when send out file "
-                            + " at " + position + " of " + file.length());
-                }
+                Log.i(TAG, "SendEvent finished send out event " + event.length);
+                outputStream.close();
             }
         } catch (IOException e) {
             handleSendException(e.toString());
@@ -248,13 +235,6 @@ public class BluetoothMnsObexSession {
             handleSendException(e.toString());
             error = true;
         } finally {
-            if (fileInputStream != null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException ei) {
-                    Log.e(TAG, "Error while closing stream"+ ei.toString());
-                }
-            }
             try {
                 if (!error) {
                     responseCode = putOperation.getResponseCode();
@@ -32,6 +32,7 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Handler;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
@@ -40,11 +41,9 @@ import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import org.codeaurora.bluetooth.map.BluetoothMns.MnsClient;
+import org.codeaurora.bluetooth.map.MapUtils.MessageSnapshot;
 import com.google.android.mms.pdu.PduHeaders;
 
-import java.util.Collection;
-import java.util.concurrent.ConcurrentHashMap;
-
 import static org.codeaurora.bluetooth.map.MapUtils.SmsMmsUtils.DELETED;
 import static org.codeaurora.bluetooth.map.MapUtils.SmsMmsUtils.OUTBOX;
 import static org.codeaurora.bluetooth.map.MapUtils.SmsMmsUtils.SENT;
@@ -54,6 +53,7 @@ import static org.codeaurora.bluetooth.map.MapUtils.SmsMmsUtils.SENT;
  */
 public class BluetoothMnsSmsMms extends MnsClient {
     private static final String TAG = "BluetoothMnsSmsMms";
+    private static final boolean D = BluetoothMasService.DEBUG;
     private static final boolean V = BluetoothMasService.VERBOSE;
     private static final String MSG_TO_MAP[] = {
         "",         // ALL
@@ -111,31 +111,131 @@ public class BluetoothMnsSmsMms extends MnsClient {
     private static final int SMS_THREAD_ID_COL = 2;
     private static final int SMS_DATE_COL = 3;
 
-    static class Message {
-        long mId;
-        String mFolderName;
-        int mType;
-        long mThreadId;
-        long mDate;
-
-        public Message(long id, String folderName, int type, long threadId, long date) {
-            mId = id;
-            mFolderName = folderName;
-            mType = type;
-            mThreadId = threadId;
-            mDate = date;
+    // Types whose messages may move to another folder without a new _id
+    private static final int[] SMS_TRANSIENT_TYPES = new int[] {Sms.MESSAGE_TYPE_DRAFT,
+        Sms.MESSAGE_TYPE_OUTBOX, Sms.MESSAGE_TYPE_FAILED, Sms.MESSAGE_TYPE_QUEUED};
+    private static final int[] MMS_TRANSIENT_BOXES = new int[] {Mms.MESSAGE_BOX_DRAFTS,
+        Mms.MESSAGE_BOX_OUTBOX};
+
+    // Rows kept in the snapshots, used to compare count and _id sum
+    private static final String SMS_TRACKED_SELECTION = Sms.TYPE + " > 0 AND " + Sms.TYPE
+            + " < " + MSG_TO_MAP.length;
+    private static final String MMS_TRACKED_SELECTION = Mms.MESSAGE_TYPE + " NOT IN ("
+            + PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + ","
+            + PduHeaders.MESSAGE_TYPE_DELIVERY_IND + ")";
+    private static final String[] CHECKSUM_PROJECTION = new String[] {"count(*)", "sum(_id)"};
+
+    // Upper bound of transient ids re-read on each update before doing a full resync
+    private static final int MAX_TRANSIENT_IDS = 256;
+
+    /**
+     * Watermarks and checksum of a snapshot, used to look only at the rows
+     * that changed since the last update
+     */
+    static class SyncState {
+        long maxId = -1;
+        long maxDate = -1;
+        long idSum = 0;
+
+        void reset(MessageSnapshot msgs) {
+            maxId = -1;
+            maxDate = -1;
+            idSum = 0;
+            if (msgs != null) {
+                for (int i = 0; i < msgs.size(); i++) {
+                    add(msgs.getId(i), msgs.getDate(i), true);
+                }
+                if (maxId < 0) {
+                    // Empty table, anything above zero is new
+                    maxId = 0;
+                }
+            }
+        }
+
+        void add(long id, long date, boolean isNew) {
+            if (isNew) {
+                idSum += id;
+            }
+            if (id > maxId) {
+                maxId = id;
+            }
+            if (date > maxDate) {
+                maxDate = date;
+            }
+        }
+
+        /**
+         * @return the selection for new, re-dated and transient rows, or null
+         *         if there are too many transient rows to list
+         */
+        String getChangedSelection(String idColumn, String dateColumn,
+                MessageSnapshot msgs, int[] transientTypes) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(idColumn).append(" > ").append(maxId);
+            sb.append(" OR ").append(dateColumn).append(" > ").append(maxDate);
+            int count = 0;
+            for (int i = 0; i < msgs.size(); i++) {
+                final int msgType = msgs.getType(i);
+                for (int type : transientTypes) {
+                    if (msgType == type) {
+                        sb.append(count == 0 ? " OR " + idColumn + " IN (" : ",");
+                        sb.append(msgs.getId(i));
+                        count++;
+                        break;
+                    }
+                }
+                if (count > MAX_TRANSIENT_IDS) {
+                    return null;
+                }
+            }
+            if (count > 0) {
+                sb.append(")");
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @return true if the count and _id sum of the tracked rows in the
+         *         provider are the ones of the snapshot
+         */
+        boolean matches(ContentResolver resolver, Uri uri, String selection, int count) {
+            Cursor cr = null;
+            try {
+                cr = resolver.query(uri, CHECKSUM_PROJECTION, selection, null, null);
+                if (cr == null || !cr.moveToFirst()) {
+                    return false;
+                }
+                final boolean match = cr.getInt(0) == count && cr.getLong(1) == idSum;
+                if (V && !match) {
+                    Log.v(TAG, "Checksum mismatch " + uri + " count " + cr.getInt(0) + "/"
+                            + count + " sum " + cr.getLong(1) + "/" + idSum);
+                }
+                return match;
+            } catch (Exception e) {
+                Log.e(TAG, "Checksum query failed " + e.toString());
+                return false;
+            } finally {
+                if (cr != null) {
+                    cr.close();
+                }
+            }
         }
     }
 
     private class MmsSmsContentObserver extends ContentObserver {
         private static final String TAG = "MmsSmsContentObserver";
-        private ConcurrentHashMap<Long, Message> mSmsList = new ConcurrentHashMap<Long, Message>();
-        private ConcurrentHashMap<Long, Message> mSmsAddedList = new ConcurrentHashMap<Long, Message>();
-        private ConcurrentHashMap<Long, Message> mSmsDeletedList = new ConcurrentHashMap<Long, Message>();
+        // Snapshots hold the sms type or mms box as type
+        private MessageSnapshot mSmsList = new MessageSnapshot();
+        private final MessageSnapshot mSmsAddedList = new MessageSnapshot();
+        private final MessageSnapshot mSmsDeletedList = new MessageSnapshot();
+
+        private MessageSnapshot mMmsList = new MessageSnapshot();
+        private final MessageSnapshot mMmsAddedList = new MessageSnapshot();
+        private final MessageSnapshot mMmsDeletedList = new MessageSnapshot();
 
-        private ConcurrentHashMap<Long, Message> mMmsList = new ConcurrentHashMap<Long, Message>();
-        private ConcurrentHashMap<Long, Message> mMmsAddedList = new ConcurrentHashMap<Long, Message>();
-        private ConcurrentHashMap<Long, Message> mMmsDeletedList = new ConcurrentHashMap<Long, Message>();
+        private final SyncState mSmsState = new SyncState();
+        private final SyncState mMmsState = new SyncState();
+        private int mRowsScanned = 0;
 
         private static final int UPDATE = 0;
         private static final int THRESHOLD = 1500;  // 1.5 sec
@@ -171,7 +271,7 @@ public class BluetoothMnsSmsMms extends MnsClient {
             }
         };
 
-        void update(boolean init) {
+        synchronized void update(boolean init) {
             updateSms(init);
             updateMms(init);
         }
@@ -180,92 +280,212 @@ public class BluetoothMnsSmsMms extends MnsClient {
             if (init) {
                 clearSms();
             }
+            mRowsScanned = 0;
+            final boolean full = init || !updateSmsIncremental();
+            if (full) {
+                resyncSms(init);
+                mSmsState.reset(mSmsList);
+            }
+            if (D) {
+                Log.d(TAG, "MNS_SMS: " + (full ? "full resync" : "incremental update")
+                        + " scanned " + mRowsScanned + " rows, snapshot " + mSmsList.dump());
+            }
+        }
 
-           if(V) Log.v(TAG, "MNS_SMS: updateSMS");
+        /**
+         * Look only at the sms above the last seen _id or date and at the ones
+         * whose type may still change, then compare the count and _id sum of
+         * the table with the snapshot to find out if anything was deleted.
+         * @return false if a full resync is needed
+         */
+        private boolean updateSmsIncremental() {
+            if (mSmsState.maxId < 0) {
+                return false;
+            }
             final ContentResolver resolver = mContext.getContentResolver();
-            Cursor crSms = resolver.query(Sms.CONTENT_URI, SMS_PROJECTION, null, null, null);
-            if (crSms != null) {
-                if (crSms.moveToFirst()) {
-                    ConcurrentHashMap<Long, Message> oldSmsList = mSmsList;
-                    ConcurrentHashMap<Long, Message> newSmsList = new ConcurrentHashMap<Long, Message>();
-                    do {
-                        final long id = crSms.getLong(SMS_ID_COL);
-                        final int type = crSms.getInt(SMS_TYPE_COL);
-                        final long threadId = crSms.getLong(SMS_THREAD_ID_COL);
-                        final long date = crSms.getLong(SMS_DATE_COL);
-                        if (type > 0 && type < MSG_TO_MAP.length) {
-                            final Message msg = new Message(id, MSG_TO_MAP[type], type, threadId,
-                                    date);
-                            if(V) Log.v(TAG, "MNS_SMS: Found: id: " + id+ "  type: " + type + " threadId: " + threadId + " date: " + date +"\n");
-                            newSmsList.put(id, msg);
-                            if (oldSmsList.containsKey(id)) {
-                                Message old_msg = oldSmsList.remove(id);
-                                if (msg.mType != old_msg.mType) {
-                                    if(V) Log.v(TAG, "MNS_SMS: Add to mSmsAddedList from old");
-                                    mSmsAddedList.put(id, msg);
-                                }
-                            }
-                            else {
-                                final Message oldMsg = oldSmsList.remove(id);
-                                if (!init && (oldMsg == null || oldMsg.mDate != date)) {
-                                    if(V) Log.v(TAG, "MNS_SMS: Add to mSmsAddedList");
-                                    mSmsAddedList.put(id, msg);
-                                }
-                            }
+            final String where = mSmsState.getChangedSelection(Sms._ID, Sms.DATE,
+                    mSmsList, SMS_TRANSIENT_TYPES);
+            if (where == null) {
+                return false;
+            }
+            Cursor crSms = resolver.query(Sms.CONTENT_URI, SMS_PROJECTION, where, null, null);
+            if (crSms == null) {
+                return false;
+            }
+            try {
+                while (crSms.moveToNext()) {
+                    mRowsScanned++;
+                    final long id = crSms.getLong(SMS_ID_COL);
+                    final int type = crSms.getInt(SMS_TYPE_COL);
+                    final long threadId = crSms.getLong(SMS_THREAD_ID_COL);
+                    final long date = crSms.getLong(SMS_DATE_COL);
+                    if (type > 0 && type < MSG_TO_MAP.length) {
+                        final int idx = mSmsList.indexOf(id);
+                        if (idx < 0 || mSmsList.getType(idx) != type) {
+                            if(V) Log.v(TAG, "MNS_SMS: Add to mSmsAddedList id: " + id);
+                            mSmsAddedList.put(id, type, threadId, date);
                         }
-                    } while (crSms.moveToNext());
-                    mSmsList = newSmsList;
-                    mSmsDeletedList = oldSmsList;
-                }
-                else
-                {
-                    // Last sms to be deleted
-                    if(mSmsList.size() > 0)
-                    {
-                        if(V) Log.v(TAG, "MNS_SMS: mSmsList Length: " + mSmsList.size());
-                        mSmsDeletedList = mSmsList;
+                        mSmsList.put(id, type, threadId, date);
+                        mSmsState.add(id, date, idx < 0);
+                    } else {
+                        // Left the tracked types, let the resync report it
+                        return false;
                     }
                 }
+            } finally {
                 crSms.close();
             }
+            return mSmsState.matches(resolver, Sms.CONTENT_URI, SMS_TRACKED_SELECTION,
+                    mSmsList.size());
+        }
+
+        private void resyncSms(final boolean init) {
+           if(V) Log.v(TAG, "MNS_SMS: updateSMS");
+            final ContentResolver resolver = mContext.getContentResolver();
+            Cursor crSms = resolver.query(Sms.CONTENT_URI, SMS_PROJECTION, null, null, Sms._ID);
+            if (crSms == null) {
+                return;
+            }
+            final MessageSnapshot newSmsList = new MessageSnapshot(crSms.getCount());
+            while (crSms.moveToNext()) {
+                mRowsScanned++;
+                final long id = crSms.getLong(SMS_ID_COL);
+                final int type = crSms.getInt(SMS_TYPE_COL);
+                final long threadId = crSms.getLong(SMS_THREAD_ID_COL);
+                final long date = crSms.getLong(SMS_DATE_COL);
+                if (type > 0 && type < MSG_TO_MAP.length) {
+                    if(V) Log.v(TAG, "MNS_SMS: Found: id: " + id+ "  type: " + type + " threadId: " + threadId + " date: " + date +"\n");
+                    newSmsList.append(id, type, threadId, date);
+                }
+            }
+            crSms.close();
+
+            MessageSnapshot.diff(mSmsList, newSmsList, new MessageSnapshot.DiffListener() {
+                public void onAdded(MessageSnapshot newSnapshot, int i) {
+                    if (!init) {
+                        if(V) Log.v(TAG, "MNS_SMS: Add to mSmsAddedList");
+                        mSmsAddedList.put(newSnapshot, i);
+                    }
+                }
+
+                public void onRemoved(MessageSnapshot oldSnapshot, int i) {
+                    mSmsDeletedList.put(oldSnapshot, i);
+                }
+
+                public void onKept(MessageSnapshot oldSnapshot, int oldIdx,
+                        MessageSnapshot newSnapshot, int newIdx) {
+                    if (oldSnapshot.getType(oldIdx) != newSnapshot.getType(newIdx)) {
+                        if(V) Log.v(TAG, "MNS_SMS: Add to mSmsAddedList from old");
+                        mSmsAddedList.put(newSnapshot, newIdx);
+                    }
+                }
+            });
+            mSmsList = newSmsList;
         }
 
         void updateMms(boolean init) {
             if (init) {
                 clearMms();
             }
+            mRowsScanned = 0;
+            final boolean full = init || !updateMmsIncremental();
+            if (full) {
+                resyncMms(init);
+                mMmsState.reset(mMmsList);
+            }
+            if (D) {
+                Log.d(TAG, "MNS_MMS: " + (full ? "full resync" : "incremental update")
+                        + " scanned " + mRowsScanned + " rows, snapshot " + mMmsList.dump());
+            }
+        }
+
+        /**
+         * MMS counterpart of updateSmsIncremental
+         * @return false if a full resync is needed
+         */
+        private boolean updateMmsIncremental() {
+            if (mMmsState.maxId < 0) {
+                return false;
+            }
             final ContentResolver resolver = mContext.getContentResolver();
-            Cursor crMms = resolver.query(Mms.CONTENT_URI, MMS_PROJECTION, null, null, null);
-            if (crMms != null) {
-                if (crMms.moveToFirst()) {
-                    ConcurrentHashMap<Long, Message> oldMmsList = mMmsList;
-                    ConcurrentHashMap<Long, Message> newMmsList = new ConcurrentHashMap<Long, Message>();
-                    do {
-                        final long id = crMms.getInt(MMS_ID_COL);
-                        final int boxType = crMms.getInt(MMS_BOX_TYPE_COL);
-                        final long threadId = crMms.getLong(MMS_THREAD_ID_COL);
-                        final int msgType = crMms.getInt(MMS_MSG_TYPE_COL);
-                        final long date = crMms.getLong(MMS_DATE_COL);
-                        // TODO need to filter out Pdu by message type?
-                        if (msgType != PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND &&
-                                msgType != PduHeaders.MESSAGE_TYPE_DELIVERY_IND) {
-                            final Message msg = new Message(id, MSG_TO_MAP[boxType],
-                                    boxType, threadId, date);
-                            newMmsList.put(id, msg);
-                            final Message oldMsg = oldMmsList.remove(id);
-                            if (!init && (oldMsg == null || oldMsg.mDate != date)) {
-                                mMmsAddedList.put(id, msg);
-                            }
+            final String where = mMmsState.getChangedSelection(Mms._ID, Mms.DATE,
+                    mMmsList, MMS_TRANSIENT_BOXES);
+            if (where == null) {
+                return false;
+            }
+            Cursor crMms = resolver.query(Mms.CONTENT_URI, MMS_PROJECTION, where, null, null);
+            if (crMms == null) {
+                return false;
+            }
+            try {
+                while (crMms.moveToNext()) {
+                    mRowsScanned++;
+                    final long id = crMms.getInt(MMS_ID_COL);
+                    final int boxType = crMms.getInt(MMS_BOX_TYPE_COL);
+                    final long threadId = crMms.getLong(MMS_THREAD_ID_COL);
+                    final int msgType = crMms.getInt(MMS_MSG_TYPE_COL);
+                    final long date = crMms.getLong(MMS_DATE_COL);
+                    if (msgType != PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND &&
+                            msgType != PduHeaders.MESSAGE_TYPE_DELIVERY_IND) {
+                        final int idx = mMmsList.indexOf(id);
+                        if (idx < 0 || mMmsList.getDate(idx) != date) {
+                            mMmsAddedList.put(id, boxType, threadId, date);
                         }
-                    } while (crMms.moveToNext());
-                    mMmsList = newMmsList;
-                    mMmsDeletedList = oldMmsList;
+                        mMmsList.put(id, boxType, threadId, date);
+                        mMmsState.add(id, date, idx < 0);
+                    }
                 }
+            } finally {
                 crMms.close();
             }
+            return mMmsState.matches(resolver, Mms.CONTENT_URI, MMS_TRACKED_SELECTION,
+                    mMmsList.size());
         }
 
-        private void sendEvents() {
+        private void resyncMms(final boolean init) {
+            final ContentResolver resolver = mContext.getContentResolver();
+            Cursor crMms = resolver.query(Mms.CONTENT_URI, MMS_PROJECTION, null, null, Mms._ID);
+            if (crMms == null) {
+                return;
+            }
+            final MessageSnapshot newMmsList = new MessageSnapshot(crMms.getCount());
+            while (crMms.moveToNext()) {
+                mRowsScanned++;
+                final long id = crMms.getInt(MMS_ID_COL);
+                final int boxType = crMms.getInt(MMS_BOX_TYPE_COL);
+                final long threadId = crMms.getLong(MMS_THREAD_ID_COL);
+                final int msgType = crMms.getInt(MMS_MSG_TYPE_COL);
+                final long date = crMms.getLong(MMS_DATE_COL);
+                // TODO need to filter out Pdu by message type?
+                if (msgType != PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND &&
+                        msgType != PduHeaders.MESSAGE_TYPE_DELIVERY_IND) {
+                    newMmsList.append(id, boxType, threadId, date);
+                }
+            }
+            crMms.close();
+
+            MessageSnapshot.diff(mMmsList, newMmsList, new MessageSnapshot.DiffListener() {
+                public void onAdded(MessageSnapshot newSnapshot, int i) {
+                    if (!init) {
+                        mMmsAddedList.put(newSnapshot, i);
+                    }
+                }
+
+                public void onRemoved(MessageSnapshot oldSnapshot, int i) {
+                    mMmsDeletedList.put(oldSnapshot, i);
+                }
+
+                public void onKept(MessageSnapshot oldSnapshot, int oldIdx,
+                        MessageSnapshot newSnapshot, int newIdx) {
+                    if (!init && oldSnapshot.getDate(oldIdx) != newSnapshot.getDate(newIdx)) {
+                        mMmsAddedList.put(newSnapshot, newIdx);
+                    }
+                }
+            });
+            mMmsList = newMmsList;
+        }
+
+        private synchronized void sendEvents() {
             if (mSmsAddedList.size() > 0) {
                 newSms();
                 mSmsAddedList.clear();
@@ -285,36 +505,41 @@ public class BluetoothMnsSmsMms extends MnsClient {
         }
 
         private void clearSms() {
+            mSmsState.reset(null);
             mSmsList.clear();
             mSmsAddedList.clear();
             mSmsDeletedList.clear();
         }
 
         private void clearMms() {
+            mMmsState.reset(null);
             mMmsList.clear();
             mMmsAddedList.clear();
             mMmsDeletedList.clear();
         }
 
+        private String getFolderName(MessageSnapshot msgs, int i) {
+            return (msgs.getThreadId(i) == -1) ? DELETED : MSG_TO_MAP[msgs.getType(i)];
+        }
+
         private void newSms() {
             if (V) Log.v(TAG, "newSms() SMS mas Id: " + mMasId);
             if (mListener != null) {
                 final int phoneType = TelephonyManager.getDefault().getPhoneType();
                 final String type = (phoneType == TelephonyManager.PHONE_TYPE_CDMA)
                         ? SMS_CDMA : SMS_GSM;
-                Collection<Message> values = mSmsAddedList.values();
-                for (Message msg : values) {
-                    if (msg.mType == Sms.MESSAGE_TYPE_SENT) {
-                        mListener.onSendingSuccess(mMasId, String.valueOf(SMS_OFFSET_START +
-                                msg.mId), PRE_PATH + SENT, type);
-                    } else if (msg.mType == Sms.MESSAGE_TYPE_FAILED) {
-                        mListener.onSendingFailure(mMasId, String.valueOf(SMS_OFFSET_START +
-                                msg.mId), PRE_PATH + OUTBOX, type);
-                    } else if ((msg.mType == Sms.MESSAGE_TYPE_INBOX) ||
-                               (msg.mType == Sms.MESSAGE_TYPE_OUTBOX)) {
-                        String folderName = (msg.mThreadId == -1) ? DELETED : msg.mFolderName;
-                        mListener.onNewMessage(mMasId, String.valueOf(SMS_OFFSET_START + msg.mId),
-                                PRE_PATH + folderName, type);
+                for (int i = 0; i < mSmsAddedList.size(); i++) {
+                    final int msgType = mSmsAddedList.getType(i);
+                    final String handle = String.valueOf(SMS_OFFSET_START
+                            + mSmsAddedList.getId(i));
+                    if (msgType == Sms.MESSAGE_TYPE_SENT) {
+                        mListener.onSendingSuccess(mMasId, handle, PRE_PATH + SENT, type);
+                    } else if (msgType == Sms.MESSAGE_TYPE_FAILED) {
+                        mListener.onSendingFailure(mMasId, handle, PRE_PATH + OUTBOX, type);
+                    } else if ((msgType == Sms.MESSAGE_TYPE_INBOX) ||
+                               (msgType == Sms.MESSAGE_TYPE_OUTBOX)) {
+                        mListener.onNewMessage(mMasId, handle,
+                                PRE_PATH + getFolderName(mSmsAddedList, i), type);
                     }
                 }
             }
@@ -326,11 +551,10 @@ public class BluetoothMnsSmsMms extends MnsClient {
                 final int phoneType = TelephonyManager.getDefault().getPhoneType();
                 final String type = (phoneType == TelephonyManager.PHONE_TYPE_CDMA)
                         ? SMS_CDMA : SMS_GSM;
-                Collection<Message> values = mSmsDeletedList.values();
-                for (Message msg : values) {
-                    String folderName = (msg.mThreadId == -1) ? DELETED : msg.mFolderName;
-                    mListener.onMessageDeleted(mMasId, String.valueOf(SMS_OFFSET_START + msg.mId),
-                            PRE_PATH + folderName, type);
+                for (int i = 0; i < mSmsDeletedList.size(); i++) {
+                    mListener.onMessageDeleted(mMasId,
+                            String.valueOf(SMS_OFFSET_START + mSmsDeletedList.getId(i)),
+                            PRE_PATH + getFolderName(mSmsDeletedList, i), type);
                 }
             }
         }
@@ -338,14 +562,13 @@ public class BluetoothMnsSmsMms extends MnsClient {
         private void newMms() {
             if (V) Log.v(TAG, "newMms() MMS mas Id: " + mMasId);
             if (mListener != null) {
-                Collection<Message> values = mMmsAddedList.values();
-                for (Message msg : values) {
-                    String folderName = (msg.mThreadId == -1) ? DELETED : msg.mFolderName;
-                    mListener.onNewMessage(mMasId, String.valueOf(MMS_OFFSET_START + msg.mId),
-                            PRE_PATH + folderName, MMS);
-                    if (msg.mType == Mms.MESSAGE_BOX_SENT) {
+                for (int i = 0; i < mMmsAddedList.size(); i++) {
+                    final long id = mMmsAddedList.getId(i);
+                    mListener.onNewMessage(mMasId, String.valueOf(MMS_OFFSET_START + id),
+                            PRE_PATH + getFolderName(mMmsAddedList, i), MMS);
+                    if (mMmsAddedList.getType(i) == Mms.MESSAGE_BOX_SENT) {
                         mListener.onSendingSuccess(mMasId, String.valueOf(SMS_OFFSET_START +
-                                msg.mId), PRE_PATH + SENT, MMS);
+                                id), PRE_PATH + SENT, MMS);
                     }
                 }
             }
@@ -354,11 +577,10 @@ public class BluetoothMnsSmsMms extends MnsClient {
         private void deletedMms() {
             if (V) Log.v(TAG, "deletedMms() MMS mas Id: " + mMasId);
             if (mListener != null) {
-                Collection<Message> values = mMmsDeletedList.values();
-                for (Message msg : values) {
-                    String folderName = (msg.mThreadId == -1) ? DELETED : msg.mFolderName;
-                    mListener.onMessageDeleted(mMasId, String.valueOf(MMS_OFFSET_START + msg.mId),
-                            PRE_PATH + folderName, MMS);
+                for (int i = 0; i < mMmsDeletedList.size(); i++) {
+                    mListener.onMessageDeleted(mMasId,
+                            String.valueOf(MMS_OFFSET_START + mMmsDeletedList.getId(i)),
+                            PRE_PATH + getFolderName(mMmsDeletedList, i), MMS);
                 }
             }
         }
@@ -35,8 +35,6 @@ import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMasMessageRsp;
 import org.codeaurora.bluetooth.map.MapUtils.CommonUtils.BluetoothMasPushMsgRsp;
 import org.codeaurora.bluetooth.map.MapUtils.MapUtils.BadRequestException;
 
-import java.io.File;
-
 public interface IBluetoothMasApp {
     public static final int BIT_SUBJECT = 0x1;
     public static final int BIT_DATETIME = 0x2;
@@ -100,13 +98,13 @@ public interface IBluetoothMasApp {
     public boolean setPath(boolean up, String name);
     public boolean checkPath(boolean up, String name, boolean setPathFlag);
     public int folderListingSize();
-    public String folderListing(BluetoothMasAppParams appParam);
+    public byte[] folderListing(BluetoothMasAppParams appParam);
     //private String getFullPath(String child);
     public BluetoothMasMessageListingRsp msgListing(String name,
         BluetoothMasAppParams appParams);
     public BluetoothMasMessageRsp msg(String msgHandle,
         BluetoothMasAppParams bluetoothMasAppParams);
-    public BluetoothMasPushMsgRsp pushMsg(String name, File file,
+    public BluetoothMasPushMsgRsp pushMsg(String name, PushMsgBody body,
         BluetoothMasAppParams bluetoothMasAppParams) throws BadRequestException;
     public int msgStatus(String msgHandle, BluetoothMasAppParams bluetoothMasAppParams);
     public int msgUpdate();
@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.map.MapUtils;
+
+import android.util.Log;
+
+import org.codeaurora.bluetooth.map.BluetoothMasService;
+import org.codeaurora.bluetooth.map.MapUtils.MapUtils.BadRequestException;
+
+import java.util.ArrayList;
+
+/**
+ * BmessageParser tokenizes a pushed bMessage in a single walk over its lines.
+ * It follows the BEGIN/END nesting of the BMSG, BENV, VCARD, BBODY and MSG
+ * blocks, keeps the header properties of the block they belong to and
+ * records where the originator vCard, the first recipient vCard and the
+ * message content are, so that the fromBmessage methods in MapUtils do not
+ * have to rescan the whole String for every field.
+ *
+ * Lines between BEGIN:MSG and END:MSG are never tokenized; only a line that
+ * is exactly END:MSG ends the content.
+ */
+public class BmessageParser {
+    public static final String TAG = "BmessageParser";
+    public static final boolean V = BluetoothMasService.VERBOSE;
+
+    private static final String BEGIN = "BEGIN:";
+    private static final String END = "END:";
+    private static final String BMSG = "BMSG";
+    private static final String BENV = "BENV";
+    private static final String VCARD = "VCARD";
+    private static final String BBODY = "BBODY";
+    private static final String MSG = "MSG";
+
+    private final String mBmsg;
+
+    // BMSG properties
+    private String mVersion;
+    private String mStatus;
+    private String mType;
+    private String mFolder;
+
+    // BBODY properties
+    private String mLength;
+    private String mEncoding;
+    private String mCharset;
+
+    private boolean mHasBenv;
+
+    // Begin of the BEGIN:VCARD line and end of the END:VCARD token
+    private int mOriginatorBegin = -1;
+    private int mOriginatorEnd = -1;
+    private int mRecipientBegin = -1;
+    private int mRecipientEnd = -1;
+    // First vCard of the bMessage, used as recipient when there is no BENV
+    private int mFirstVcardBegin = -1;
+    private int mFirstVcardEnd = -1;
+
+    // Begin of the BEGIN:MSG line and of the first content line
+    private int mMsgBegin = -1;
+    private int mMsgContentBegin = -1;
+    // Begin of the END:MSG lines and end of the content line before them
+    private int mFirstMsgEnd = -1;
+    private int mLastMsgEnd = -1;
+    private int mLastMsgContentEnd = -1;
+
+    private BmessageParser(String bmsg) {
+        mBmsg = bmsg;
+    }
+
+    /**
+     * Parses the bMessage. The returned object only holds offsets into the
+     * String; the vCards and the message content are cut out on request.
+     */
+    public static BmessageParser parse(String bmsg) {
+        BmessageParser parser = new BmessageParser(bmsg);
+        parser.tokenize();
+        return parser;
+    }
+
+    private void tokenize() {
+        final String bmsg = mBmsg;
+        final int length = bmsg.length();
+        ArrayList<String> blocks = new ArrayList<String>();
+        boolean inMsg = false;
+        int vCardBegin = -1;
+        int vCardParent = -1;
+        int lineBegin = 0;
+        int lines = 0;
+
+        while (lineBegin < length) {
+            int lineEnd = bmsg.indexOf('\n', lineBegin);
+            int next = lineEnd == -1 ? length : lineEnd + 1;
+            if (lineEnd == -1) {
+                lineEnd = length;
+            }
+            // The preceding CR is not part of the line
+            int textEnd = lineEnd;
+            if (textEnd > lineBegin && bmsg.charAt(textEnd - 1) == '\r') {
+                textEnd--;
+            }
+            lines++;
+
+            if (inMsg) {
+                if (isLine(lineBegin, textEnd, END, MSG)) {
+                    if (mFirstMsgEnd == -1) {
+                        mFirstMsgEnd = lineBegin;
+                    }
+                    mLastMsgEnd = lineBegin;
+                    mLastMsgContentEnd = contentEnd(lineBegin);
+                    inMsg = false;
+                    pop(blocks, MSG);
+                }
+                lineBegin = next;
+                continue;
+            }
+
+            if (bmsg.startsWith(BEGIN, lineBegin)) {
+                String name = bmsg.substring(lineBegin + BEGIN.length(), textEnd);
+                if (MSG.equals(name)) {
+                    inMsg = true;
+                    if (mMsgBegin == -1) {
+                        mMsgBegin = lineBegin;
+                        mMsgContentBegin = next;
+                    }
+                } else if (VCARD.equals(name) && vCardBegin == -1) {
+                    vCardBegin = lineBegin;
+                    vCardParent = blocks.size();
+                } else if (BENV.equals(name)) {
+                    mHasBenv = true;
+                }
+                blocks.add(name);
+            } else if (bmsg.startsWith(END, lineBegin)) {
+                String name = bmsg.substring(lineBegin + END.length(), textEnd);
+                if (MSG.equals(name)) {
+                    // END:MSG without BEGIN:MSG, still counts for the content end
+                    mLastMsgEnd = lineBegin;
+                    mLastMsgContentEnd = contentEnd(lineBegin);
+                }
+                pop(blocks, name);
+                if (VCARD.equals(name) && vCardBegin != -1 && blocks.size() == vCardParent) {
+                    addVcard(vCardBegin, lineBegin + END.length() + VCARD.length(), blocks);
+                    vCardBegin = -1;
+                }
+            } else if (!blocks.isEmpty()) {
+                String block = blocks.get(blocks.size() - 1);
+                if (BMSG.equals(block)) {
+                    if (mVersion == null) {
+                        mVersion = value(lineBegin, textEnd, "VERSION:");
+                    }
+                    if (mStatus == null) {
+                        mStatus = value(lineBegin, textEnd, "STATUS:");
+                    }
+                    if (mType == null) {
+                        mType = value(lineBegin, textEnd, "TYPE:");
+                    }
+                    if (mFolder == null) {
+                        mFolder = value(lineBegin, textEnd, "FOLDER:");
+                    }
+                } else if (BBODY.equals(block)) {
+                    if (mLength == null) {
+                        mLength = value(lineBegin, textEnd, "LENGTH:");
+                    }
+                    if (mEncoding == null) {
+                        mEncoding = value(lineBegin, textEnd, "ENCODING:");
+                    }
+                    if (mCharset == null) {
+                        mCharset = value(lineBegin, textEnd, "CHARSET:");
+                    }
+                }
+            }
+            lineBegin = next;
+        }
+
+        if (vCardBegin != -1) {
+            // Unterminated vCard, only its begin is known
+            while (blocks.size() > vCardParent) {
+                blocks.remove(blocks.size() - 1);
+            }
+            addVcard(vCardBegin, -1, blocks);
+        }
+        if (V) Log.v(TAG, "tokenized " + lines + " lines, " + length + " chars");
+    }
+
+    private void addVcard(int begin, int end, ArrayList<String> blocks) {
+        if (mFirstVcardBegin == -1) {
+            mFirstVcardBegin = begin;
+            mFirstVcardEnd = end;
+        }
+        if (mRecipientBegin == -1 && blocks.contains(BENV)) {
+            mRecipientBegin = begin;
+            mRecipientEnd = end;
+        } else if (mOriginatorBegin == -1 && !mHasBenv && !blocks.isEmpty()
+                && BMSG.equals(blocks.get(blocks.size() - 1))) {
+            mOriginatorBegin = begin;
+            mOriginatorEnd = end;
+        }
+    }
+
+    /**
+     * Removes the innermost block with the given name and any block that was
+     * left open inside it. An END without a matching BEGIN is ignored.
+     */
+    private static void pop(ArrayList<String> blocks, String name) {
+        int i = blocks.lastIndexOf(name);
+        if (i == -1) {
+            return;
+        }
+        while (blocks.size() > i) {
+            blocks.remove(blocks.size() - 1);
+        }
+    }
+
+    private boolean isLine(int begin, int end, String prefix, String name) {
+        return end - begin == prefix.length() + name.length()
+                && mBmsg.startsWith(prefix, begin)
+                && mBmsg.startsWith(name, begin + prefix.length());
+    }
+
+    private String value(int begin, int end, String property) {
+        if (mBmsg.startsWith(property, begin)) {
+            return mBmsg.substring(begin + property.length(), end);
+        }
+        return null;
+    }
+
+    private int contentEnd(int lineBegin) {
+        int end = lineBegin;
+        if (end > 0 && mBmsg.charAt(end - 1) == '\n') {
+            end--;
+            if (end > 0 && mBmsg.charAt(end - 1) == '\r') {
+                end--;
+            }
+        }
+        return end;
+    }
+
+    public String getVersion() {
+        return mVersion == null ? "" : mVersion;
+    }
+
+    public String getStatus() {
+        return mStatus == null ? "" : mStatus;
+    }
+
+    public String getType() {
+        return mType;
+    }
+
+    public String getFolder() {
+        return mFolder;
+    }
+
+    public Integer getBodyLength() {
+        return mLength == null ? null : Integer.valueOf(mLength);
+    }
+
+    public String getEncoding() {
+        return mEncoding;
+    }
+
+    public String getCharset() {
+        return mCharset;
+    }
+
+    /**
+     * Returns the first vCard of the first envelope, or the first vCard of
+     * the bMessage when it has no envelope.
+     */
+    public String getRecipientVcard() throws BadRequestException {
+        int begin = mHasBenv ? mRecipientBegin : mFirstVcardBegin;
+        int end = mHasBenv ? mRecipientEnd : mFirstVcardEnd;
+        if (begin == -1) {
+            throw new BadRequestException("No vCard in BENV");
+        }
+        if (end == -1) {
+            throw new BadRequestException("No END:VCARD in BENV");
+        }
+        return mBmsg.substring(begin, end);
+    }
+
+    /**
+     * Returns the originator vCard, or an empty String when the first vCard
+     * of the bMessage belongs to an envelope.
+     */
+    public String getOriginatorVcard() throws BadRequestException {
+        if (mFirstVcardBegin == -1) {
+            throw new BadRequestException("No Vcard");
+        }
+        if (mOriginatorBegin == -1) {
+            return "";
+        }
+        if (mOriginatorEnd == -1) {
+            throw new BadRequestException("No END:VCARD");
+        }
+        return mBmsg.substring(mOriginatorBegin, mOriginatorEnd);
+    }
+
+    /**
+     * Returns the message content between BEGIN:MSG and the last END:MSG,
+     * without the line breaks that surround it.
+     */
+    public String getMsgContent() {
+        if (mMsgBegin == -1) {
+            return "";
+        }
+        if (mLastMsgEnd == -1 || mLastMsgEnd < mMsgContentBegin) {
+            Log.v(TAG, "ill-Formatted END:MSG bMessage");
+            return "";
+        }
+        if (mLastMsgContentEnd < mMsgContentBegin) {
+            return "";
+        }
+        return mBmsg.substring(mMsgContentBegin, mLastMsgContentEnd);
+    }
+
+    /**
+     * Returns the message including the BEGIN:MSG and first END:MSG lines,
+     * or an empty String when there is no complete MSG block.
+     */
+    public String getMsgBlock() {
+        if (mMsgBegin == -1 || mFirstMsgEnd == -1) {
+            return "";
+        }
+        return mBmsg.substring(mMsgBegin, mFirstMsgEnd + END.length() + MSG.length());
+    }
+
+    /**
+     * Returns the message including the BEGIN:MSG and last END:MSG lines, or
+     * the remainder of the bMessage when the MSG block is not terminated.
+     */
+    public String getMsgBlockToLastEnd() {
+        if (mMsgBegin == -1) {
+            return mBmsg;
+        }
+        if (mLastMsgEnd < mMsgBegin) {
+            return mBmsg.substring(mMsgBegin);
+        }
+        return mBmsg.substring(mMsgBegin, mLastMsgEnd + END.length() + MSG.length());
+    }
+}
@@ -62,6 +62,8 @@ public class CommonUtils {
 
     public static class BluetoothMasMessageListingRsp {
         public File file = null;
+        // Set instead of file when the listing is streamed to the client
+        public List<MsgListingConsts> msgList = null;
         public int msgListingSize = 0;
         public byte newMessage = 0;
         public int rsp = ResponseCodes.OBEX_HTTP_OK;
@@ -70,6 +72,8 @@ public class CommonUtils {
     public static class BluetoothMasMessageRsp {
         public byte fractionDeliver = 0;
         public File file = null;
+        // bMessage held in memory, sent instead of file when set
+        public byte[] body = null;
         public int rsp = ResponseCodes.OBEX_HTTP_OK;
     }
 
@@ -77,6 +81,20 @@ public class CommonUtils {
         public int messageListingSize = 0;
         public BluetoothMasMessageListingRsp rsp;
         public List<MsgListingConsts> msgList = new ArrayList<MsgListingConsts>();
+        // msgList only holds the ListStartOffset/MaxListCount window when set
+        public boolean paged = false;
+    }
+
+    /**
+     * Append a LIMIT/OFFSET clause to a provider sort order so that only
+     * the requested window of rows is read from the database.
+     */
+    public static String getPagedSortOrder(String sortOrder, int limit, int offset) {
+        String pagedSortOrder = sortOrder + " LIMIT " + limit;
+        if (offset > 0) {
+            pagedSortOrder += " OFFSET " + offset;
+        }
+        return pagedSortOrder;
     }
 
     public static String getFullPath(String child, Context context, List<String> folderList, String CurrentPath) {
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.map.MapUtils;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+
+import org.codeaurora.bluetooth.map.BluetoothMasService;
+import org.codeaurora.bluetooth.map.MapUtils.SmsMmsUtils.VcardContent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ContactCache is a bounded, least recently used cache of the contact details
+ * resolved for a phone number. Entries are keyed by the number with its
+ * separators stripped, so lookups are O(1) regardless of the number of
+ * contacts seen. Numbers without a matching contact are cached as well
+ * (VcardContent.contactId == -1) so unknown senders are not looked up again
+ * for every message.
+ *
+ * On a contacts change only the entries of the contacts updated or deleted
+ * since the last sync are dropped, together with the unknown numbers, which
+ * may have been added to a contact.
+ */
+public class ContactCache {
+    public static final String TAG = "ContactCache";
+    public static final boolean V = BluetoothMasService.VERBOSE;
+
+    public static final int DEFAULT_MAX_ENTRIES = 512;
+
+    private final LinkedHashMap<String, VcardContent> mEntries;
+    private long mLastSync;
+
+    public ContactCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public ContactCache(final int maxEntries) {
+        mEntries = new LinkedHashMap<String, VcardContent>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VcardContent> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        mLastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the cached entry for the number, or null if it was not looked up
+     */
+    public synchronized VcardContent get(String phoneNumber) {
+        String key = getKey(phoneNumber);
+        if (key == null) {
+            return null;
+        }
+        return mEntries.get(key);
+    }
+
+    /**
+     * Cache the contact details resolved for the number
+     */
+    public synchronized void put(String phoneNumber, VcardContent vCard) {
+        String key = getKey(phoneNumber);
+        if (key != null && vCard != null) {
+            mEntries.put(key, vCard);
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Drop the entries resolved to the given contact
+     */
+    public synchronized void invalidateContact(long contactId) {
+        Iterator<VcardContent> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().contactId == contactId) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop the entries of numbers without a matching contact
+     */
+    public synchronized void invalidateUnknown() {
+        invalidateContact(-1);
+    }
+
+    /**
+     * Drop the entries affected by the contacts changed since the last call.
+     * Falls back to clearing the whole cache if the changes cannot be read.
+     */
+    public void onContactsChanged(ContentResolver resolver) {
+        long since;
+        synchronized (this) {
+            since = mLastSync;
+            mLastSync = System.currentTimeMillis();
+        }
+        List<Long> changed = new ArrayList<Long>();
+        String[] args = new String[] { Long.toString(since) };
+        Cursor cr = null;
+        try {
+            cr = resolver.query(Contacts.CONTENT_URI, new String[] { Contacts._ID },
+                    Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " >= ?", args, null);
+            if (cr == null) {
+                clear();
+                return;
+            }
+            while (cr.moveToNext()) {
+                changed.add(cr.getLong(0));
+            }
+            cr.close();
+            cr = null;
+            cr = resolver.query(DeletedContacts.CONTENT_URI,
+                    new String[] { DeletedContacts.CONTACT_ID },
+                    DeletedContacts.CONTACT_DELETED_TIMESTAMP + " >= ?", args, null);
+            if (cr == null) {
+                clear();
+                return;
+            }
+            while (cr.moveToNext()) {
+                changed.add(cr.getLong(0));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to read contact changes, clearing cache " + e.toString());
+            clear();
+            return;
+        } finally {
+            if (cr != null) {
+                cr.close();
+            }
+        }
+
+        synchronized (this) {
+            for (long contactId : changed) {
+                invalidateContact(contactId);
+            }
+            invalidateUnknown();
+            if (V) {
+                Log.v(TAG, changed.size() + " contacts changed, " + mEntries.size()
+                        + " entries kept");
+            }
+        }
+    }
+
+    private static String getKey(String phoneNumber) {
+        if (phoneNumber == null) {
+            return null;
+        }
+        String key = phoneNumber.trim();
+        if (!PhoneNumberUtils.isWellFormedSmsAddress(key)) {
+            // Alphanumeric sender ids and email addresses are kept as they are
+            return key;
+        }
+        return PhoneNumberUtils.stripSeparators(key);
+    }
+}
@@ -184,6 +184,98 @@ public class EmailUtils {
         return attchSize;
     }
 
+    // Message ids per size query, keeps the IN clause well below the SQL limits
+    private static final int SIZE_QUERY_CHUNK = 500;
+
+    /**
+     * Fills in the size and attachment size of a page of listing entries.
+     * Instead of one body and one attachment query per message, the sizes of
+     * up to SIZE_QUERY_CHUNK messages are fetched with a single query each.
+     * Only the sizes requested by the ParameterMask are queried.
+     *
+     * @param msgs the listing entries, in the same order as ids
+     * @param ids the email message ids of the entries
+     */
+    public static void setListingSizesEmail(Context context, BluetoothMasAppParams appParams,
+            List<MsgListingConsts> msgs, long[] ids) {
+        final boolean size = (appParams.ParameterMask & BIT_SIZE) != 0;
+        final boolean attachmentSize = (appParams.ParameterMask & BIT_ATTACHMENT_SIZE) != 0;
+        if (!size && !attachmentSize) {
+            return;
+        }
+        final int count = msgs.size();
+        HashMap<Long, Integer> msgSizes = new HashMap<Long, Integer>();
+        HashMap<Long, Integer> attachmentSizes = new HashMap<Long, Integer>();
+        for (int begin = 0; begin < count; begin += SIZE_QUERY_CHUNK) {
+            String where = getMessageKeyIn(ids, begin, Math.min(count, begin + SIZE_QUERY_CHUNK));
+            if (size) {
+                addMessageSizesEmail(context, where, msgSizes);
+            }
+            if (attachmentSize) {
+                addAttachmentSizesEmail(context, where, attachmentSizes);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (size) {
+                Integer msgSize = msgSizes.get(ids[i]);
+                msgs.get(i).setSize(msgSize == null ? -1 : msgSize);
+            }
+            if (attachmentSize) {
+                Integer attchSize = attachmentSizes.get(ids[i]);
+                msgs.get(i).setAttachment_size(attchSize == null ? 0 : attchSize);
+            }
+        }
+        if (V) Log.v(TAG, "setListingSizesEmail: " + count + " msgs");
+    }
+
+    private static String getMessageKeyIn(long[] ids, int begin, int end) {
+        StringBuilder where = new StringBuilder("messageKey IN (");
+        for (int i = begin; i < end; i++) {
+            if (i > begin) {
+                where.append(',');
+            }
+            where.append(ids[i]);
+        }
+        return where.append(')').toString();
+    }
+
+    private static void addMessageSizesEmail(Context context, String where,
+            HashMap<Long, Integer> msgSizes) {
+        String[] projection = new String[] { "messageKey", "LENGTH(textContent)",
+                "LENGTH(htmlContent)" };
+        Uri uri = Uri.parse("content://com.android.email.provider/body");
+        Cursor cr = context.getContentResolver().query(uri, projection, where, null, null);
+        if (cr != null) {
+            while (cr.moveToNext()) {
+                int msgSize = cr.getInt(1);
+                if (msgSize == -1 || msgSize == 0) {
+                    msgSize = cr.getInt(2);
+                }
+                // Same as getMessageSizeEmail, the first body row wins
+                Long key = cr.getLong(0);
+                if (!msgSizes.containsKey(key)) {
+                    msgSizes.put(key, msgSize);
+                }
+            }
+            cr.close();
+        }
+    }
+
+    private static void addAttachmentSizesEmail(Context context, String where,
+            HashMap<Long, Integer> attachmentSizes) {
+        Uri uri = Uri.parse("content://com.android.email.provider/attachment");
+        Cursor cr = context.getContentResolver().query(uri,
+                new String[] { "messageKey", "size" }, where, null, null);
+        if (cr != null) {
+            while (cr.moveToNext()) {
+                Long key = cr.getLong(0);
+                Integer attchSize = attachmentSizes.get(key);
+                attachmentSizes.put(key, (attchSize == null ? 0 : attchSize) + cr.getInt(1));
+            }
+            cr.close();
+        }
+    }
+
     public static String getFolderName(String[] splitStringsEmail) {
         String folderName=" ";
         int len = splitStringsEmail.length;
@@ -335,7 +427,11 @@ public class EmailUtils {
         return whereClauseEmail;
     }
 
-    public static MsgListingConsts bldEmailMsgLstItem(Context context, String folderName,
+    /**
+     * Builds the listing entry of one email. The size and attachment size
+     * are not set here, see setListingSizesEmail.
+     */
+    public static MsgListingConsts bldEmailMsgLstItem(String folderName,
                 BluetoothMasAppParams appParams, String subject, String timestamp,
                 String senderName, String senderAddressing, String recipientName,
                 String recipientAddressing, String msgId, String readStatus, String replyToStr,
@@ -344,12 +440,14 @@ public class EmailUtils {
         MsgListingConsts emailMsg = new MsgListingConsts();
         emailMsg.setMsg_handle(Long.valueOf(msgId)+ offset);
 
+        final long date = Long.valueOf(timestamp);
         Time time = new Time();
-        time.set(Long.valueOf(timestamp));
+        time.set(date);
 
         String datetimeStr = time.toString().substring(0, 15);
 
         emailMsg.msgInfo.setDateTime(datetimeStr);
+        emailMsg.msgInfo.setTimestamp(date);
 
         if (V){
             Log.v(TAG, "bldEmailMsgLstItem");
@@ -514,12 +612,6 @@ public class EmailUtils {
             emailMsg.setType("EMAIL");
         }
 
-        if ((appParams.ParameterMask & BIT_SIZE) != 0) {
-            int  msgSize = 0;
-            msgSize = getMessageSizeEmail(Long.valueOf(msgId), context);
-            emailMsg.setSize(msgSize);
-        }
-
         if ((appParams.ParameterMask & BIT_RECEPTION_STATUS) != 0) {
             emailMsg.setReception_status("complete");
         }
@@ -529,10 +621,6 @@ public class EmailUtils {
             emailMsg.setContains_text("yes");
         }
 
-        if ((appParams.ParameterMask & BIT_ATTACHMENT_SIZE) != 0) {
-            emailMsg.setAttachment_size(getAttachmentSizeEmail(Long.valueOf(msgId), context));
-        }
-
         if ((appParams.ParameterMask & BIT_PRIORITY) != 0) {
             // TODO Get correct priority
             emailMsg.setPriority("no");
@@ -78,29 +78,96 @@ public class MapUtils {
     public static final boolean V = BluetoothMasService.VERBOSE;
     private static final String CRLF = "\r\n";
 
+    private static final byte[] FOLDER_LISTING_HEADER = utf8Bytes("<?xml version=\"1.0\"?>"
+            + "<!DOCTYPE folder-listing SYSTEM \"obex-folder-listing.dtd\">"
+            + "<folder-listing version=\"1.0\">");
+    private static final byte[] FOLDER_LISTING_FOOTER = utf8Bytes("</folder-listing>");
+
     /**
-     * folderListingXML
+     * folderListingEntries
      *
-     * This method takes a list of folder names and returns a String with the
-     * XML version of the List
+     * This method takes a list of folder names and returns the UTF-8 encoded
+     * folder element of each, to be assembled by folderListingXML
      *
      * @param list
      *            An array of strings where each element represents a folder
      *            name
-     * @return This method returns either null or a String
+     * @return the encoded folder elements, in list order
      */
-    public static String folderListingXML(List<String> list) {
-        String str = "<?xml version=\"1.0\"?><!DOCTYPE folder-listing SYSTEM \"obex-folder-listing.dtd\"><folder-listing version=\"1.0\">";
+    public static byte[][] folderListingEntries(List<String> list) {
+        byte[][] entries = new byte[list.size()][];
+        StringBuilder str = new StringBuilder();
+        for (int i = 0; i < entries.length; i++) {
+            str.setLength(0);
+            str.append("<folder name=\"");
+            appendXmlAttribute(str, list.get(i));
+            str.append("\"/>");
+            entries[i] = utf8Bytes(str.toString());
+        }
+        return entries;
+    }
 
-        for (String s : list) {
-            str += "<folder name=\"";
-            str += s;
-            str += "\"/>";
-        }
+    /**
+     * folderListingXML
+     *
+     * This method returns the UTF-8 encoded XML folder listing of the
+     * entries in the window given by offset and maxCount
+     *
+     * @param entries
+     *            folder elements built by folderListingEntries
+     * @param offset
+     *            number of entries to skip
+     * @param maxCount
+     *            maximum number of entries to list
+     * @return the encoded folder listing
+     */
+    public static byte[] folderListingXML(byte[][] entries, int offset, int maxCount) {
+        final int start = Math.max(0, Math.min(offset, entries.length));
+        final int end = start + Math.max(0, Math.min(maxCount, entries.length - start));
+        int length = FOLDER_LISTING_HEADER.length + FOLDER_LISTING_FOOTER.length;
+        for (int i = start; i < end; i++) {
+            length += entries[i].length;
+        }
+        byte[] listing = new byte[length];
+        int pos = FOLDER_LISTING_HEADER.length;
+        System.arraycopy(FOLDER_LISTING_HEADER, 0, listing, 0, pos);
+        for (int i = start; i < end; i++) {
+            System.arraycopy(entries[i], 0, listing, pos, entries[i].length);
+            pos += entries[i].length;
+        }
+        System.arraycopy(FOLDER_LISTING_FOOTER, 0, listing, pos, FOLDER_LISTING_FOOTER.length);
+        return listing;
+    }
 
-        str += "</folder-listing>";
+    private static byte[] utf8Bytes(String str) {
+        try {
+            return str.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return str.getBytes();
+        }
+    }
 
-        return str;
+    private static void appendXmlAttribute(StringBuilder str, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '&':
+                str.append("&amp;");
+                break;
+            case '<':
+                str.append("&lt;");
+                break;
+            case '>':
+                str.append("&gt;");
+                break;
+            case '"':
+                str.append("&quot;");
+                break;
+            default:
+                str.append(c);
+                break;
+            }
+        }
     }
 
     /**
@@ -134,85 +201,7 @@ public class MapUtils {
             serializer.startTag(null, "MAP-msg-listing");
             serializer.attribute(null, "version", "1.0");
             for (MsgListingConsts msg : list) {
-                serializer.startTag(null, "msg");
-
-                serializer.attribute(null, "handle", ("" + msg.msg_handle));
-                if (msg.sendSubject == true) {
-                    if (msg.subject == null){
-                        serializer.attribute(null, "subject", "");
-                    } else {
-                        serializer.attribute(null, "subject", msg.subject);
-                    }
-
-                }
-                if (msg.datetime != null) {
-                    serializer.attribute(null, "datetime", msg.datetime);
-                }
-                if (msg.sender_name != null) {
-                    serializer.attribute(null, "sender_name", msg.sender_name);
-                }
-
-                if (msg.sender_addressing != null) {
-                    serializer.attribute(null, "sender_addressing",
-                            msg.sender_addressing);
-                }
-
-                if (msg.replyto_addressing != null) {
-                    serializer.attribute(null, "replyto_addressing",
-                            msg.replyto_addressing);
-                }
-
-                if (msg.recepient_name != null) {
-                    serializer.attribute(null, "recipient_name",
-                            msg.recepient_name);
-                }
-                if (msg.sendRecipient_addressing == true) {
-                    if (msg.recepient_addressing != null) {
-                        serializer.attribute(null, "recipient_addressing",
-                                msg.recepient_addressing);
-                    } else {
-                        serializer.attribute(null, "recipient_addressing", "");
-                    }
-                }
-                if (msg.type != null) {
-                    serializer.attribute(null, "type", msg.type);
-                }
-                if (msg.size != -1) {
-                    serializer.attribute(null, "size", ("" + msg.size));
-                }
-
-                if (msg.contains_text != null) {
-                    serializer.attribute(null, "text", msg.contains_text);
-                }
-
-                if (msg.reception_status != null) {
-                    serializer.attribute(null, "reception_status",
-                            msg.reception_status);
-                }
-
-                if (msg.attachment_size != -1) {
-                    serializer.attribute(null, "attachment_size",
-                            ("" + Integer.toString(msg.attachment_size)));
-                }
-
-                if (msg.priority != null) {
-                    serializer.attribute(null, "priority", msg.priority);
-                }
-
-                if (msg.read != null) {
-                    serializer.attribute(null, "read", msg.read);
-                }
-
-                if (msg.sent != null) {
-                    serializer.attribute(null, "sent", msg.sent);
-                }
-
-                if (msg.msg_protected != null) {
-                    serializer.attribute(null, "protected", msg.msg_protected);
-                }
-
-                serializer.endTag(null, "msg");
-
+                msgListingEntryXML(serializer, msg);
             }
             serializer.endTag(null, "MAP-msg-listing");
             serializer.endDocument();
@@ -245,6 +234,99 @@ public class MapUtils {
         return null;
     }
 
+    /**
+     * msgListingEntryXML
+     *
+     * This method writes one msg element of a MAP-msg-listing to the given
+     * serializer
+     *
+     * @param serializer
+     *            The serializer the element is written to
+     * @param msg
+     *            The message object to be written
+     */
+    static void msgListingEntryXML(XmlSerializer serializer, MsgListingConsts msg)
+            throws IOException {
+        serializer.startTag(null, "msg");
+
+        serializer.attribute(null, "handle", ("" + msg.msg_handle));
+        if (msg.sendSubject == true) {
+            if (msg.subject == null){
+                serializer.attribute(null, "subject", "");
+            } else {
+                serializer.attribute(null, "subject", msg.subject);
+            }
+
+        }
+        if (msg.datetime != null) {
+            serializer.attribute(null, "datetime", msg.datetime);
+        }
+        if (msg.sender_name != null) {
+            serializer.attribute(null, "sender_name", msg.sender_name);
+        }
+
+        if (msg.sender_addressing != null) {
+            serializer.attribute(null, "sender_addressing",
+                    msg.sender_addressing);
+        }
+
+        if (msg.replyto_addressing != null) {
+            serializer.attribute(null, "replyto_addressing",
+                    msg.replyto_addressing);
+        }
+
+        if (msg.recepient_name != null) {
+            serializer.attribute(null, "recipient_name",
+                    msg.recepient_name);
+        }
+        if (msg.sendRecipient_addressing == true) {
+            if (msg.recepient_addressing != null) {
+                serializer.attribute(null, "recipient_addressing",
+                        msg.recepient_addressing);
+            } else {
+                serializer.attribute(null, "recipient_addressing", "");
+            }
+        }
+        if (msg.type != null) {
+            serializer.attribute(null, "type", msg.type);
+        }
+        if (msg.size != -1) {
+            serializer.attribute(null, "size", ("" + msg.size));
+        }
+
+        if (msg.contains_text != null) {
+            serializer.attribute(null, "text", msg.contains_text);
+        }
+
+        if (msg.reception_status != null) {
+            serializer.attribute(null, "reception_status",
+                    msg.reception_status);
+        }
+
+        if (msg.attachment_size != -1) {
+            serializer.attribute(null, "attachment_size",
+                    ("" + Integer.toString(msg.attachment_size)));
+        }
+
+        if (msg.priority != null) {
+            serializer.attribute(null, "priority", msg.priority);
+        }
+
+        if (msg.read != null) {
+            serializer.attribute(null, "read", msg.read);
+        }
+
+        if (msg.sent != null) {
+            serializer.attribute(null, "sent", msg.sent);
+        }
+
+        if (msg.msg_protected != null) {
+            serializer.attribute(null, "protected", msg.msg_protected);
+        }
+
+        serializer.endTag(null, "msg");
+    }
+
     /**
      * msgListingGetHdrXML
      *
@@ -945,17 +1027,18 @@ public class MapUtils {
     /**
      * fromBmessageSMS
      *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and loads a BmessageConsts object that is returned
+     * This method takes as input a parsed bMessage and loads a
+     * BmessageConsts object that is returned
      *
-     * @param String
-     *            - which is a bMessage formatted SMS message
+     * @param parser
+     *            - a bMessage formatted SMS message parsed by BmessageParser
      * @return This method returns a BmessageConsts object
      * @throws BadRequestException
      */
-    public static BmessageConsts fromBmessageSMS(String bmsg) throws BadRequestException {
+    public static BmessageConsts fromBmessageSMS(BmessageParser parser)
+            throws BadRequestException {
         BmessageConsts bMsgObj = new BmessageConsts();
-        String vCard = fetchRecipientVcard(bmsg);
+        String vCard = parser.getRecipientVcard();
 
         RecipientVCard recipient = parseVCard(vCard);
         if (recipient.mTel.length() == 0 || recipient.mTel.contains(",") || recipient.mTel.contains(";")) {
@@ -968,25 +1051,25 @@ public class MapUtils {
         bMsgObj.setVcard_version(recipient.mVersion);
 
         // Extract bMessage Version
-        bMsgObj.setBmsg_version(fetchVersion(bmsg));
+        bMsgObj.setBmsg_version(parser.getVersion());
 
         // Extract Message Status
-        bMsgObj.setStatus(fetchReadStatus(bmsg));
+        bMsgObj.setStatus(parser.getStatus());
 
         // Extract Message Type
-        bMsgObj.setType(fetchType(bmsg));
+        bMsgObj.setType(parser.getType());
 
         // Extract Message Folder
-        bMsgObj.setFolder(fetchFolder(bmsg));
+        bMsgObj.setFolder(parser.getFolder());
 
         // Fetch Message Length
-        bMsgObj.setBody_length(fetchBodyLength(bmsg));
+        bMsgObj.setBody_length(parser.getBodyLength());
 
         // Extract Message
-        bMsgObj.setBody_msg(fetchBodyMsg(bmsg));
+        bMsgObj.setBody_msg(parser.getMsgContent());
 
         // Extract Message encoding
-        bMsgObj.setBody_encoding(fetchBodyEncoding(bmsg));
+        bMsgObj.setBody_encoding(parser.getEncoding());
 
         return bMsgObj;
     }
@@ -994,19 +1077,20 @@ public class MapUtils {
     /**
      * fromBmessageMMS
      *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and loads a BmessageConsts object that is returned
+     * This method takes as input a parsed bMessage and loads a
+     * BmessageConsts object that is returned
      *
-     * @param String
-     *            - which is a bMessage formatted SMS message
+     * @param parser
+     *            - a bMessage formatted MMS message parsed by BmessageParser
      * @return This method returns a BmessageConsts object
      * @throws BadRequestException
      */
-    public static BmessageConsts fromBmessageMMS(String bmsg) throws BadRequestException {
+    public static BmessageConsts fromBmessageMMS(BmessageParser parser)
+            throws BadRequestException {
         BmessageConsts bMsgObj = new BmessageConsts();
 
         String phoneNumber = null;
-        String vCard = fetchRecipientVcard(bmsg);
+        String vCard = parser.getRecipientVcard();
         if (V) Log.v(TAG, "vCard Info: " + vCard);
 
         RecipientVCard recipient = parseVCard(vCard);
@@ -1028,25 +1112,25 @@ public class MapUtils {
         bMsgObj.setVcard_version(recipient.mVersion);
 
         // Extract bMessage Version
-        bMsgObj.setBmsg_version(fetchVersion(bmsg));
+        bMsgObj.setBmsg_version(parser.getVersion());
 
         // Extract Message Status
-        bMsgObj.setStatus(fetchReadStatus(bmsg));
+        bMsgObj.setStatus(parser.getStatus());
 
         // Extract Message Type
-        bMsgObj.setType(fetchType(bmsg));
+        bMsgObj.setType(parser.getType());
 
         // Extract Message Folder
-        bMsgObj.setFolder(fetchFolder(bmsg));
+        bMsgObj.setFolder(parser.getFolder());
 
         // Fetch Message Length
-        bMsgObj.setBody_length(fetchBodyLength(bmsg));
+        bMsgObj.setBody_length(parser.getBodyLength());
 
         // Extract Message
-        bMsgObj.setBody_msg(fetchBodyMsgMMS(bmsg));
+        bMsgObj.setBody_msg(parser.getMsgBlock());
 
         // Extract Message encoding
-        bMsgObj.setBody_encoding(fetchBodyEncoding(bmsg));
+        bMsgObj.setBody_encoding(parser.getEncoding());
 
         return bMsgObj;
     }
@@ -1054,18 +1138,19 @@ public class MapUtils {
     /**
      * fromBmessageEmail
      *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and loads a BmessageConsts object that is returned
+     * This method takes as input a parsed bMessage and loads a
+     * BmessageConsts object that is returned
      *
-     * @param String
-     *            - which is a bMessage formatted Email message
+     * @param parser
+     *            - a bMessage formatted Email message parsed by BmessageParser
      * @return This method returns a BmessageConsts object
      */
 
     public static BmessageConsts fromBmessageEmail(Context context,
-                        String bmsg, int mMasId, String folderName) throws BadRequestException {
+                        BmessageParser parser, int mMasId, String folderName)
+                        throws BadRequestException {
         BmessageConsts bMsgObj = new BmessageConsts();
-        String vCard = fetchRecipientVcard(bmsg);
+        String vCard = parser.getRecipientVcard();
         if (V) Log.v(TAG, "vCard Info: " + vCard);
 
         RecipientVCard recipient = parseVCard(vCard);
@@ -1075,7 +1160,7 @@ public class MapUtils {
         bMsgObj.setRecipientVcard_email(recipient.mEmail);
         if (V) Log.v(TAG, "Email: " + recipient.mEmail);
 
-        String vcardOrig = fetchOriginatorVcardEmail(bmsg);
+        String vcardOrig = parser.getOriginatorVcard();
         RecipientVCard originator = parseVCard(vcardOrig);
         if (originator.mEmail.length() == 0) {
             long accountId = -1;
@@ -1102,47 +1187,39 @@ public class MapUtils {
             bMsgObj.setOriginatorVcard_name(originator.mName);
         }
 
-        if (V){
-            Log.v(TAG, "Bmsg version:: "+fetchVersion(bmsg));
-        }
         // Extract bMessage Version
-        bMsgObj.setBmsg_version(fetchVersion(bmsg));
+        bMsgObj.setBmsg_version(parser.getVersion());
 
-        if (V){
-            Log.v(TAG, "Read status:: "+fetchReadStatus(bmsg));
-        }
         // Extract Message Status
-        bMsgObj.setStatus(fetchReadStatus(bmsg));
+        bMsgObj.setStatus(parser.getStatus());
 
-        if (V){
-            Log.v(TAG, "Message Type:: "+fetchType(bmsg));
-        }
         // Extract Message Type
-        bMsgObj.setType(fetchType(bmsg));
+        bMsgObj.setType(parser.getType());
 
-        if (V){
-            Log.v(TAG, "Folder:: "+fetchFolder(bmsg));
-        }
         // Extract Message Folder
-        bMsgObj.setFolder(fetchFolder(bmsg));
+        bMsgObj.setFolder(parser.getFolder());
 
-        if (V){
-            Log.v(TAG, "body length:: "+fetchBodyLength(bmsg));
-        }
         // Fetch Message Length
-        bMsgObj.setBody_length(fetchBodyLength(bmsg));
+        bMsgObj.setBody_length(parser.getBodyLength());
+
         // Extract Message
-        bMsgObj.setBody_msg(fetchBodyEmail(bmsg));
+        String msgBlock = parser.getMsgBlockToLastEnd();
+        bMsgObj.setBody_msg(fetchBodyEmail(msgBlock));
 
-        if (V){
-            Log.v(TAG, "Message encoding:: "+fetchBodyEncoding(bmsg));
-        }
         // Extract Message encoding
-        bMsgObj.setBody_encoding(fetchBodyEncoding(bmsg));
+        bMsgObj.setBody_encoding(parser.getEncoding());
 
         // Extract Subject of the email
-        bMsgObj.setSubject(fetchSubjectEmail(bmsg));
+        bMsgObj.setSubject(fetchSubjectEmail(msgBlock));
 
+        if (V) {
+            Log.v(TAG, "Bmsg version:: " + bMsgObj.getBmsg_version()
+                    + " Read status:: " + bMsgObj.getStatus()
+                    + " Message Type:: " + bMsgObj.getType()
+                    + " Folder:: " + bMsgObj.getFolder()
+                    + " body length:: " + bMsgObj.getBody_length()
+                    + " Message encoding:: " + bMsgObj.getBody_encoding());
+        }
         return bMsgObj;
     }
 
@@ -1202,29 +1279,6 @@ public class MapUtils {
         }
     }
 
-    private static String fetchOriginatorVcardEmail(String bmsg) throws BadRequestException {
-        // Find the position of the first vCard in the string
-        int vCardBeginPos = bmsg.indexOf("BEGIN:VCARD");
-        if (vCardBeginPos == -1) {
-            // no vCard bad request
-            throw new BadRequestException("No Vcard");
-        }
-        if (V) Log.v(TAG, "vCard start position: " + vCardBeginPos);
-        int bEnvPos = bmsg.indexOf("BEGIN:BENV");
-        if (vCardBeginPos > bEnvPos) {
-            // the first vCard is not originator
-            return "";
-        }
-        int vCardEndPos = bmsg.indexOf("END:VCARD", vCardBeginPos);
-        if (vCardEndPos == -1) {
-            // no END:VCARD bad request
-            throw new BadRequestException("No END:VCARD");
-        }
-        vCardEndPos += "END:VCARD".length();
-
-        return bmsg.substring(vCardBeginPos, vCardEndPos);
-    }
-
     private static String fetchSubjectEmail(String body) {
         int pos = body.indexOf("Subject:");
 
@@ -1237,28 +1291,6 @@ public class MapUtils {
         }
     }
 
-    /**
-     * fetchVersion
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and returns the bMessage version string
-     *
-     * @param
-     * @return String This method returns a Version String
-     */
-    private static String fetchVersion(String bmsg) {
-        int pos = bmsg.indexOf("VERSION:");
-        if (pos > 0) {
-
-            int beginVersionPos = pos + (("VERSION:").length());
-            int endVersionPos = bmsg.indexOf(CRLF, beginVersionPos);
-            return bmsg.substring(beginVersionPos, endVersionPos);
-
-        } else {
-            return "";
-        }
-    }
-
     /**
      * fetchOriginatorVcard
      *
@@ -1284,107 +1316,6 @@ public class MapUtils {
         }
     }
 
-    /**
-     * fetchRecipientVcard
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String looking for the first envelope. Once it finds the envelop, it then
-     * looks for the first vCard and returns it as a String
-     *
-     * @param
-     * @return String This method returns a Vcard String
-     */
-    private static String fetchRecipientVcard(String bmsg) throws BadRequestException {
-        // Locate BENV
-        int locBENV = 0;
-        int pos = 0;
-        locBENV = bmsg.indexOf(CRLF + "BEGIN:BENV");
-        pos = bmsg.indexOf(CRLF + "BEGIN:VCARD", locBENV);
-        if (pos < 0) {
-            // no vCard in BENV
-            throw new BadRequestException("No vCard in BENV");
-        }
-        if (pos > 0) {
-            int beginVcardPos = pos + CRLF.length();
-            int endVcardPos = bmsg.indexOf("END:VCARD", pos);
-            if (endVcardPos < 0) {
-                // no END:VCARD in BENV
-                throw new BadRequestException("No END:VCARD in BENV");
-            }
-            endVcardPos += "END:VCARD".length();
-            return bmsg.substring(beginVcardPos, endVcardPos);
-
-        } else {
-            return "";
-        }
-    }
-
-    /**
-     * fetchReadStatus
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and returns the bMessage read status String
-     *
-     * @param
-     * @return String This method returns a Read Status String
-     */
-    private static String fetchReadStatus(String bmsg) {
-        int pos = bmsg.indexOf("STATUS:");
-        if (pos > 0) {
-
-            int beginStatusPos = pos + (("STATUS:").length());
-            int endStatusPos = bmsg.indexOf(CRLF, beginStatusPos);
-            return bmsg.substring(beginStatusPos, endStatusPos);
-
-        } else {
-            return "";
-        }
-    }
-
-    /**
-     * fetchType
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and returns the bMessage type String
-     *
-     * @param
-     * @return String This method returns a message type String
-     */
-    public static String fetchType(String bmsg) {
-        int pos = bmsg.indexOf("TYPE:");
-        if (pos > 0) {
-            int beginTypePos = pos + (("TYPE:").length());
-            int endTypePos = bmsg.indexOf(CRLF, beginTypePos);
-
-            return bmsg.substring(beginTypePos, endTypePos);
-
-        } else {
-            return null;
-        }
-    }
-
-    /**
-     * fetchFolder
-     *
-     * This method takes as input a String in the bMessage format. It parses the
-     * String and returns the bMessage Folder path String
-     *
-     * @param
-     * @return String This method returns a Folder path String
-     */
-    private static String fetchFolder(String bmsg) {
-        int pos = bmsg.indexOf("FOLDER:");
-        if (pos > 0) {
-            int beginVersionPos = pos + (("FOLDER:").length());
-            int endVersionPos = bmsg.indexOf(CRLF, beginVersionPos);
-
-            return bmsg.substring(beginVersionPos, endVersionPos);
-
-        } else {
-            return null;
-        }
-    }
-
     /**
      * fetchBody
      *
@@ -1458,29 +1389,6 @@ public class MapUtils {
         }
     }
 
-    /**
-     * fetchBodyEncoding
-     *
-     * This method takes as input a String consisting of the body portion of the
-     * bMessage. It parses the String and returns the bMessage Body Encoding as
-     * a String
-     *
-     * @param
-     * @return String This method returns a Body Encoding String
-     */
-    private static String fetchBodyEncoding(String body) {
-        int pos = body.indexOf("ENCODING:");
-        if (pos > 0) {
-            int beginVersionPos = pos + (("ENCODING:").length());
-            int endVersionPos = body.indexOf(CRLF, beginVersionPos);
-            return body.substring(beginVersionPos, endVersionPos);
-
-        } else {
-
-            return null;
-        }
-    }
-
     /**
      * fetchBodyLanguage
      *
@@ -1505,70 +1413,6 @@ public class MapUtils {
         }
     }
 
-    /**
-     * fetchBodyLength
-     *
-     * This method takes as input a String consisting of the body portion of the
-     * bMessage. It parses the String and returns the bMessage Body Length as an
-     * Integer
-     *
-     * @param
-     * @return String This method returns a Body Length Integer
-     */
-    private static Integer fetchBodyLength(String body) {
-        int pos = body.indexOf("LENGTH:");
-        if (pos > 0) {
-            int beginVersionPos = pos + (("LENGTH:").length());
-            int endVersionPos = body.indexOf(CRLF, beginVersionPos);
-            String bd = body.substring(beginVersionPos,
-                       endVersionPos);
-            Integer bl = Integer.valueOf(bd);
-            return bl;
-
-        } else {
-
-            return null;
-        }
-    }
-
-    /**
-     * fetchBodyMsg
-     *
-     * This method takes as input a String consisting of the body portion of the
-     * bMessage. It parses the String and returns the bMessage Body Message as a
-     * String
-     *
-     * @param
-     * @return String This method returns a Body Message String
-     */
-    private static String fetchBodyMsg(String body) {
-        int pos = body.indexOf("BEGIN:MSG");
-        if (pos > 0) {
-            int beginVersionPos = pos
-                    + (("BEGIN:MSG").length() + CRLF.length());
-            int endVersionPos = body.lastIndexOf("\r\nEND:MSG");
-            if(endVersionPos == -1){
-                Log.v(TAG, "ill-Formatted END:MSG bMessage");
-                return "";
-            }
-            return body.substring(beginVersionPos, endVersionPos);
-        } else {
-            return "";
-        }
-    }
-
-    private static String fetchBodyMsgMMS(String body) {
-        int pos = body.indexOf("BEGIN:MSG");
-        if (pos > 0) {
-            /* MMS body should contain both Begin and End message tags */
-            int beginVersionPos = pos;
-            int endVersionPos = body.indexOf("END:MSG", beginVersionPos) + ("END:MSG").length();
-            return body.substring(beginVersionPos, endVersionPos);
-        } else {
-            return "";
-        }
-    }
-
     private static String fetchBodyMsgEmail(String body) {
         if (V){
             Log.v(TAG, "bMessageEmail inside fetch body ::"+body);
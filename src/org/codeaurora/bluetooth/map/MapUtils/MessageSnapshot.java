@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.map.MapUtils;
+
+import java.util.Arrays;
+
+/**
+ * MessageSnapshot records the id, type, thread (or mailbox) and date of the
+ * messages seen by an MNS observer in parallel primitive arrays kept sorted
+ * by id. Compared to a HashMap<Long, Message> it needs no boxed key, map
+ * entry or message object per row, and two snapshots can be diffed with a
+ * single merge walk.
+ *
+ * The class is not synchronized; callers serialize access.
+ */
+public class MessageSnapshot {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] mIds;
+    private int[] mTypes;
+    private long[] mThreadIds;
+    private long[] mDates;
+    private int mSize = 0;
+    private boolean mSorted = true;
+
+    /**
+     * Receives the differences found by diff()
+     */
+    public interface DiffListener {
+        /** Message at index i of the new snapshot is not in the old one */
+        void onAdded(MessageSnapshot newSnapshot, int i);
+
+        /** Message at index i of the old snapshot is not in the new one */
+        void onRemoved(MessageSnapshot oldSnapshot, int i);
+
+        /** Message is in both snapshots */
+        void onKept(MessageSnapshot oldSnapshot, int oldIdx, MessageSnapshot newSnapshot,
+                int newIdx);
+    }
+
+    public MessageSnapshot() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MessageSnapshot(int capacity) {
+        if (capacity < DEFAULT_CAPACITY) {
+            capacity = DEFAULT_CAPACITY;
+        }
+        mIds = new long[capacity];
+        mTypes = new int[capacity];
+        mThreadIds = new long[capacity];
+        mDates = new long[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mSize = 0;
+        mSorted = true;
+    }
+
+    public long getId(int i) {
+        return mIds[i];
+    }
+
+    public int getType(int i) {
+        return mTypes[i];
+    }
+
+    public long getThreadId(int i) {
+        return mThreadIds[i];
+    }
+
+    public long getDate(int i) {
+        return mDates[i];
+    }
+
+    /**
+     * Add a message at the end, for bulk loading from a cursor. Call sort()
+     * before any lookup if the ids were not added in ascending order.
+     */
+    public void append(long id, int type, long threadId, long date) {
+        ensureCapacity(mSize + 1);
+        if (mSize > 0 && id <= mIds[mSize - 1]) {
+            mSorted = false;
+        }
+        set(mSize++, id, type, threadId, date);
+    }
+
+    /**
+     * Sort the messages by id after bulk loading
+     */
+    public void sort() {
+        if (!mSorted) {
+            quickSort(0, mSize - 1);
+            mSorted = true;
+        }
+    }
+
+    /**
+     * @return the index of the message, or a negative value if it is not present
+     */
+    public int indexOf(long id) {
+        sort();
+        return Arrays.binarySearch(mIds, 0, mSize, id);
+    }
+
+    public boolean contains(long id) {
+        return indexOf(id) >= 0;
+    }
+
+    /**
+     * Add or replace a message, keeping the ids sorted
+     */
+    public void put(long id, int type, long threadId, long date) {
+        int idx = indexOf(id);
+        if (idx >= 0) {
+            set(idx, id, type, threadId, date);
+            return;
+        }
+        idx = -(idx + 1);
+        ensureCapacity(mSize + 1);
+        int moved = mSize - idx;
+        if (moved > 0) {
+            System.arraycopy(mIds, idx, mIds, idx + 1, moved);
+            System.arraycopy(mTypes, idx, mTypes, idx + 1, moved);
+            System.arraycopy(mThreadIds, idx, mThreadIds, idx + 1, moved);
+            System.arraycopy(mDates, idx, mDates, idx + 1, moved);
+        }
+        set(idx, id, type, threadId, date);
+        mSize++;
+    }
+
+    /**
+     * Add or replace the message at index i of another snapshot
+     */
+    public void put(MessageSnapshot from, int i) {
+        put(from.mIds[i], from.mTypes[i], from.mThreadIds[i], from.mDates[i]);
+    }
+
+    public void putAll(MessageSnapshot from) {
+        for (int i = 0; i < from.mSize; i++) {
+            put(from, i);
+        }
+    }
+
+    public boolean remove(long id) {
+        int idx = indexOf(id);
+        if (idx < 0) {
+            return false;
+        }
+        int moved = mSize - idx - 1;
+        if (moved > 0) {
+            System.arraycopy(mIds, idx + 1, mIds, idx, moved);
+            System.arraycopy(mTypes, idx + 1, mTypes, idx, moved);
+            System.arraycopy(mThreadIds, idx + 1, mThreadIds, idx, moved);
+            System.arraycopy(mDates, idx + 1, mDates, idx, moved);
+        }
+        mSize--;
+        return true;
+    }
+
+    /**
+     * Walk both snapshots in id order and report every message as added,
+     * removed or kept
+     */
+    public static void diff(MessageSnapshot oldSnapshot, MessageSnapshot newSnapshot,
+            DiffListener listener) {
+        oldSnapshot.sort();
+        newSnapshot.sort();
+        int i = 0;
+        int j = 0;
+        while (i < oldSnapshot.mSize || j < newSnapshot.mSize) {
+            if (j == newSnapshot.mSize
+                    || (i < oldSnapshot.mSize && oldSnapshot.mIds[i] < newSnapshot.mIds[j])) {
+                listener.onRemoved(oldSnapshot, i++);
+            } else if (i == oldSnapshot.mSize || newSnapshot.mIds[j] < oldSnapshot.mIds[i]) {
+                listener.onAdded(newSnapshot, j++);
+            } else {
+                listener.onKept(oldSnapshot, i++, newSnapshot, j++);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes held by the backing arrays
+     */
+    public long getFootprint() {
+        return (long) mIds.length * (8 + 4 + 8 + 8);
+    }
+
+    /**
+     * @return a one line summary of the snapshot for debug logs
+     */
+    public String dump() {
+        return "[size:" + mSize + ", capacity:" + mIds.length + ", bytes:" + getFootprint()
+                + "]";
+    }
+
+    private void set(int i, long id, int type, long threadId, long date) {
+        mIds[i] = id;
+        mTypes[i] = type;
+        mThreadIds[i] = threadId;
+        mDates[i] = date;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mIds.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mIds.length + (mIds.length >> 1));
+        mIds = Arrays.copyOf(mIds, newCapacity);
+        mTypes = Arrays.copyOf(mTypes, newCapacity);
+        mThreadIds = Arrays.copyOf(mThreadIds, newCapacity);
+        mDates = Arrays.copyOf(mDates, newCapacity);
+    }
+
+    private void swap(int a, int b) {
+        long id = mIds[a];
+        int type = mTypes[a];
+        long threadId = mThreadIds[a];
+        long date = mDates[a];
+        set(a, mIds[b], mTypes[b], mThreadIds[b], mDates[b]);
+        set(b, id, type, threadId, date);
+    }
+
+    private void quickSort(int lo, int hi) {
+        while (lo < hi) {
+            long pivot = mIds[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (mIds[i] < pivot) {
+                    i++;
+                }
+                while (mIds[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            // Recurse into the smaller half to bound the stack depth
+            if (j - lo < hi - i) {
+                quickSort(lo, j);
+                lo = i;
+            } else {
+                quickSort(i, hi);
+                hi = j;
+            }
+        }
+    }
+}
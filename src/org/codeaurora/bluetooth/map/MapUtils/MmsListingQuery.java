@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.map.MapUtils;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import org.codeaurora.bluetooth.map.BluetoothMasService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * MmsListingQuery fetches everything needed to build an MMS message listing
+ * for a folder with a small number of projection limited provider queries.
+ * All pdu rows are read with a single query, the text parts of the whole
+ * folder are read in chunks of message ids and joined in memory. The MMS
+ * provider only exposes addresses per message, so at most one address
+ * query is made per message instead of one per listing attribute.
+ */
+public class MmsListingQuery {
+    public static final String TAG = "MmsListingQuery";
+    public static final boolean V = BluetoothMasService.VERBOSE;
+
+    private static final Uri MMS_URI = Uri.parse("content://mms");
+    private static final Uri MMS_PART_URI = Uri.parse("content://mms/part");
+
+    private static final String[] PDU_PROJECTION = new String[] {
+        "_id", "msg_box", "thread_id", "sub", "date", "m_size", "read", "pri", "locked"
+    };
+    private static final String[] PART_PROJECTION = new String[] { "mid", "text" };
+    private static final String[] ADDR_PROJECTION = new String[] { "address", "type" };
+
+    private static final int PDU_ID_INDEX = 0;
+    private static final int PDU_MSG_BOX_INDEX = 1;
+    private static final int PDU_THREAD_ID_INDEX = 2;
+    private static final int PDU_SUBJECT_INDEX = 3;
+    private static final int PDU_DATE_INDEX = 4;
+    private static final int PDU_SIZE_INDEX = 5;
+    private static final int PDU_READ_INDEX = 6;
+    private static final int PDU_PRIORITY_INDEX = 7;
+    private static final int PDU_LOCKED_INDEX = 8;
+
+    private static final int PART_MID_INDEX = 0;
+    private static final int PART_TEXT_INDEX = 1;
+
+    private static final int ADDR_ADDRESS_INDEX = 0;
+    private static final int ADDR_TYPE_INDEX = 1;
+
+    // Keep the IN (...) lists well below the SQLite statement limits
+    private static final int MAX_IDS_PER_QUERY = 256;
+
+    private static final int MSG_BOX_INBOX = 1;
+    private static final int ADDR_TYPE_FROM = 137;
+    private static final String ADDRESS_TOKEN = "insert-address-token";
+
+    public static class MmsRow {
+        public long id;
+        public int msgBox;
+        public long threadId;
+        public String subject;
+        public long date;
+        public int attachmentSize;
+        public boolean read;
+        public int priority;
+        public boolean locked;
+        public String text = null;
+        public String address = "";
+
+        public boolean isOutgoing() {
+            return msgBox != MSG_BOX_INBOX;
+        }
+    }
+
+    private final Context mContext;
+    private int mQueryCount = 0;
+    private long mElapsedTime = 0;
+
+    public MmsListingQuery(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Fetch all MMS messages matching the where clause ordered by date
+     * @param whereClause selection on the pdu table
+     * @param needText true if the text/plain part has to be fetched
+     * @param needAddress true if the message addresses have to be fetched
+     * @return the list of messages, never null
+     */
+    public List<MmsRow> query(String whereClause, boolean needText, boolean needAddress) {
+        return query(whereClause, "date desc", needText, needAddress);
+    }
+
+    /**
+     * Fetch the MMS messages matching the where clause in the given order.
+     * The sort order may carry a LIMIT/OFFSET clause to fetch only a window.
+     */
+    public List<MmsRow> query(String whereClause, String sortOrder, boolean needText,
+            boolean needAddress) {
+        final long start = System.currentTimeMillis();
+        List<MmsRow> rows = queryPdus(whereClause, sortOrder);
+        if (needText && rows.size() > 0) {
+            queryTextParts(rows);
+        }
+        if (needAddress) {
+            for (MmsRow row : rows) {
+                row.address = queryAddress(row.id, row.isOutgoing());
+            }
+        }
+        mElapsedTime += System.currentTimeMillis() - start;
+        if (V) Log.v(TAG, "query: " + rows.size() + " msgs, " + mQueryCount
+                + " provider queries, " + mElapsedTime + " ms");
+        return rows;
+    }
+
+    /**
+     * @return the number of provider queries issued so far
+     */
+    public int getQueryCount() {
+        return mQueryCount;
+    }
+
+    /**
+     * @return the time spent in provider queries so far, in milliseconds
+     */
+    public long getElapsedTime() {
+        return mElapsedTime;
+    }
+
+    private List<MmsRow> queryPdus(String whereClause, String sortOrder) {
+        List<MmsRow> rows = new ArrayList<MmsRow>();
+        ContentResolver cr = mContext.getContentResolver();
+        mQueryCount++;
+        Cursor cursor = cr.query(MMS_URI, PDU_PROJECTION, whereClause, null, sortOrder);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                do {
+                    MmsRow row = new MmsRow();
+                    row.id = cursor.getLong(PDU_ID_INDEX);
+                    row.msgBox = cursor.getInt(PDU_MSG_BOX_INDEX);
+                    row.threadId = cursor.getLong(PDU_THREAD_ID_INDEX);
+                    row.subject = cursor.getString(PDU_SUBJECT_INDEX);
+                    row.date = 1000 * cursor.getLong(PDU_DATE_INDEX);
+                    row.attachmentSize = cursor.getInt(PDU_SIZE_INDEX);
+                    row.read = cursor.getInt(PDU_READ_INDEX) != 0;
+                    row.priority = cursor.getInt(PDU_PRIORITY_INDEX);
+                    row.locked = cursor.getInt(PDU_LOCKED_INDEX) != 0;
+                    rows.add(row);
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private void queryTextParts(List<MmsRow> rows) {
+        HashMap<Long, MmsRow> rowById = new HashMap<Long, MmsRow>(rows.size() * 2);
+        for (MmsRow row : rows) {
+            rowById.put(row.id, row);
+        }
+        ContentResolver cr = mContext.getContentResolver();
+        StringBuilder ids = new StringBuilder();
+        int start = 0;
+        while (start < rows.size()) {
+            int end = Math.min(start + MAX_IDS_PER_QUERY, rows.size());
+            ids.setLength(0);
+            for (int i = start; i < end; i++) {
+                if (ids.length() != 0) {
+                    ids.append(',');
+                }
+                ids.append(rows.get(i).id);
+            }
+            String whereClause = "ct=\"text/plain\" AND mid IN (" + ids + ")";
+            mQueryCount++;
+            Cursor cursor = cr.query(MMS_PART_URI, PART_PROJECTION, whereClause, null, null);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    do {
+                        MmsRow row = rowById.get(cursor.getLong(PART_MID_INDEX));
+                        // Only the first text part is reported, as in getMmsMsgTxt
+                        if (row != null && row.text == null) {
+                            row.text = cursor.getString(PART_TEXT_INDEX);
+                        }
+                    } while (cursor.moveToNext());
+                }
+                cursor.close();
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Obtain MMS message address
+     * When Multiple addresses are present return the addresses separated by semicolon
+     */
+    private String queryAddress(long msgId, boolean outgoing) {
+        String text = "";
+        Uri uri = Uri.parse("content://mms/" + msgId + "/addr");
+        ContentResolver cr = mContext.getContentResolver();
+        mQueryCount++;
+        Cursor cursor = cr.query(uri, ADDR_PROJECTION, "address != \"" + ADDRESS_TOKEN + "\"",
+                null, null);
+        if (cursor != null) {
+            List<String> addresses = new ArrayList<String>();
+            if (cursor.moveToFirst()) {
+                do {
+                    // For incoming MMS only the "from" address is required
+                    if (outgoing || cursor.getInt(ADDR_TYPE_INDEX) == ADDR_TYPE_FROM) {
+                        addresses.add(cursor.getString(ADDR_ADDRESS_INDEX));
+                    }
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+            if (addresses.size() == 1) {
+                text = addresses.get(0);
+            } else if (addresses.size() > 1) {
+                StringBuilder sb = new StringBuilder();
+                for (String address : addresses) {
+                    sb.append(address).append(';');
+                }
+                text = sb.toString();
+            }
+        }
+        return text;
+    }
+}
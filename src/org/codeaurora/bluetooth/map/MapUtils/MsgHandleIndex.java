@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.map.MapUtils;
+
+import java.util.Arrays;
+
+/**
+ * MsgHandleIndex maps MAP message handles to the provider type (sms type or
+ * mms msg_box) and thread id last seen for the message, so that requests on
+ * a listed handle can be resolved without looking the message up again.
+ * Entries are kept in an open addressing table of primitive longs. The
+ * footprint is bounded by MAX_ENTRIES; when it is reached the table is
+ * emptied and filled again by the next listings and lookups.
+ *
+ * The class is not synchronized; callers serialize access.
+ */
+public class MsgHandleIndex {
+    public static final int MAX_ENTRIES = 4096;
+    // Packed values have the top byte clear and can never be MISSING
+    public static final long MISSING = Long.MIN_VALUE;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long THREAD_MASK = 0xFFFFFFFFFFFFL;
+
+    private long[] mKeys;
+    private long[] mValues;
+    private int mSize = 0;
+
+    public MsgHandleIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+    }
+
+    public void put(long handle, int type, long threadId) {
+        int i = indexOf(handle);
+        if (mKeys[i] == EMPTY) {
+            if (mSize >= MAX_ENTRIES) {
+                clear();
+            } else if ((mSize + 1) * 4 > mKeys.length * 3) {
+                rehash(mKeys.length * 2);
+            }
+            i = indexOf(handle);
+            mKeys[i] = handle;
+            mSize++;
+        }
+        mValues[i] = ((long) (type & 0xFF) << 48) | (threadId & THREAD_MASK);
+    }
+
+    /**
+     * @return the packed type and thread id of the handle, MISSING if unknown
+     */
+    public long get(long handle) {
+        final int i = indexOf(handle);
+        return mKeys[i] == EMPTY ? MISSING : mValues[i];
+    }
+
+    public boolean contains(long handle) {
+        return mKeys[indexOf(handle)] != EMPTY;
+    }
+
+    public void remove(long handle) {
+        int i = indexOf(handle);
+        if (mKeys[i] == EMPTY) {
+            return;
+        }
+        mKeys[i] = EMPTY;
+        mSize--;
+        // Move back the entries that probed past the freed slot
+        final int mask = mKeys.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (mKeys[j] == EMPTY) {
+                return;
+            }
+            final int home = hash(mKeys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                mKeys[i] = mKeys[j];
+                mValues[i] = mValues[j];
+                mKeys[j] = EMPTY;
+                i = j;
+            }
+        }
+    }
+
+    public static int typeOf(long packed) {
+        return (int) (packed >>> 48) & 0xFF;
+    }
+
+    public static long threadIdOf(long packed) {
+        // Sign extend the 48 bit thread id, the deleted folder uses -1
+        return (packed << 16) >> 16;
+    }
+
+    private int indexOf(long handle) {
+        final int mask = mKeys.length - 1;
+        int i = hash(handle) & mask;
+        while (mKeys[i] != EMPTY && mKeys[i] != handle) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new long[capacity];
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    private void rehash(int capacity) {
+        final long[] keys = mKeys;
+        final long[] values = mValues;
+        allocate(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                final int j = indexOf(keys[i]);
+                mKeys[j] = keys[i];
+                mValues[j] = values[i];
+            }
+        }
+    }
+}
@@ -41,6 +41,17 @@ public class MsgListingConsts {
             this.dateTime = dateTime;
         }
 
+        // Epoch milliseconds of dateTime, used for ordering listings
+        public long timestamp = 0;
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public void setTimestamp(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
     }
     public MsgInfo msgInfo = new MsgInfo();
 
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.map.MapUtils;
+
+import android.util.Log;
+
+import org.codeaurora.bluetooth.map.BluetoothMasAppParams;
+import org.codeaurora.bluetooth.map.BluetoothMasService;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * MsgListingFilter holds the FilterOriginator and FilterRecipient application
+ * parameters of one GetMessagesListing request in compiled form. The patterns
+ * are built once per listing and the owner name and number are matched once
+ * up front, instead of recompiling the wildcard expressions for every row.
+ *
+ * A filter instance reuses its Matchers and must only be used by the thread
+ * building the listing.
+ */
+public class MsgListingFilter {
+    public static final String TAG = "MsgListingFilter";
+    public static final boolean V = BluetoothMasService.VERBOSE;
+
+    private static final String WILDCARD = "*";
+    private static final String WILDCARD_REGEX = ".*[0-9A-Za-z].*";
+
+    private final String mOriginator;
+    private final String mRecipient;
+
+    // Owner is the originator of outgoing and the recipient of incoming messages
+    private final boolean mOwnerIsOriginator;
+    private final boolean mOwnerIsRecipient;
+
+    // Matched against the contact details of the remote party
+    private final Matcher mOriginatorContact;
+    private final Matcher mRecipientContact;
+
+    // Matched against the whole contact name or address (MMS listing)
+    private final Matcher mOriginatorExact;
+    private final Matcher mRecipientExact;
+
+    public MsgListingFilter(BluetoothMasAppParams appParams, String ownerName,
+            String ownerNumber) {
+        if (ownerName == null) {
+            ownerName = "";
+        }
+        if (ownerNumber == null) {
+            ownerNumber = "";
+        }
+        mOriginator = trimToNull(appParams.FilterOriginator);
+        mRecipient = trimToNull(appParams.FilterRecipient);
+
+        if (mOriginator != null) {
+            Matcher owner = compileContains(appParams.FilterOriginator).matcher(ownerName);
+            mOwnerIsOriginator = owner.matches() || owner.reset(ownerNumber).matches();
+            mOriginatorContact = compileContains(mOriginator).matcher("");
+            mOriginatorExact = compileExact(mOriginator).matcher("");
+        } else {
+            mOwnerIsOriginator = true;
+            mOriginatorContact = null;
+            mOriginatorExact = null;
+        }
+
+        if (mRecipient != null) {
+            Matcher owner = compileContains(appParams.FilterRecipient).matcher(ownerName);
+            mOwnerIsRecipient = owner.matches() || owner.reset(ownerNumber).matches();
+            mRecipientContact = compileContains(mRecipient).matcher("");
+            mRecipientExact = compileExact(mRecipient).matcher("");
+        } else {
+            mOwnerIsRecipient = true;
+            mRecipientContact = null;
+            mRecipientExact = null;
+        }
+        if (V) {
+            Log.v(TAG, "originator = " + mOriginator + " recipient = " + mRecipient
+                    + " ownerIsOriginator = " + mOwnerIsOriginator
+                    + " ownerIsRecipient = " + mOwnerIsRecipient);
+        }
+    }
+
+    /**
+     * @return true if neither FilterOriginator nor FilterRecipient is set
+     */
+    public boolean isEmpty() {
+        return mOriginator == null && mRecipient == null;
+    }
+
+    /**
+     * Check the owner side of a message against the filters
+     * @param outgoing true if the owner is the originator of the message
+     * @return false if the message is to be filtered out
+     */
+    public boolean allowOwner(boolean outgoing) {
+        return outgoing ? mOwnerIsOriginator : mOwnerIsRecipient;
+    }
+
+    /**
+     * @param outgoing true if the owner is the originator of the message
+     * @return true if the remote party of the message has to be matched
+     */
+    public boolean hasRemoteFilter(boolean outgoing) {
+        return (outgoing ? mRecipient : mOriginator) != null;
+    }
+
+    /**
+     * @return the filter string applied to the remote party, for logging
+     */
+    public String getRemoteFilter(boolean outgoing) {
+        return outgoing ? mRecipient : mOriginator;
+    }
+
+    /**
+     * Check if any of the contact details of the remote party contain the
+     * remote filter. Null values never match.
+     */
+    public boolean matchesRemoteContact(boolean outgoing, String tel, String name,
+            String email) {
+        Matcher m = outgoing ? mRecipientContact : mOriginatorContact;
+        if (m == null) {
+            return true;
+        }
+        return matches(m, tel) || matches(m, name) || matches(m, email);
+    }
+
+    /**
+     * Check if the name or the address of the remote party match the remote
+     * filter as a whole. Null values never match.
+     */
+    public boolean matchesRemoteExact(boolean outgoing, String name, String address) {
+        Matcher m = outgoing ? mRecipientExact : mOriginatorExact;
+        if (m == null) {
+            return true;
+        }
+        return matches(m, name) || matches(m, address);
+    }
+
+    /**
+     * Compile a filter string into a pattern matching any value containing it.
+     * The wildcard '*' stands for at least one alphanumeric character.
+     */
+    public static Pattern compileContains(String filter) {
+        try {
+            return Pattern.compile(".*" + filter.replace(WILDCARD, WILDCARD_REGEX) + ".*");
+        } catch (PatternSyntaxException e) {
+            Log.w(TAG, "Filter is not a valid expression, matching it literally: " + filter);
+            return Pattern.compile(".*" + quoteWildcard(filter) + ".*");
+        }
+    }
+
+    private static Pattern compileExact(String filter) {
+        try {
+            return Pattern.compile(filter);
+        } catch (PatternSyntaxException e) {
+            Log.w(TAG, "Filter is not a valid expression, matching it literally: " + filter);
+            return Pattern.compile(Pattern.quote(filter));
+        }
+    }
+
+    private static String quoteWildcard(String filter) {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        int idx;
+        while ((idx = filter.indexOf(WILDCARD, start)) != -1) {
+            if (idx > start) {
+                sb.append(Pattern.quote(filter.substring(start, idx)));
+            }
+            sb.append(WILDCARD_REGEX);
+            start = idx + 1;
+        }
+        if (start < filter.length()) {
+            sb.append(Pattern.quote(filter.substring(start)));
+        }
+        return sb.toString();
+    }
+
+    private static boolean matches(Matcher m, String value) {
+        return value != null && m.reset(value).matches();
+    }
+
+    private static String trimToNull(String filter) {
+        if (filter == null || filter.length() == 0) {
+            return null;
+        }
+        return filter.trim();
+    }
+}
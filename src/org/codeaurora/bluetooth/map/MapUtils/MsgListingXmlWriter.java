@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.map.MapUtils;
+
+import com.android.internal.util.FastXmlSerializer;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * MsgListingXmlWriter encodes a MAP-msg-listing object incrementally into an
+ * OutputStream. Unlike MapUtils.messageListingXML no intermediate String of
+ * the whole listing is built; msg elements are serialized as they are added
+ * and reach the stream whenever the serializer buffer fills up.
+ */
+public class MsgListingXmlWriter {
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\"?>\n";
+    private static final String FEATURE_INDENT =
+            "http://xmlpull.org/v1/doc/features.html#indent-output";
+
+    private final OutputStream mOutputStream;
+    private final XmlSerializer mSerializer = new FastXmlSerializer();
+    private int mCount = 0;
+
+    public MsgListingXmlWriter(OutputStream outputStream) {
+        mOutputStream = outputStream;
+    }
+
+    /**
+     * Write the XML declaration and the opening MAP-msg-listing tag
+     */
+    public void start() throws IOException {
+        mOutputStream.write(XML_DECLARATION.getBytes("UTF-8"));
+        mSerializer.setOutput(mOutputStream, "UTF-8");
+        mSerializer.setFeature(FEATURE_INDENT, true);
+        mSerializer.startTag(null, "MAP-msg-listing");
+        mSerializer.attribute(null, "version", "1.0");
+    }
+
+    /**
+     * Write one msg element
+     */
+    public void write(MsgListingConsts msg) throws IOException {
+        MapUtils.msgListingEntryXML(mSerializer, msg);
+        mCount++;
+    }
+
+    /**
+     * Close the MAP-msg-listing tag and flush the serializer into the stream
+     */
+    public void end() throws IOException {
+        mSerializer.endTag(null, "MAP-msg-listing");
+        mSerializer.endDocument();
+    }
+
+    /**
+     * @return the number of msg elements written
+     */
+    public int getCount() {
+        return mCount;
+    }
+}
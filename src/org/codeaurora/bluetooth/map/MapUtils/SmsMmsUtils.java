@@ -84,6 +84,8 @@ public class SmsMmsUtils {
         public String name = "";
         public String tel = "";
         public String email = "";
+        // Contact the number resolved to, -1 if there is none
+        public long contactId = -1;
     }
 
     public static final ArrayList<String> FORLDER_LIST_SMS_MMS;
@@ -28,14 +28,46 @@
 
 package org.codeaurora.bluetooth.map.MapUtils;
 
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import org.codeaurora.bluetooth.map.MapUtils.MsgListingConsts;
 
 public class SortMsgListByDate implements Comparator<MsgListingConsts> {
 
     public int compare(MsgListingConsts object1, MsgListingConsts object2) {
-
-        return object2.msgInfo.getDateTime().compareTo(object1.msgInfo.getDateTime());
+        final long t1 = object1.msgInfo.getTimestamp();
+        final long t2 = object2.msgInfo.getTimestamp();
+        return (t2 < t1) ? -1 : ((t2 == t1) ? 0 : 1);
     }
 
+    /**
+     * Merge two runs of a listing that are each already sorted newest first.
+     * The first run is msgList[0, split) and the second msgList[split, size).
+     * Only the window [start, start + count) of the merged order is built, so
+     * the merge stops as soon as the window is complete. On equal dates the
+     * entry of the first run goes first, as with a stable sort.
+     */
+    public static List<MsgListingConsts> mergeByDate(List<MsgListingConsts> msgList,
+            int split, int start, int count) {
+        final int size = msgList.size();
+        final int end = (int) Math.min((long) start + count, size);
+        List<MsgListingConsts> result = new ArrayList<MsgListingConsts>(
+                Math.max(end - start, 0));
+        int a = 0;
+        int b = split;
+        for (int pos = 0; pos < end; pos++) {
+            MsgListingConsts next;
+            if (b >= size || (a < split && msgList.get(a).msgInfo.getTimestamp()
+                    >= msgList.get(b).msgInfo.getTimestamp())) {
+                next = msgList.get(a++);
+            } else {
+                next = msgList.get(b++);
+            }
+            if (pos >= start) {
+                result.add(next);
+            }
+        }
+        return result;
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * MceOperationTracker remembers the message handles of operations that were
+ * initiated by the MCE, so that the MNS event caused by the operation is not
+ * reported back to it. Operations are indexed by handle; the wildcard handle
+ * "+" stands for the next operation on any handle and is only used when no
+ * entry for the handle itself is pending.
+ *
+ * Entries expire after EXPIRY_TIME ms. They are kept in insertion order in a
+ * single expiry queue, so expiring them only ever looks at its head.
+ */
+public class MceOperationTracker {
+    private static final String TAG = "MceOperationTracker";
+    private static final boolean V = BluetoothMasService.VERBOSE;
+
+    public static final String ANY_HANDLE = "+";
+    private static final long EXPIRY_TIME = 10000; // 10 secs
+
+    private static class Operation {
+        final String key;
+        final long time;
+        boolean consumed;
+
+        Operation(String key, long time) {
+            this.key = key;
+            this.time = time;
+        }
+    }
+
+    // Pending operations per handle, oldest first
+    private final HashMap<String, LinkedList<Operation>> mOperations =
+            new HashMap<String, LinkedList<Operation>>();
+    // All operations in insertion order, including consumed ones
+    private final LinkedList<Operation> mExpiryQueue = new LinkedList<Operation>();
+
+    public synchronized void add(String msgHandle) {
+        final long now = SystemClock.elapsedRealtime();
+        expire(now);
+        Operation op = new Operation(getKey(msgHandle), now);
+        LinkedList<Operation> ops = mOperations.get(op.key);
+        if (ops == null) {
+            ops = new LinkedList<Operation>();
+            mOperations.put(op.key, ops);
+        }
+        ops.addLast(op);
+        mExpiryQueue.addLast(op);
+    }
+
+    /**
+     * Removes the oldest pending operation on the given handle, or else the
+     * oldest pending wildcard operation.
+     *
+     * @return true if an MCE initiated operation was pending for the handle
+     */
+    public synchronized boolean consume(String msgHandle) {
+        expire(SystemClock.elapsedRealtime());
+        if (mOperations.isEmpty()) {
+            return false;
+        }
+        boolean found = msgHandle != null && consumeKey(getKey(msgHandle));
+        if (!found) {
+            found = consumeKey(ANY_HANDLE);
+        }
+        if (V) Log.v(TAG, "consume " + msgHandle + ": " + found);
+        return found;
+    }
+
+    public synchronized void clear() {
+        mOperations.clear();
+        mExpiryQueue.clear();
+    }
+
+    private boolean consumeKey(String key) {
+        LinkedList<Operation> ops = mOperations.get(key);
+        if (ops == null) {
+            return false;
+        }
+        ops.removeFirst().consumed = true;
+        if (ops.isEmpty()) {
+            mOperations.remove(key);
+        }
+        return true;
+    }
+
+    private void expire(long now) {
+        while (!mExpiryQueue.isEmpty() && now - mExpiryQueue.getFirst().time > EXPIRY_TIME) {
+            Operation op = mExpiryQueue.removeFirst();
+            if (!op.consumed) {
+                // Operations of one handle expire in the order they were added
+                if (V) Log.v(TAG, "expired " + op.key);
+                consumeKey(op.key);
+            }
+        }
+    }
+
+    private static String getKey(String msgHandle) {
+        return msgHandle.toLowerCase();
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.map;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import static org.codeaurora.bluetooth.map.BluetoothMns.MEMORY_AVAILABLE;
+import static org.codeaurora.bluetooth.map.BluetoothMns.MEMORY_FULL;
+import static org.codeaurora.bluetooth.map.BluetoothMns.MESSAGE_DELETED;
+import static org.codeaurora.bluetooth.map.BluetoothMns.NEW_MESSAGE;
+
+/**
+ * MnsEventQueue holds the MNS event reports waiting to be pushed and sends
+ * them one after the other from a single sender thread. The queue is bounded
+ * and coalesces redundant events before they are sent:
+ *  - an event identical to a pending one is dropped
+ *  - a MessageDeleted for a handle with a pending NewMessage cancels all the
+ *    pending events for that handle and is not sent either
+ *  - a memory event replaces a pending memory event of the same instance
+ *
+ * The sender thread is started on demand and exits after being idle for
+ * IDLE_TIMEOUT ms, or as soon as it is idle after clear(). When an event
+ * cannot be delivered it is put back at the head of the queue and sending is
+ * paused until resume() is called, so the pending events are kept while the
+ * MNS connection is re-established.
+ */
+public class MnsEventQueue {
+    private static final String TAG = "MnsEventQueue";
+    private static final boolean D = BluetoothMasService.DEBUG;
+    private static final boolean V = BluetoothMasService.VERBOSE;
+
+    public static final int DEFAULT_CAPACITY = 256;
+    private static final long IDLE_TIMEOUT = 60000; // 60 secs
+
+    /**
+     * Pushes one event report to the MNS server
+     */
+    public interface EventSender {
+        /**
+         * @return false if the event was not delivered and should be sent
+         *         again once the queue is resumed
+         */
+        boolean sendEvent(Event event);
+    }
+
+    public static class Event {
+        public final int masId;
+        public final String type;
+        public final String handle;
+        public final String folder;
+        public final String oldFolder;
+        public final String msgType;
+        final long enqueueTime;
+
+        public Event(int masId, String type, String handle, String folder,
+                String oldFolder, String msgType) {
+            this.masId = masId;
+            this.type = type;
+            this.handle = handle;
+            this.folder = folder;
+            this.oldFolder = oldFolder;
+            this.msgType = msgType;
+            enqueueTime = SystemClock.elapsedRealtime();
+        }
+
+        boolean isMemoryEvent() {
+            return MEMORY_FULL.equals(type) || MEMORY_AVAILABLE.equals(type);
+        }
+
+        boolean isSameHandle(Event e) {
+            return masId == e.masId && handle != null && handle.equals(e.handle);
+        }
+
+        boolean isSame(Event e) {
+            return masId == e.masId && equals(type, e.type) && equals(handle, e.handle)
+                    && equals(folder, e.folder) && equals(oldFolder, e.oldFolder)
+                    && equals(msgType, e.msgType);
+        }
+
+        private static boolean equals(String a, String b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+
+        @Override
+        public String toString() {
+            return "[mas:" + masId + ", type:" + type + ", handle:" + handle + ", folder:"
+                    + folder + "]";
+        }
+    }
+
+    private final EventSender mSender;
+    private final int mCapacity;
+    private final LinkedList<Event> mQueue = new LinkedList<Event>();
+    private Thread mThread = null;
+    private boolean mPaused = false;
+    // Set by clear() to stop the sender thread once it has nothing to send
+    private boolean mExitRequested = false;
+
+    // Statistics, guarded by this
+    private int mSent = 0;
+    private int mCoalesced = 0;
+    private int mDropped = 0;
+    private int mMaxDepth = 0;
+    private long mTotalLatency = 0;
+
+    public MnsEventQueue(EventSender sender) {
+        this(sender, DEFAULT_CAPACITY);
+    }
+
+    public MnsEventQueue(EventSender sender, int capacity) {
+        mSender = sender;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Queue an event for sending, coalescing it with the pending ones
+     */
+    public synchronized void add(Event event) {
+        if (coalesce(event)) {
+            mCoalesced++;
+            if (V) Log.v(TAG, "Coalesced " + event + ", depth " + mQueue.size());
+            return;
+        }
+        if (mQueue.size() >= mCapacity) {
+            Event dropped = mQueue.removeFirst();
+            mDropped++;
+            Log.w(TAG, "Queue full, dropping " + dropped);
+        }
+        mQueue.addLast(event);
+        if (mQueue.size() > mMaxDepth) {
+            mMaxDepth = mQueue.size();
+        }
+        wakeSender();
+    }
+
+    /**
+     * Drop all pending events and stop the sender thread. A thread that is
+     * sending an event exits once that send completes.
+     */
+    public synchronized void clear() {
+        if (D && !mQueue.isEmpty()) Log.d(TAG, "Clearing " + mQueue.size() + " pending events");
+        mDropped += mQueue.size();
+        mQueue.clear();
+        mPaused = false;
+        mExitRequested = mThread != null;
+        notifyAll();
+    }
+
+    /**
+     * Hold the pending events until resume() is called
+     */
+    public synchronized void pause() {
+        if (V) Log.v(TAG, "Paused, depth " + mQueue.size());
+        mPaused = true;
+    }
+
+    /**
+     * Restart sending the pending events
+     */
+    public synchronized void resume() {
+        if (!mPaused) {
+            return;
+        }
+        if (D) Log.d(TAG, "Resumed, depth " + mQueue.size());
+        mPaused = false;
+        if (!mQueue.isEmpty()) {
+            wakeSender();
+        }
+    }
+
+    public synchronized int getDroppedCount() {
+        return mDropped;
+    }
+
+    private void wakeSender() {
+        mExitRequested = false;
+        if (mThread == null) {
+            mThread = new Thread(mSendLoop, "MNS Event Sender");
+            mThread.start();
+        } else {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Put back an event that could not be delivered and pause sending
+     */
+    private synchronized void retry(Event event) {
+        mPaused = true;
+        if (mQueue.size() >= mCapacity) {
+            mDropped++;
+            Log.w(TAG, "Queue full, dropping " + event);
+            return;
+        }
+        mQueue.addFirst(event);
+    }
+
+    public synchronized int getDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return true if the event does not need to be queued
+     */
+    private boolean coalesce(Event event) {
+        if (event.isMemoryEvent()) {
+            Iterator<Event> it = mQueue.iterator();
+            while (it.hasNext()) {
+                Event e = it.next();
+                if (e.masId == event.masId && e.isMemoryEvent()) {
+                    it.remove();
+                }
+            }
+            return false;
+        }
+        boolean newPending = false;
+        for (Event e : mQueue) {
+            if (e.isSame(event)) {
+                return true;
+            }
+            if (NEW_MESSAGE.equals(e.type) && e.isSameHandle(event)) {
+                newPending = true;
+            }
+        }
+        if (newPending && MESSAGE_DELETED.equals(event.type)) {
+            // The client has not been told about the message yet
+            Iterator<Event> it = mQueue.iterator();
+            while (it.hasNext()) {
+                if (it.next().isSameHandle(event)) {
+                    it.remove();
+                    mCoalesced++;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized Event take() {
+        long idleSince = SystemClock.elapsedRealtime();
+        while (mQueue.isEmpty() || mPaused) {
+            long idle = SystemClock.elapsedRealtime() - idleSince;
+            if (mExitRequested || idle >= IDLE_TIMEOUT) {
+                mExitRequested = false;
+                mThread = null;
+                return null;
+            }
+            try {
+                wait(IDLE_TIMEOUT - idle);
+            } catch (InterruptedException e) {
+                mThread = null;
+                return null;
+            }
+        }
+        return mQueue.removeFirst();
+    }
+
+    private final Runnable mSendLoop = new Runnable() {
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Event event;
+            while ((event = take()) != null) {
+                final long start = SystemClock.elapsedRealtime();
+                boolean sent = true;
+                try {
+                    sent = mSender.sendEvent(event);
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to send " + event, e);
+                }
+                if (!sent) {
+                    if (V) Log.v(TAG, "Not delivered, holding " + event);
+                    retry(event);
+                    continue;
+                }
+                final long end = SystemClock.elapsedRealtime();
+                synchronized (MnsEventQueue.this) {
+                    mSent++;
+                    mTotalLatency += end - event.enqueueTime;
+                    if (D) {
+                        Log.d(TAG, "Sent " + event.type + " in " + (end - start)
+                                + " ms, latency " + (end - event.enqueueTime)
+                                + " ms, depth " + mQueue.size() + " (max " + mMaxDepth
+                                + "), sent " + mSent + ", coalesced " + mCoalesced
+                                + ", dropped " + mDropped + ", avg latency "
+                                + (mTotalLatency / mSent) + " ms");
+                    }
+                }
+            }
+            if (V) Log.v(TAG, "Sender thread idle, exiting");
+        }
+    };
+}
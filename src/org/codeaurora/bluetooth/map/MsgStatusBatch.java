@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.map;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MsgStatusBatch coalesces the read status changes of SetMessageStatus
+ * requests. A MCE marking a folder as read sends one request per message;
+ * instead of one provider update each, the changes are held until no new
+ * change arrived for BATCH_WINDOW ms (or MAX_PENDING changes are held) and
+ * are then written with one applyBatch per provider. A later change to the
+ * same message replaces the pending one.
+ *
+ * Any request that reads messages back must call flush() first.
+ */
+public class MsgStatusBatch {
+    private static final String TAG = "MsgStatusBatch";
+    private static final boolean D = BluetoothMasService.DEBUG;
+    private static final boolean V = BluetoothMasService.VERBOSE;
+
+    private static final long BATCH_WINDOW = 200; // ms
+    private static final int MAX_PENDING = 256;
+
+    private final ContentResolver mResolver;
+    private final LinkedHashMap<Uri, Integer> mPending = new LinkedHashMap<Uri, Integer>();
+    private long mLastChange = 0;
+    private Thread mThread = null;
+
+    public MsgStatusBatch(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Queue a read status change for the message at uri
+     */
+    public synchronized void setRead(Uri uri, int read) {
+        mPending.put(uri, read);
+        mLastChange = SystemClock.elapsedRealtime();
+        if (mPending.size() >= MAX_PENDING) {
+            apply();
+        } else if (mThread == null) {
+            mThread = new Thread(mFlushLoop, "MAS Status Batch");
+            mThread.start();
+        }
+    }
+
+    /**
+     * Write the pending changes now
+     */
+    public synchronized void flush() {
+        if (!mPending.isEmpty()) {
+            apply();
+        }
+    }
+
+    private void apply() {
+        final long start = SystemClock.elapsedRealtime();
+        final int count = mPending.size();
+        HashMap<String, ArrayList<ContentProviderOperation>> batches =
+                new HashMap<String, ArrayList<ContentProviderOperation>>();
+        for (Map.Entry<Uri, Integer> entry : mPending.entrySet()) {
+            final String authority = entry.getKey().getAuthority();
+            ArrayList<ContentProviderOperation> ops = batches.get(authority);
+            if (ops == null) {
+                ops = new ArrayList<ContentProviderOperation>();
+                batches.put(authority, ops);
+            }
+            ops.add(ContentProviderOperation.newUpdate(entry.getKey())
+                    .withValue("read", entry.getValue()).build());
+        }
+        mPending.clear();
+        for (Map.Entry<String, ArrayList<ContentProviderOperation>> batch : batches.entrySet()) {
+            try {
+                mResolver.applyBatch(batch.getKey(), batch.getValue());
+            } catch (RemoteException e) {
+                Log.e(TAG, "Unable to update read status in " + batch.getKey(), e);
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, "Unable to update read status in " + batch.getKey(), e);
+            }
+        }
+        if (D) {
+            Log.d(TAG, "Applied " + count + " status changes in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+    }
+
+    private final Runnable mFlushLoop = new Runnable() {
+        public void run() {
+            synchronized (MsgStatusBatch.this) {
+                while (!mPending.isEmpty()) {
+                    final long quiet = SystemClock.elapsedRealtime() - mLastChange;
+                    if (quiet >= BATCH_WINDOW) {
+                        apply();
+                        break;
+                    }
+                    try {
+                        MsgStatusBatch.this.wait(BATCH_WINDOW - quiet);
+                    } catch (InterruptedException e) {
+                        apply();
+                        break;
+                    }
+                }
+                mThread = null;
+            }
+            if (V) Log.v(TAG, "Flush thread exiting");
+        }
+    };
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2013, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *        * Redistributions of source code must retain the above copyright
+ *          notice, this list of conditions and the following disclaimer.
+ *        * Redistributions in binary form must reproduce the above copyright
+ *          notice, this list of conditions and the following disclaimer in the
+ *          documentation and/or other materials provided with the distribution.
+ *        * Neither the name of The Linux Foundation nor
+ *          the names of its contributors may be used to endorse or promote
+ *          products derived from this software without specific prior written
+ *          permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NON-INFRINGEMENT ARE DISCLAIMED.    IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.codeaurora.bluetooth.map;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * PushMsgBody holds the bMessage received with a PushMessage request. The
+ * body is kept in memory as it arrives from the PUT stream and is only
+ * spooled to a file once it grows beyond the spool threshold, so the usual
+ * small pushes never go through the file system.
+ */
+public class PushMsgBody {
+    private static final String TAG = "PushMsgBody";
+    private static final boolean D = BluetoothMasService.DEBUG;
+    private static final boolean V = BluetoothMasService.VERBOSE;
+
+    public static final int SPOOL_THRESHOLD = 256 * 1024;
+    private static final int INITIAL_SIZE = 4096;
+
+    private final File mSpoolFile;
+    private final int mThreshold;
+
+    private byte[] mBuffer;
+    private int mCount = 0;
+    private long mLength = 0;
+    private OutputStream mSpool = null;
+    private boolean mSpooled = false;
+
+    public PushMsgBody(File spoolFile) {
+        this(spoolFile, SPOOL_THRESHOLD);
+    }
+
+    public PushMsgBody(File spoolFile, int threshold) {
+        mSpoolFile = spoolFile;
+        mThreshold = threshold;
+        mBuffer = new byte[Math.min(INITIAL_SIZE, threshold)];
+    }
+
+    /**
+     * Read the input stream up to its end into the body
+     */
+    public void readFrom(InputStream is, int bufferSize) throws IOException {
+        byte[] b = new byte[bufferSize];
+        long timestamp = 0;
+        int readLength;
+        while (true) {
+            if (V) timestamp = System.currentTimeMillis();
+            readLength = is.read(b);
+            if (readLength == -1) {
+                break;
+            }
+            write(b, 0, readLength);
+            if (V) {
+                Log.v(TAG, "Receive position = " + mLength + " readLength " + readLength
+                        + " bytes took " + (System.currentTimeMillis() - timestamp) + " ms");
+            }
+        }
+        if (mSpool != null) {
+            mSpool.close();
+            mSpool = null;
+        }
+        if (D) Log.d(TAG, "Received " + mLength + " bytes" + (mSpooled ? ", spooled" : ""));
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        if (!mSpooled && mCount + len > mThreshold) {
+            if (V) Log.v(TAG, "Spooling to " + mSpoolFile);
+            mSpool = new BufferedOutputStream(new FileOutputStream(mSpoolFile));
+            mSpooled = true;
+            mSpool.write(mBuffer, 0, mCount);
+            mBuffer = null;
+            mCount = 0;
+        }
+        if (mSpooled) {
+            mSpool.write(b, off, len);
+        } else {
+            if (mCount + len > mBuffer.length) {
+                byte[] grown = new byte[Math.min(Math.max(mBuffer.length * 2, mCount + len),
+                        mThreshold)];
+                System.arraycopy(mBuffer, 0, grown, 0, mCount);
+                mBuffer = grown;
+            }
+            System.arraycopy(b, off, mBuffer, mCount, len);
+            mCount += len;
+        }
+        mLength += len;
+    }
+
+    public long length() {
+        return mLength;
+    }
+
+    public boolean isSpooled() {
+        return mSpooled;
+    }
+
+    public InputStream openInputStream() throws IOException {
+        if (mSpooled) {
+            return new BufferedInputStream(new FileInputStream(mSpoolFile));
+        }
+        return new ByteArrayInputStream(mBuffer, 0, mCount);
+    }
+
+    /**
+     * Decode the body as UTF-8 text
+     */
+    public String getString() throws IOException {
+        if (!mSpooled) {
+            return new String(mBuffer, 0, mCount, "UTF-8");
+        }
+        StringBuilder sb = new StringBuilder((int) Math.min(mLength, Integer.MAX_VALUE));
+        Reader reader = new InputStreamReader(openInputStream(), "UTF-8");
+        try {
+            char[] chars = new char[INITIAL_SIZE];
+            int n;
+            while ((n = reader.read(chars)) != -1) {
+                sb.append(chars, 0, n);
+            }
+        } finally {
+            reader.close();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Drop the body and its spool file
+     */
+    public void release() {
+        if (mSpool != null) {
+            try {
+                mSpool.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error while closing spool file " + e.toString());
+            }
+            mSpool = null;
+        }
+        if (mSpooled && !mSpoolFile.delete()) {
+            Log.w(TAG, "Unable to delete " + mSpoolFile);
+        }
+        mSpooled = false;
+        mBuffer = null;
+        mCount = 0;
+        mLength = 0;
+    }
+}